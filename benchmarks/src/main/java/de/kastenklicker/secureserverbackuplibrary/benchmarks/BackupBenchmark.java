@@ -0,0 +1,75 @@
+package de.kastenklicker.secureserverbackuplibrary.benchmarks;
+
+import de.kastenklicker.secureserverbackuplibrary.ArchiveFormat;
+import de.kastenklicker.secureserverbackuplibrary.Backup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end benchmark of a local backup, including writing the archive to disk and the retention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(1)
+public class BackupBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "DEEP_NESTING"})
+    public FileTree tree;
+
+    @Param({"ZIP", "TAR_ZSTD"})
+    public ArchiveFormat archiveFormat;
+
+    private File serverDirectory;
+    private File backupDirectory;
+    private long size;
+    private long count;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        serverDirectory = tree.create();
+        backupDirectory = Files.createTempDirectory("benchmarkBackups").toFile();
+        size = FileTree.size(serverDirectory);
+        count = FileTree.count(serverDirectory);
+    }
+
+    /**
+     * Create a full backup, the backup file is deleted afterward, so the disk doesn't fill up.
+     */
+    @Benchmark
+    public void backup(Throughput throughput) {
+        Backup backup = new Backup(List.of("*"), new ArrayList<>(), backupDirectory, serverDirectory,
+                new ArrayList<>(), Long.MAX_VALUE);
+        backup.setCompressionThreads(Runtime.getRuntime().availableProcessors());
+        backup.setArchiveFormat(archiveFormat);
+        File backupFile = backup.backup();
+        backupFile.delete();
+        throughput.add(size, count);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        FileTree.delete(serverDirectory);
+        FileTree.delete(backupDirectory);
+    }
+}
@@ -0,0 +1,123 @@
+package de.kastenklicker.secureserverbackuplibrary.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Generated server directories the benchmarks run on.
+ * The content is half random and half repeated text, so it is neither incompressible nor trivial.
+ */
+public enum FileTree {
+
+    /**
+     * 20000 files of 1 to 16 KiB in 200 directories, like the chunk and player data of a server.
+     */
+    SMALL_FILES {
+        @Override
+        void generate(Path directory, SplittableRandom random) throws IOException {
+            for (int i = 0; i < 20000; i++) {
+                Path dir = directory.resolve("dir" + (i % 200));
+                Files.createDirectories(dir);
+                write(dir.resolve("file" + i + ".dat"), 1024 + random.nextInt(15 * 1024), random);
+            }
+        }
+    },
+
+    /**
+     * 4 files of 256 MiB, like region files and server jars.
+     */
+    HUGE_FILES {
+        @Override
+        void generate(Path directory, SplittableRandom random) throws IOException {
+            for (int i = 0; i < 4; i++)
+                write(directory.resolve("huge" + i + ".dat"), 256 * 1024 * 1024, random);
+        }
+    },
+
+    /**
+     * 2000 files of 4 KiB, each in its own directory 64 levels deep.
+     */
+    DEEP_NESTING {
+        @Override
+        void generate(Path directory, SplittableRandom random) throws IOException {
+            for (int i = 0; i < 2000; i++) {
+                Path dir = directory.resolve("branch" + (i % 20));
+                for (int depth = 0; depth < 64; depth++)
+                    dir = dir.resolve("level" + depth + (depth == 63 ? "-" + i : ""));
+                Files.createDirectories(dir);
+                write(dir.resolve("file.dat"), 4 * 1024, random);
+            }
+        }
+    };
+
+    private static final byte[] TEXT = "The quick brown fox jumps over the lazy dog. ".repeat(100).getBytes();
+
+    /**
+     * Fill the directory with the files of the tree.
+     * @param directory the empty directory
+     * @param random the source of the file content
+     * @throws IOException file exceptions
+     */
+    abstract void generate(Path directory, SplittableRandom random) throws IOException;
+
+    /**
+     * Generate the tree in a new temporary directory.
+     * @return the directory
+     * @throws IOException file exceptions
+     */
+    public File create() throws IOException {
+        Path directory = Files.createTempDirectory("benchmark" + name());
+        generate(directory, new SplittableRandom(42));
+        return directory.toFile();
+    }
+
+    /**
+     * Get the total size of all files of a directory.
+     * @param directory the directory
+     * @return the size in bytes
+     * @throws IOException file exceptions
+     */
+    public static long size(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Count the files of a directory.
+     * @param directory the directory
+     * @return the number of regular files
+     * @throws IOException file exceptions
+     */
+    public static long count(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    /**
+     * Delete a directory recursive.
+     * @param directory the directory
+     * @throws IOException file exceptions
+     */
+    public static void delete(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void write(Path file, int size, SplittableRandom random) throws IOException {
+        byte[] data = new byte[size];
+        byte[] noise = new byte[size / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, data, 0, noise.length);
+        for (int i = noise.length; i < size; i += TEXT.length)
+            System.arraycopy(TEXT, 0, data, i, Math.min(TEXT.length, size - i));
+        Files.write(file, data);
+    }
+}
@@ -0,0 +1,42 @@
+package de.kastenklicker.secureserverbackuplibrary.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results of the benchmarks in MB and files per second.
+ * JMH reports the public fields as rates, if the benchmark mode is throughput.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+    /**
+     * Megabytes (10^6 bytes) processed.
+     */
+    public double megabytes;
+
+    /**
+     * Files processed.
+     */
+    public long files;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        files = 0;
+    }
+
+    /**
+     * Count one processed tree.
+     * @param bytes the size of all files
+     * @param files the number of files
+     */
+    public void add(long bytes, long files) {
+        this.megabytes += bytes / 1e6;
+        this.files += files;
+    }
+}
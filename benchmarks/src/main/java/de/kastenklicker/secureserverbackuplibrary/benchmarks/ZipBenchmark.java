@@ -0,0 +1,99 @@
+package de.kastenklicker.secureserverbackuplibrary.benchmarks;
+
+import de.kastenklicker.secureserverbackuplibrary.Zip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of zipping and searching the server directory.
+ * The archive is written to a null stream, so only reading and compressing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "DEEP_NESTING"})
+    public FileTree tree;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    /**
+     * Minimum size of memory mapped files, 0 reads all files into buffers.
+     */
+    @Param({"0", "16777216"})
+    public long memoryMapThreshold;
+
+    private File serverDirectory;
+    private long size;
+    private long count;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        serverDirectory = tree.create();
+        size = FileTree.size(serverDirectory);
+        count = FileTree.count(serverDirectory);
+    }
+
+    /**
+     * Zip all files of the tree.
+     */
+    @Benchmark
+    public void zip(Throughput throughput) {
+        Zip zip = new Zip(OutputStream.nullOutputStream(), serverDirectory, List.of("*"), new ArrayList<>());
+        zip.setCompressionThreads(threads);
+        zip.setMemoryMapThreshold(memoryMapThreshold);
+        zip.addIncludedFiles();
+        zip.finish();
+        throughput.add(size, count);
+    }
+
+    /**
+     * Search the included files, where the directories are returned without descending into them.
+     */
+    @Benchmark
+    public Set<File> getIncludedFiles() {
+        Zip zip = new Zip(OutputStream.nullOutputStream(), serverDirectory, List.of("*"), new ArrayList<>());
+        return zip.getIncludedFiles();
+    }
+
+    /**
+     * Walk all files of the tree, like an incremental backup without changes.
+     */
+    @Benchmark
+    public void walk(Throughput throughput) {
+        Zip zip = new Zip(OutputStream.nullOutputStream(), serverDirectory, List.of("*"), new ArrayList<>());
+        zip.setFilter((file, name) -> false);
+        zip.addIncludedFiles();
+        zip.finish();
+        throughput.add(0, count);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        FileTree.delete(serverDirectory);
+    }
+}
@@ -0,0 +1,68 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.function.BiPredicate;
+
+/**
+ * Backup archive the server files are written to, implemented by every {@link ArchiveFormat}.
+ */
+interface Archive {
+
+    /**
+     * Set the number of threads compressing the files.
+     * @param compressionThreads number of compression threads
+     */
+    void setCompressionThreads(int compressionThreads);
+
+    /**
+     * Set a filter deciding which of the not excluded files are added.
+     * @param filter the filter, called with every file and its entry name
+     */
+    void setFilter(BiPredicate<File, String> filter);
+
+    /**
+     * Read the server files from an index instead of walking the server directory.
+     * @param fileIndex the paths of all server files relative to the server directory, or null to walk it
+     */
+    void setFileIndex(Collection<String> fileIndex);
+
+    /**
+     * Slow down archiving while the server is under load.
+     * @param loadThrottle the throttle, or null to archive at full speed
+     */
+    void setLoadThrottle(LoadThrottle loadThrottle);
+
+    /**
+     * Set the progress of the backup, which counts the scanned and archived files
+     * and stops archiving if the backup is cancelled.
+     * @param progress the progress
+     */
+    void setProgress(Progress progress);
+
+    /**
+     * Add all included files, while the server directory is searched.
+     * @throws ZipException Wrapped IOException
+     */
+    void addIncludedFiles();
+
+    /**
+     * Add an entry, which isn't a file of the server directory.
+     * @param name the entry name
+     * @param data the content of the entry
+     * @throws ZipException Wrapped IOException
+     */
+    void add(String name, byte[] data);
+
+    /**
+     * Finish up the archive and close its stream.
+     * @throws ZipException Wrapped IOException
+     */
+    void finish();
+
+    /**
+     * Stop writing an archive, which couldn't be finished, and close its stream.
+     * Exceptions are ignored, because the archive is discarded anyway.
+     */
+    void abort();
+}
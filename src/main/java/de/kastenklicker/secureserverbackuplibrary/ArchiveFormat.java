@@ -0,0 +1,121 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Format of the backup archives.
+ * The tar formats need the optional dependencies zstd-jni and lz4-java.
+ */
+public enum ArchiveFormat {
+
+    /**
+     * Zip archive, compressed with deflate.
+     */
+    ZIP(".zip"),
+
+    /**
+     * Tar archive, compressed with Zstandard, which can use several threads.
+     */
+    TAR_ZSTD(".tar.zst"),
+
+    /**
+     * Tar archive, compressed with LZ4, which is the fastest but compresses the least.
+     */
+    TAR_LZ4(".tar.lz4");
+
+    private final String extension;
+
+    ArchiveFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Get the file name extension of the format.
+     * @return the extension including the leading dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Get the format of a backup by its file name.
+     * @param backupFile the backup
+     * @return the format, or null if the file isn't a backup archive
+     */
+    public static ArchiveFormat of(File backupFile) {
+        for (ArchiveFormat archiveFormat : values()) {
+            if (backupFile.getName().endsWith(archiveFormat.extension))
+                return archiveFormat;
+        }
+        return null;
+    }
+
+    /**
+     * Create the stream compressing a tar archive.
+     * @param outputStream the stream the compressed archive is written to
+     * @param level the compression level, only used by Zstandard
+     * @param threads the number of compression threads, only used by Zstandard
+     * @return the compressing stream
+     * @throws IOException stream exceptions
+     */
+    OutputStream compress(OutputStream outputStream, int level, int threads) throws IOException {
+        return switch (this) {
+            case TAR_ZSTD -> Zstd.compress(outputStream, level, threads);
+            case TAR_LZ4 -> Lz4.compress(outputStream);
+            case ZIP -> throw new IllegalStateException("Zip archives are compressed per entry.");
+        };
+    }
+
+    /**
+     * Create the stream decompressing a tar archive.
+     * @param inputStream the stream of the compressed archive
+     * @return the decompressing stream
+     * @throws IOException stream exceptions
+     */
+    InputStream decompress(InputStream inputStream) throws IOException {
+        return switch (this) {
+            case TAR_ZSTD -> Zstd.decompress(inputStream);
+            case TAR_LZ4 -> Lz4.decompress(inputStream);
+            case ZIP -> throw new IllegalStateException("Zip archives are compressed per entry.");
+        };
+    }
+
+    /**
+     * Zstandard streams, in their own class, so zstd-jni is only loaded if it is used.
+     */
+    private static class Zstd {
+
+        static OutputStream compress(OutputStream outputStream, int level, int threads) throws IOException {
+            ZstdOutputStream zstdOutputStream = new ZstdOutputStream(outputStream, level);
+            if (threads > 1)
+                zstdOutputStream.setWorkers(threads);
+            return zstdOutputStream;
+        }
+
+        static InputStream decompress(InputStream inputStream) throws IOException {
+            return new ZstdInputStream(inputStream);
+        }
+    }
+
+    /**
+     * LZ4 streams, in their own class, so lz4-java is only loaded if it is used.
+     */
+    private static class Lz4 {
+
+        static OutputStream compress(OutputStream outputStream) throws IOException {
+            return new LZ4FrameOutputStream(outputStream);
+        }
+
+        static InputStream decompress(InputStream inputStream) throws IOException {
+            return new LZ4FrameInputStream(inputStream);
+        }
+    }
+}
@@ -1,17 +1,41 @@
 package de.kastenklicker.secureserverbackuplibrary;
 
+import de.kastenklicker.secureserverbackuplibrary.upload.FileDigest;
+import de.kastenklicker.secureserverbackuplibrary.upload.RemoteFile;
 import de.kastenklicker.secureserverbackuplibrary.upload.UploadClient;
 import de.kastenklicker.secureserverbackuplibrary.upload.UploadException;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Class for containing all backup logic.
@@ -19,13 +43,48 @@ import java.util.List;
 public class Backup {
 
     private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+    private static final String MANIFEST_FILE_NAME = ".backup-manifest";
+    private static final String SNAPSHOT_DIRECTORY_NAME = ".snapshot";
+    private static final long MEMORY_MAP_THRESHOLD = 16 * 1024 * 1024;
 
     private final List<String> includedFiles;
     private final List<String> excludeFiles;
     private final File backupDirectory;
     private final File serverDirectory;
     private final List<UploadClient> uploadClients;
-    private final long maxBackupDirectorySize;
+    private final BackupCatalog backupCatalog;
+    private int compressionThreads = 1;
+    private boolean streaming = false;
+    private boolean keepLocalCopy = true;
+    private boolean checksums = false;
+    private long volumeSize = 0;
+    private boolean deleteUploadedVolumes = false;
+    private int fullBackupInterval = 0;
+    private boolean regionDeltas = false;
+    private File chunkStoreDirectory;
+    private CompressionPolicy compressionPolicy = new CompressionPolicy();
+    private Consumer<CompressionResult> compressionListener = result -> {};
+    private ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    private int compressionLevel = 3;
+    private LoadThrottle loadThrottle;
+    private SnapshotMode snapshotMode;
+    private Runnable snapshotListener = () -> {};
+    private File sourceDirectory;
+    private ChangeJournal changeJournal;
+    private ChangeJournal.Changes journalChanges;
+    private RetentionPolicy retentionPolicy = new RetentionPolicy();
+    private boolean remoteRetention = false;
+    private Consumer<BackupProgress> progressListener = progress -> {};
+    private Consumer<BackupMetrics> metricsListener = metrics -> {};
+    private Progress progress = new Progress(progressListener);
+    private List<UploadResult> uploadResults = List.of();
+
+    /**
+     * Stream to an upload client, or the exception thrown while connecting.
+     * @param outputStream the upload stream
+     * @param exception the exception, if connecting failed
+     */
+    private record UploadStream(OutputStream outputStream, UploadException exception) {}
 
     /**
      * Constructor for Backup class.
@@ -34,7 +93,8 @@ public class Backup {
      * @param backupDirectory the directory of the backups
      * @param serverDirectory the directory which contains all server files
      * @param uploadClients Array of UploadClients
-     * @param maxBackupDirectorySize the maximum size of the backup directory
+     * @param maxBackupDirectorySize the maximum size of the backups in the backup directory,
+     *                               use {@link #setRetentionPolicy(RetentionPolicy)} for other limits
      */
     public Backup(List<String> includedFiles, List<String> excludeFiles, File backupDirectory, File serverDirectory, List<UploadClient> uploadClients, long maxBackupDirectorySize) {
         this.includedFiles = includedFiles;
@@ -42,75 +102,1082 @@ public class Backup {
         this.backupDirectory = backupDirectory;
         this.serverDirectory = serverDirectory;
         this.uploadClients = uploadClients;
-        this.maxBackupDirectorySize = maxBackupDirectorySize;
+        this.backupCatalog = new BackupCatalog(backupDirectory);
+
+        // A limit of 0 always kept only the newest backup
+        if (maxBackupDirectorySize > 0)
+            retentionPolicy.setMaxSize(maxBackupDirectorySize);
+        else
+            retentionPolicy.setMaxCount(1);
+    }
+
+    /**
+     * Set the number of threads compressing the backup.
+     * @param compressionThreads number of compression threads, 1 compresses on the calling thread
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Set the policy deciding how every file is compressed.
+     * By default, already compressed file formats like region files and jars are stored uncompressed.
+     * @param compressionPolicy the policy, or null to deflate all files
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Set a listener, which is called with how every zipped file was compressed.
+     * @param compressionListener the listener
+     */
+    public void setCompressionListener(Consumer<CompressionResult> compressionListener) {
+        this.compressionListener = compressionListener;
+    }
+
+    /**
+     * Set the format of the backup archives. The tar formats need their optional compression library.
+     * @param archiveFormat the format, zip by default
+     */
+    public void setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * Set the compression level of {@link ArchiveFormat#TAR_ZSTD} archives.
+     * Zip archives use the {@link CompressionPolicy} instead.
+     * @param compressionLevel the Zstandard level, 3 by default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Slow down archiving while the server is under load, so the backup doesn't lower the tick rate.
+     * @param loadThrottle the throttle, or null to archive at full speed
+     */
+    public void setLoadThrottle(LoadThrottle loadThrottle) {
+        this.loadThrottle = loadThrottle;
+    }
+
+    /**
+     * Archive a snapshot of the included server files instead of the server files.
+     * The snapshot is created in the backup directory before archiving, so the server only needs to stop
+     * writing its files until the snapshot was created, see {@link #setSnapshotListener(Runnable)}.
+     * Hard links need the backup directory on the file system of the server directory.
+     * The snapshot is deleted after the backup.
+     * @param snapshotMode how the files are frozen, or null to archive the server files directly
+     */
+    public void setSnapshotMode(SnapshotMode snapshotMode) {
+        this.snapshotMode = snapshotMode;
+    }
+
+    /**
+     * Set a listener, which is called as soon as the server files aren't read anymore,
+     * after the snapshot was created or failed. It may resume saving the world, while the snapshot is archived,
+     * as long as every file the server writes into instead of replacing it was copied into the snapshot.
+     * That is true for {@link SnapshotMode#COPY}, and for {@link SnapshotMode#LINK} if the server only writes
+     * into region files, like vanilla Minecraft. Plugins writing into other files need {@link SnapshotMode#COPY}.
+     * Has no effect without a {@link SnapshotMode}.
+     * @param snapshotListener the listener, called from the backup thread
+     */
+    public void setSnapshotListener(Runnable snapshotListener) {
+        this.snapshotListener = snapshotListener;
+    }
+
+    /**
+     * Read the server files from a change journal instead of walking the server directory.
+     * Incremental backups only check the files the journal recorded as changed since the last backup,
+     * the other files aren't read. While the journal isn't complete, the server directory is walked.
+     * The journal doesn't record the excluded files, like the backup directory.
+     * @param changeJournal the started journal of the server directory, or null to walk the server directory
+     */
+    public void setChangeJournal(ChangeJournal changeJournal) {
+        this.changeJournal = changeJournal;
+        if (changeJournal != null)
+            changeJournal.setExcludeFiles(getExcludeFiles());
+    }
+
+    /**
+     * Set the policy deciding which backups of the backup directory are kept after a backup.
+     * Replaces the size limit passed to the constructor.
+     * @param retentionPolicy the policy
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    /**
+     * Set if the retention policy is also applied to the remote directories of the upload clients.
+     * After a successful upload every upload client lists the backups of its remote directory
+     * and deletes the backups the policy doesn't keep over one connection.
+     * Failing deletions are logged and don't fail the backup.
+     * Only enable it, if the remote directories don't contain the backups of other servers.
+     * @param remoteRetention if old remote backups should be deleted, false by default
+     */
+    public void setRemoteRetention(boolean remoteRetention) {
+        this.remoteRetention = remoteRetention;
+    }
+
+    /**
+     * Set if the backup is uploaded while it is zipped, instead of uploading the finished backup file.
+     * @param streaming if the backup should be streamed to the upload clients
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Set if a streamed backup is also written to the backup directory.
+     * Has no effect if the backup isn't streamed.
+     * @param keepLocalCopy if the backup file should be written
+     */
+    public void setKeepLocalCopy(boolean keepLocalCopy) {
+        this.keepLocalCopy = keepLocalCopy;
+    }
+
+    /**
+     * Set if the SHA-256 digest of a backup is computed while it is written, without reading the backup again.
+     * The digest is written into a sidecar file next to the backup, which is uploaded after the backup
+     * and can be checked with {@code sha256sum -c}.
+     * Every upload is verified with a checksum computed by the server, or else with the digest of the sent bytes.
+     * A mismatching upload fails like any other failed upload.
+     * Has no effect on backups into a chunk store.
+     * @param checksums if the backups should be verified, false by default
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Split the backup into volumes, which are uploaded while the next volumes are written.
+     * The volumes are named like the backup, followed by their number starting at .001,
+     * and are joined again by {@link Restore}. The sidecar file contains the digest of every volume.
+     * Has no effect on streamed backups and backups into a chunk store.
+     * @param volumeSize the size of a volume in bytes, 0 disables splitting
+     */
+    public void setVolumeSize(long volumeSize) {
+        this.volumeSize = volumeSize;
+    }
+
+    /**
+     * Set if a volume is deleted from the backup directory after all upload clients uploaded it.
+     * Writing the backup then waits for slow uploads, so the backup needs only the space of a few volumes.
+     * Volumes, which an upload client failed to upload, are kept.
+     * Has no effect if the backup isn't split into volumes.
+     * @param deleteUploadedVolumes if uploaded volumes are deleted, false by default
+     */
+    public void setDeleteUploadedVolumes(boolean deleteUploadedVolumes) {
+        this.deleteUploadedVolumes = deleteUploadedVolumes;
     }
     
+    /**
+     * Enable incremental backups. Incremental backups contain only the files changed since the previous backup
+     * and are restored with {@link Restore}. Deleting a full backup makes the next backup a full backup.
+     * @param fullBackupInterval every how many backups a full backup is made, 0 disables incremental backups
+     */
+    public void setIncremental(int fullBackupInterval) {
+        this.fullBackupInterval = fullBackupInterval;
+    }
+
+    /**
+     * Set if incremental backups contain only the changed chunks of changed Minecraft region files (.mca),
+     * instead of the whole region files. The region files are rebuilt by {@link Restore}.
+     * Has no effect if the backups aren't incremental.
+     * @param regionDeltas if only the changed chunks of region files should be backed up
+     */
+    public void setRegionDeltas(boolean regionDeltas) {
+        this.regionDeltas = regionDeltas;
+    }
+
+    /**
+     * Store the backups deduplicated in a {@link ChunkStore} instead of zipping them.
+     * Every backup is a snapshot, which only adds the parts of the files not stored by a previous backup.
+     * Every upload client uploads the files of the store its remote directory is missing,
+     * so the files of a failed upload are uploaded by the next backup.
+     * The size limit of the backup directory doesn't apply to the store.
+     * @param chunkStoreDirectory the directory of the store, null zips the backups
+     */
+    public void setChunkStore(File chunkStoreDirectory) {
+        this.chunkStoreDirectory = chunkStoreDirectory;
+    }
+
+    /**
+     * Set a listener, which is called with the progress of the running backup.
+     * The listener is called at most every 100 milliseconds from the archiving and uploading threads,
+     * and once after the backup finished.
+     * @param progressListener the listener
+     */
+    public void setProgressListener(Consumer<BackupProgress> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Set a listener, which is called with the metrics of every backup after it finished or failed.
+     * Use {@link BackupStats} to collect the metrics of all backups and read them with JMX.
+     * The phases are also recorded as Java Flight Recorder events.
+     * @param metricsListener the listener
+     */
+    public void setMetricsListener(Consumer<BackupMetrics> metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Get the results of the uploads of the last backup.
+     * @return the result of every upload client
+     */
+    public List<UploadResult> getUploadResults() {
+        return uploadResults;
+    }
+
     /**
      * Creates a backup with all files in the main directory expect the excluded ones.
-     * @return Backup file
+     * @return Backup file, which doesn't exist if a streamed backup wasn't kept locally,
+     * or the snapshot file if the backup is stored in a chunk store
      */
     public File backup() {
+        return backup(new Progress(progressListener));
+    }
 
-        // Append backup directory to excluded files list
-        excludeFiles.add(backupDirectory.getName());
+    /**
+     * Creates a backup on a new thread, like {@link #backup()}.
+     * @return the future backup file, see {@link #backup()}
+     */
+    public CompletableFuture<File> backupAsync() {
+        return backupAsync(runnable -> Thread.ofPlatform().name("backup").start(runnable));
+    }
+
+    /**
+     * Creates a backup with an executor, like {@link #backup()}.
+     * Cancelling the future stops archiving before the next block and interrupts the uploads.
+     * The partial backup file and streamed uploads are deleted, and an incremental backup doesn't change
+     * the state of the next incremental backup. Files already added to a chunk store are kept for the next backup.
+     * Only one backup of this instance may run at the same time.
+     * @param executor the executor running the backup
+     * @return the future backup file, see {@link #backup()}
+     */
+    public CompletableFuture<File> backupAsync(Executor executor) {
+        Progress progress = new Progress(progressListener);
+        CompletableFuture<File> future = new CompletableFuture<>();
+        AtomicReference<Thread> thread = new AtomicReference<>();
+
+        future.whenComplete((file, throwable) -> {
+            if (!future.isCancelled())
+                return;
+            progress.cancel();
+            synchronized (thread) {
+                if (thread.get() != null)
+                    thread.get().interrupt();
+            }
+        });
+
+        executor.execute(() -> {
+            synchronized (thread) {
+                thread.set(Thread.currentThread());
+            }
+            try {
+                future.complete(backup(progress));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                // The thread may belong to a pool, so the cancellation must not interrupt its next task
+                synchronized (thread) {
+                    thread.set(null);
+                    Thread.interrupted();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Creates a backup and reports its progress.
+     * @param progress the progress of this backup
+     * @return the backup file, see {@link #backup()}
+     * @throws CancellationException Thrown if the backup was cancelled
+     */
+    private File backup(Progress progress) {
+        this.progress = progress;
+        uploadResults = List.of();
+        BackupEvents.Backup event = new BackupEvents.Backup();
+        event.begin();
+        long start = System.nanoTime();
+        boolean successful = false;
+        Snapshot snapshot = null;
+
+        try {
+            sourceDirectory = serverDirectory;
+            if (changeJournal != null) {
+                // The chunk store may have been set after the journal
+                changeJournal.setExcludeFiles(getExcludeFiles());
+                journalChanges = changeJournal.getChanges();
+                if (journalChanges == null)
+                    LOGGER.debug("The change journal isn't complete, walking the server directory.");
+            }
+            if (snapshotMode != null) {
+                snapshot = createSnapshot();
+                sourceDirectory = snapshot.getDirectory();
+            }
+
+            File backupFile = createBackup();
+            successful = true;
+            return backupFile;
+        } finally {
+            journalChanges = null;
+            if (snapshot != null)
+                deleteSnapshot(snapshot);
+
+            Duration duration = Duration.ofNanos(System.nanoTime() - start);
+            BackupMetrics backupMetrics = progress.getMetrics(successful, duration);
+            event.successful = successful;
+            event.bytesIn = backupMetrics.bytesIn();
+            event.bytesOut = backupMetrics.bytesOut();
+            event.commit();
+
+            progress.report(true);
+            metricsListener.accept(backupMetrics);
+        }
+    }
+
+    /**
+     * Link or copy the included server files into the snapshot and notify the snapshot listener.
+     * @return the snapshot
+     * @throws CancellationException Thrown if the backup was cancelled
+     */
+    private Snapshot createSnapshot() {
+        Snapshot snapshot = new Snapshot(new File(backupDirectory, SNAPSHOT_DIRECTORY_NAME), snapshotMode);
+        BackupEvents.Snapshot event = new BackupEvents.Snapshot();
+        event.begin();
+        long start = System.nanoTime();
+
+        try {
+            snapshot.create(createFileSearch(serverDirectory), progress);
+        } catch (IOException e) {
+            deleteSnapshot(snapshot);
+            throw new ZipException(e);
+        } catch (RuntimeException e) {
+            deleteSnapshot(snapshot);
+            throw e;
+        } finally {
+            snapshotListener.run();
+        }
+
+        long nanos = System.nanoTime() - start;
+        progress.addPhase(Phase.SNAPSHOT, nanos);
+        event.linkedFiles = snapshot.getLinkedFiles();
+        event.copiedFiles = snapshot.getCopiedFiles();
+        event.commit();
+        LOGGER.info("Created snapshot of the server files in {} ms.", nanos / 1_000_000);
+        return snapshot;
+    }
+
+    /**
+     * Delete a snapshot, a failure is only logged, because the next snapshot deletes it again.
+     * @param snapshot the snapshot
+     */
+    private static void deleteSnapshot(Snapshot snapshot) {
+        try {
+            snapshot.delete();
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't delete snapshot {}.", snapshot.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Creates a backup with the progress of the running backup.
+     * @return the backup file, see {@link #backup()}
+     * @throws CancellationException Thrown if the backup was cancelled
+     */
+    private File createBackup() {
+        progress.checkCancelled();
 
         // Get current time for backup file name
-        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm");
+        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
         LocalDateTime localDateTime = LocalDateTime.now();
         String currentTime = dateTimeFormatter.format(localDateTime);
+
+        if (chunkStoreDirectory != null)
+            return storeChunks("backup-" + currentTime);
+
+        // Compare with the previous backup, if the backup is incremental
+        File manifestFile = new File(backupDirectory, MANIFEST_FILE_NAME);
+        Increment increment = null;
+        if (fullBackupInterval > 0) {
+            long start = System.nanoTime();
+            try {
+                increment = new Increment(Manifest.load(manifestFile), fullBackupInterval, regionDeltas);
+                if (journalChanges != null)
+                    increment.setChangedFiles(journalChanges.changedFiles());
+            } catch (IOException e) {
+                throw new ZipException(e);
+            }
+            progress.addPhase(Phase.DISCOVERY, System.nanoTime() - start);
+        }
+        String suffix = increment == null || increment.isFull() ? "" : "-incremental";
         
-        // Create backup zip file
-        File backupFile = new File(backupDirectory, "backup-"+currentTime+".zip");
-        LOGGER.debug("Zipping files into {}.", backupFile.getName());
-
-        // Compress the server files
-        Zip zip = new Zip(backupFile, serverDirectory, includedFiles, excludeFiles);
-        for (File file : zip.getIncludedFiles())
-            zip.zip(file);
-        zip.finish();
-        
-        LOGGER.debug("Finished zipping file.");
-        
+        // Create backup archive file
+        File backupFile = new File(backupDirectory, "backup-"+currentTime+suffix+archiveFormat.getExtension());
+        LOGGER.debug("Archiving files into {}.", backupFile.getName());
+        if (increment != null)
+            increment.setBackupName(backupFile.getName());
+
         try {
-            // Upload file
-            for (UploadClient uploadClient : uploadClients)
-                uploadClient.upload(backupFile);
-        } catch (Exception e) {
-            throw new UploadException(e);
+            if (streaming) {
+                uploadResults = zipAndStream(backupFile, increment);
+            } else if (volumeSize > 0) {
+                uploadResults = archiveVolumes(backupFile, increment);
+            } else {
+                // Compress the server files
+                Archive archive;
+                ChecksumOutputStream checksumOutputStream = null;
+                try {
+                    OutputStream outputStream = new FileOutputStream(backupFile);
+                    if (checksums)
+                        outputStream = checksumOutputStream = new ChecksumOutputStream(outputStream);
+                    archive = createArchive(outputStream);
+                } catch (IOException e) {
+                    throw new ZipException(e);
+                }
+                try {
+                    archive(archive, increment);
+                } catch (RuntimeException e) {
+                    archive.abort();
+                    throw e;
+                }
+                progress.writeBytes(backupFile.length());
+
+                // Upload file, followed by its sidecar file
+                if (checksumOutputStream == null) {
+                    uploadResults = upload(List.of(backupFile), Map.of());
+                } else {
+                    FileDigest digest = checksumOutputStream.getDigest();
+                    uploadResults = upload(List.of(backupFile, writeSidecar(backupFile, Map.of(backupFile, digest))),
+                            Map.of(backupFile, digest));
+                }
+            }
+            progress.checkCancelled();
+        } catch (RuntimeException e) {
+            // A partial backup, or a backup missing in the manifest, can't be restored
+            if (backupFile.exists() && !backupFile.delete())
+                LOGGER.warn("Couldn't delete partial backup {}.", backupFile.getName());
+            for (File volume : VolumeOutputStream.list(backupFile))
+                volume.delete();
+            getSidecar(backupFile).delete();
+            throw progress.isCancelled() ? cancellation(e) : e;
+        }
+
+        // Remember the files of this backup for the next incremental backup
+        if (increment != null) {
+            try {
+                increment.getManifest().save(manifestFile);
+            } catch (IOException e) {
+                throw new ZipException(e);
+            }
         }
+        forgetJournalChanges(increment != null);
+        throwIfUploadFailed();
 
-        // Delete oldest file if over limit
-        while (isOldestFileMarkedToBeDeleted()) {
-            File[] fileArray = backupDirectory.listFiles();
-            if (fileArray == null)
-                throw new RuntimeException(backupDirectory + " isn't a directory!");
-            ArrayList<File> files = new ArrayList<>(Arrays.asList(fileArray));
-            files.sort(Comparator.comparing(File::lastModified));
-            File oldestFile = files.getFirst();
-            if (!oldestFile.delete()) {
-                throw new RuntimeException("Couldn't delete oldest backup: " + oldestFile);
+        // Delete the backups the retention policy doesn't keep
+        BackupEvents.Retention retentionEvent = new BackupEvents.Retention();
+        retentionEvent.begin();
+        long retentionStart = System.nanoTime();
+        backupCatalog.refresh();
+        for (BackupCatalog.Artifact artifact : retentionPolicy.select(backupCatalog.getArtifacts())) {
+            for (File oldFile : backupCatalog.getFiles(artifact)) {
+                if (!oldFile.delete())
+                    throw new RuntimeException("Couldn't delete oldest backup: " + oldFile);
             }
-            files.removeLast();
-            LOGGER.debug("Removed oldest backup file {}.", oldestFile.getName());
+            File oldFile = new File(backupDirectory, artifact.name());
+            getSidecar(oldFile).delete();
+            backupCatalog.remove(artifact);
+            LOGGER.debug("Removed old backup file {}.", oldFile.getName());
+            retentionEvent.deletedFiles++;
+            retentionEvent.deletedBytes += artifact.size();
+
+            // Without its full backup the backup chain can't be continued
+            if (increment != null && oldFile.getName().equals(increment.getManifest().getBase())
+                    && manifestFile.delete())
+                LOGGER.warn("Removed full backup {}, the next backup will be a full backup.", oldFile.getName());
         }
+        if (remoteRetention)
+            retentionEvent.deletedRemoteFiles = pruneRemote();
+        progress.addPhase(Phase.RETENTION, System.nanoTime() - retentionStart);
+        retentionEvent.commit();
 
         return backupFile;
     }
 
     /**
-     * Checks if the oldest file of the backup directory should be deleted.
-     * @return if the oldest file should be deleted
+     * Delete the remote backups the retention policy doesn't keep, with all upload clients at the same time.
+     * @return the number of deleted remote backups
+     */
+    private int pruneRemote() {
+        List<Integer> deleted = runConcurrently(uploadClients, uploadClient -> {
+            try {
+                return uploadClient.prune(this::selectRemote).size();
+            } catch (UploadException e) {
+                LOGGER.warn("Couldn't delete old backups from {}.", uploadClient.getHostname(), e);
+                return 0;
+            }
+        });
+        return deleted.stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Select the remote backups the retention policy doesn't keep.
+     * @param remoteFiles the files of the remote directory
+     * @return the names of the backups to delete
+     */
+    private List<String> selectRemote(List<RemoteFile> remoteFiles) {
+        List<BackupCatalog.Artifact> artifacts = BackupCatalog.merge(remoteFiles.stream()
+                .map(remoteFile -> BackupCatalog.parse(remoteFile.name(), remoteFile.size()))
+                .filter(Objects::nonNull)
+                .toList());
+        artifacts.sort(BackupCatalog.ORDER.reversed());
+        List<String> names = remoteFiles.stream().map(RemoteFile::name).toList();
+        return retentionPolicy.select(artifacts).stream()
+                .flatMap(artifact -> names.contains(artifact.name() + FileDigest.SIDECAR_SUFFIX) ?
+                        Stream.concat(artifact.files().stream(), Stream.of(artifact.name() + FileDigest.SIDECAR_SUFFIX)) :
+                        artifact.files().stream())
+                .toList();
+    }
+
+    /**
+     * Get the sidecar file of a backup, which contains the SHA-256 digest of the backup.
+     * @param backupFile the backup file
+     * @return the sidecar file, which may not exist
+     */
+    private File getSidecar(File backupFile) {
+        return new File(backupFile.getParentFile(), backupFile.getName() + FileDigest.SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Write the sidecar file of a backup.
+     * @param backupFile the backup file
+     * @param digests the checksums of the backup file, or of its volumes
+     * @return the sidecar file
+     */
+    private File writeSidecar(File backupFile, Map<File, FileDigest> digests) {
+        File sidecar = getSidecar(backupFile);
+        StringBuilder content = new StringBuilder();
+        digests.forEach((file, digest) -> content.append(digest.toSidecar(file.getName())));
+        try {
+            Files.writeString(sidecar.toPath(), content);
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+        return sidecar;
+    }
+
+    /**
+     * Verify a streamed backup and upload its sidecar file.
+     * @param uploadClient the upload client, which uploaded the backup
+     * @param fileName the name of the backup
+     * @param digest the checksums of the backup
+     * @throws UploadException if the upload failed, or the uploaded backup doesn't match the digest
+     */
+    private static void verifyStreamed(UploadClient uploadClient, String fileName, FileDigest digest) {
+        uploadClient.verify(fileName, digest);
+        try (OutputStream outputStream = uploadClient.uploadStream(fileName + FileDigest.SIDECAR_SUFFIX)) {
+            outputStream.write(digest.toSidecar(fileName).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UploadException(e);
+        }
+    }
+
+    /**
+     * Create the exception of a cancelled backup.
+     * @param cause the exception, which stopped the backup
+     * @return the exception
+     */
+    private static CancellationException cancellation(RuntimeException cause) {
+        if (cause instanceof CancellationException cancellationException)
+            return cancellationException;
+        CancellationException cancellationException = new CancellationException("The backup was cancelled.");
+        cancellationException.initCause(cause);
+        return cancellationException;
+    }
+
+    /**
+     * Add the server files to the chunk store and upload the new files of the store.
+     * @param snapshotName the name of the snapshot
+     * @return the snapshot file
+     */
+    private File storeChunks(String snapshotName) {
+        FileSearch fileSearch = createFileSearch(sourceDirectory);
+        LOGGER.debug("Storing files as snapshot {}.", snapshotName);
+        BackupEvents.Archive archiveEvent = new BackupEvents.Archive();
+        archiveEvent.begin();
+        long start = System.nanoTime();
+
+        ChunkStore chunkStore = new ChunkStore(chunkStoreDirectory);
+        ChunkStore.SnapshotWriter snapshotWriter;
+        try {
+            snapshotWriter = chunkStore.createSnapshot(snapshotName);
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+
+        // The pack files of an unfinished snapshot are removed, no snapshot would ever upload them
+        List<File> newFiles;
+        try {
+            fileSearch.walk((file, name) -> {
+                progress.checkCancelled();
+                progress.scanFile(file.length());
+                snapshotWriter.add(file, name);
+                progress.archiveBytes(file.length());
+                progress.archiveFile();
+                progress.fileDone();
+            });
+            newFiles = snapshotWriter.finish();
+        } catch (IOException e) {
+            snapshotWriter.abort();
+            throw new ZipException(e);
+        } catch (RuntimeException e) {
+            snapshotWriter.abort();
+            throw e;
+        }
+        addArchivePhase(archiveEvent, start);
+        for (File newFile : newFiles)
+            progress.writeBytes(newFile.length());
+        forgetJournalChanges(false);
+
+        // The snapshots are the last files, so they are only uploaded after all of their chunks
+        uploadResults = upload(uploadClient -> getMissingFiles(uploadClient, chunkStore, newFiles), Map.of());
+        progress.checkCancelled();
+        throwIfUploadFailed();
+
+        return newFiles.getLast();
+    }
+
+    /**
+     * Forget the changes of the change journal this backup used, so the next backup only needs to
+     * check the files changed after this backup started. A manifest this backup didn't save misses
+     * these changes, so it is deleted and the next incremental backup is a full backup.
+     * @param savedManifest true, if this backup saved the manifest
      */
-    private boolean isOldestFileMarkedToBeDeleted() {
-        File[] files = backupDirectory.listFiles();
+    private void forgetJournalChanges(boolean savedManifest) {
+        if (journalChanges == null)
+            return;
+        File manifestFile = new File(backupDirectory, MANIFEST_FILE_NAME);
+        if (!savedManifest && manifestFile.exists() && !manifestFile.delete()) {
+            LOGGER.warn("Couldn't delete the outdated manifest, the journal keeps its changes.");
+            return;
+        }
+        changeJournal.backedUp(journalChanges);
+    }
 
-        // Check if directory has more than 1 child
-        if (files != null && files.length <= 1)
-            return false;
+    /**
+     * Get the files of the chunk store, which aren't in the remote directory of an upload client.
+     * Upload clients, which can't list their remote directory, upload the new files of the snapshot.
+     * @param uploadClient the upload client
+     * @param chunkStore the chunk store
+     * @param newFiles the files added by the snapshot
+     * @return the files to upload, in the order of {@link ChunkStore#getFiles()}
+     * @throws UploadException Thrown if the remote directory can't be listed
+     */
+    private static List<File> getMissingFiles(UploadClient uploadClient, ChunkStore chunkStore, List<File> newFiles) {
+        Set<String> remoteFiles;
+        try {
+            remoteFiles = uploadClient.list().stream().map(RemoteFile::name).collect(Collectors.toSet());
+        } catch (UnsupportedOperationException e) {
+            LOGGER.debug("{} can't list the chunk store, uploading the new files.", uploadClient.getHostname());
+            return newFiles;
+        }
 
-        long currentSize = Arrays.stream(files).mapToLong(File::length).sum();
+        List<File> missingFiles = chunkStore.getFiles().stream()
+                .filter(file -> !remoteFiles.contains(file.getName()))
+                .toList();
+        if (missingFiles.size() > newFiles.size())
+            LOGGER.info("Uploading {} files of the chunk store, which are missing on {}.",
+                    missingFiles.size() - newFiles.size(), uploadClient.getHostname());
+        return missingFiles;
+    }
 
-        return currentSize > maxBackupDirectorySize;
+    /**
+     * Upload the backup files with all upload clients at the same time.
+     * Every upload client uploads the files one after another.
+     * @param backupFiles the backup files
+     * @param digests the checksums of the backup files, which are verified after their upload
+     * @return the result of every upload client
+     */
+    private List<UploadResult> upload(List<File> backupFiles, Map<File, FileDigest> digests) {
+        return upload(uploadClient -> backupFiles, digests);
+    }
+
+    /**
+     * Upload backup files with all upload clients at the same time.
+     * Every upload client uploads its files one after another.
+     * @param backupFiles gets the backup files of an upload client, may throw an {@link UploadException}
+     * @param digests the checksums of the backup files, which are verified after their upload
+     * @return the result of every upload client
+     */
+    private List<UploadResult> upload(Function<UploadClient, List<File>> backupFiles,
+                                      Map<File, FileDigest> digests) {
+        long phaseStart = System.nanoTime();
+        List<UploadResult> results = runConcurrently(uploadClients, uploadClient -> {
+            BackupEvents.Upload event = new BackupEvents.Upload();
+            event.begin();
+            long start = System.nanoTime();
+            int retryCount = uploadClient.getRetryCount();
+            long bytes = 0;
+            UploadException exception = null;
+            try {
+                for (File backupFile : backupFiles.apply(uploadClient)) {
+                    uploadClient.upload(backupFile, digests.get(backupFile));
+                    bytes += backupFile.length();
+                    progress.uploadBytes(backupFile.length());
+                }
+            } catch (UploadException e) {
+                exception = e;
+            }
+            UploadResult result = new UploadResult(uploadClient, Duration.ofNanos(System.nanoTime() - start), exception);
+            addUpload(event, result, bytes, uploadClient.getRetryCount() - retryCount);
+            return result;
+        });
+        progress.addPhase(Phase.UPLOAD, System.nanoTime() - phaseStart);
+        return results;
+    }
+
+    /**
+     * Add the metrics of an upload and commit its event.
+     * @param event the started event of the upload
+     * @param result the result of the upload
+     * @param bytes the uploaded bytes
+     * @param retries how often the upload was retried
+     */
+    private void addUpload(BackupEvents.Upload event, UploadResult result, long bytes, int retries) {
+        UploadMetrics uploadMetrics = new UploadMetrics(result.uploadClient().getHostname(), bytes,
+                result.duration(), retries, result.isSuccessful());
+        progress.addUpload(uploadMetrics);
+
+        event.hostname = uploadMetrics.hostname();
+        event.bytes = bytes;
+        event.retries = retries;
+        event.successful = uploadMetrics.successful();
+        event.commit();
+    }
+
+    /**
+     * Zip the server files and upload the zip to all upload clients, while it is written.
+     * Failing uploads don't stop the other uploads or the local copy.
+     * @param backupFile the local copy of the backup
+     * @param increment the increment, if the backup is incremental
+     * @return the result of every upload client
+     */
+    private List<UploadResult> zipAndStream(File backupFile, Increment increment) {
+        TeeOutputStream teeOutputStream = new TeeOutputStream();
+
+        ChecksumOutputStream checksumOutputStream = null;
+        OutputStream outputStream = countUploaded(teeOutputStream);
+        if (checksums)
+            outputStream = checksumOutputStream = new ChecksumOutputStream(outputStream);
+        Archive archive = createArchive(outputStream);
+        long start = System.nanoTime();
+
+        // The uploads run while archiving, so their events span the whole backup
+        List<BackupEvents.Upload> events = new ArrayList<>();
+        for (int i = 0; i < uploadClients.size(); i++) {
+            events.add(new BackupEvents.Upload());
+            events.getLast().begin();
+        }
+
+        // Connect to all servers at the same time
+        List<UploadStream> uploadStreams = runConcurrently(uploadClients, uploadClient -> {
+            try {
+                return new UploadStream(uploadClient.uploadStream(backupFile.getName()), null);
+            } catch (UploadException e) {
+                return new UploadStream(null, e);
+            }
+        });
+        progress.addPhase(Phase.UPLOAD, System.nanoTime() - start);
+
+        try {
+            if (keepLocalCopy)
+                teeOutputStream.addRequired(new FileOutputStream(backupFile));
+        } catch (IOException e) {
+            try {
+                teeOutputStream.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw new ZipException(e);
+        }
+
+        for (UploadStream uploadStream : uploadStreams) {
+            if (uploadStream.outputStream() != null)
+                teeOutputStream.addOptional(uploadStream.outputStream());
+        }
+
+        LOGGER.debug("Streaming backup to {} upload clients.", teeOutputStream.getOptionalCount());
+        try {
+            archive(archive, increment);
+        } catch (RuntimeException e) {
+            // The uploads must be aborted before the archive closes its stream, which would complete them
+            teeOutputStream.abort();
+            archive.abort();
+            throw e;
+        }
+        List<UploadException> exceptions = new ArrayList<>();
+        for (UploadStream uploadStream : uploadStreams) {
+            UploadException exception = uploadStream.exception();
+            if (exception == null && teeOutputStream.getFailure(uploadStream.outputStream()) != null)
+                exception = new UploadException(teeOutputStream.getFailure(uploadStream.outputStream()));
+            exceptions.add(exception);
+        }
+
+        // The digest is only known after the archive was closed, so the completed uploads are verified now
+        if (checksumOutputStream != null) {
+            FileDigest digest = checksumOutputStream.getDigest();
+            if (keepLocalCopy)
+                writeSidecar(backupFile, Map.of(backupFile, digest));
+            List<UploadException> streamExceptions = exceptions;
+            exceptions = runConcurrently(uploadClients, uploadClient -> {
+                UploadException exception = streamExceptions.get(uploadClients.indexOf(uploadClient));
+                if (exception != null)
+                    return exception;
+                try {
+                    verifyStreamed(uploadClient, backupFile.getName(), digest);
+                    return null;
+                } catch (UploadException e) {
+                    return e;
+                }
+            });
+        }
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+
+        List<UploadResult> results = new ArrayList<>();
+        for (int i = 0; i < uploadClients.size(); i++) {
+            UploadException exception = exceptions.get(i);
+            UploadResult result = new UploadResult(uploadClients.get(i), duration, exception);
+            results.add(result);
+            addUpload(events.get(i), result, result.isSuccessful() ? progress.getBytesWritten() : 0, 0);
+        }
+        return results;
+    }
+
+    /**
+     * Archive the server files into volumes, which are uploaded to all upload clients while the next volumes are written.
+     * @param backupFile the backup, whose volumes are written
+     * @param increment the increment, if the backup is incremental
+     * @return the result of every upload client
+     */
+    private List<UploadResult> archiveVolumes(File backupFile, Increment increment) {
+        // The uploads run while archiving, so their events span the whole backup
+        List<BackupEvents.Upload> events = new ArrayList<>();
+        List<Integer> retryCounts = new ArrayList<>();
+        for (UploadClient uploadClient : uploadClients) {
+            events.add(new BackupEvents.Upload());
+            events.getLast().begin();
+            retryCounts.add(uploadClient.getRetryCount());
+        }
+        long start = System.nanoTime();
+
+        VolumeUpload volumeUpload = new VolumeUpload(uploadClients, progress, deleteUploadedVolumes);
+        Map<File, FileDigest> digests = new LinkedHashMap<>();
+        Archive archive = createArchive(new VolumeOutputStream(backupFile, volumeSize, checksums, (volume, digest) -> {
+            progress.writeBytes(volume.length());
+            if (digest != null)
+                digests.put(volume, digest);
+            volumeUpload.add(volume, digest, true);
+        }));
+        try {
+            archive(archive, increment);
+        } catch (RuntimeException e) {
+            // The uploads must be aborted before the archive closes its stream, which would upload the partial volume
+            volumeUpload.abort();
+            archive.abort();
+            throw e;
+        }
+
+        // The sidecar file is uploaded after the last volume, the volumes are deleted if it can't be written
+        if (checksums) {
+            try {
+                volumeUpload.add(writeSidecar(backupFile, digests), null, false);
+            } catch (IOException e) {
+                volumeUpload.abort();
+                throw new UploadException(e);
+            } catch (RuntimeException e) {
+                volumeUpload.abort();
+                throw e;
+            }
+        }
+
+        long waitStart = System.nanoTime();
+        List<UploadException> exceptions = volumeUpload.finish();
+        progress.addPhase(Phase.UPLOAD, System.nanoTime() - waitStart);
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+
+        List<UploadResult> results = new ArrayList<>();
+        for (int i = 0; i < uploadClients.size(); i++) {
+            UploadClient uploadClient = uploadClients.get(i);
+            UploadResult result = new UploadResult(uploadClient, duration, exceptions.get(i));
+            results.add(result);
+            addUpload(events.get(i), result, volumeUpload.getBytes(i), uploadClient.getRetryCount() - retryCounts.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Count the bytes written to the upload streams of a streamed backup.
+     * @param teeOutputStream the stream to the local copy and the upload streams
+     * @return the counting stream
+     */
+    private OutputStream countUploaded(TeeOutputStream teeOutputStream) {
+        return new FilterOutputStream(teeOutputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                progress.writeBytes(len);
+                progress.uploadBytes((long) len * teeOutputStream.getOptionalCount());
+            }
+        };
+    }
+
+    /**
+     * Run a task for every upload client on its own virtual thread and wait for all tasks.
+     * If the calling thread is interrupted, the tasks are interrupted too.
+     * @param uploadClients the upload clients
+     * @param task the task, which must not throw exceptions
+     * @return the results of the tasks, in the order of the upload clients
+     */
+    private static <T> List<T> runConcurrently(List<UploadClient> uploadClients, Function<UploadClient, T> task) {
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<T>> futures = new ArrayList<>();
+            for (UploadClient uploadClient : uploadClients)
+                futures.add(executorService.submit(() -> task.apply(uploadClient)));
+
+            List<T> results = new ArrayList<>();
+            try {
+                for (Future<T> future : futures)
+                    results.add(future.get());
+            } catch (InterruptedException e) {
+                executorService.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new UploadException(e);
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new UploadException(e.getCause());
+        }
+    }
+
+    /**
+     * Log the results of the last upload and throw the exceptions of failed uploads.
+     * @throws UploadException Thrown if at least one upload failed, other failures are suppressed
+     */
+    private void throwIfUploadFailed() {
+        UploadException uploadException = null;
+
+        for (UploadResult uploadResult : uploadResults) {
+            String hostname = uploadResult.uploadClient().getHostname();
+            long millis = uploadResult.duration().toMillis();
+
+            if (uploadResult.isSuccessful()) {
+                LOGGER.debug("Upload to {} took {} ms.", hostname, millis);
+            } else {
+                LOGGER.debug("Upload to {} failed after {} ms.", hostname, millis);
+                if (uploadException == null)
+                    uploadException = new UploadException(uploadResult.exception());
+                else
+                    uploadException.addSuppressed(uploadResult.exception());
+            }
+        }
+
+        if (uploadException != null)
+            throw uploadException;
+    }
+
+    /**
+     * Create the backup archive in the configured format.
+     * @param outputStream the stream the archive is written to
+     * @return the archive
+     */
+    private Archive createArchive(OutputStream outputStream) {
+        if (archiveFormat == ArchiveFormat.ZIP) {
+            Zip zip = new Zip(outputStream, sourceDirectory, includedFiles, getExcludeFiles());
+            zip.setCompressionPolicy(compressionPolicy);
+            zip.setCompressionListener(compressionListener);
+
+            // Only the files of a copied snapshot can't be truncated by the server while they are mapped
+            if (snapshotMode == SnapshotMode.COPY)
+                zip.setMemoryMapThreshold(MEMORY_MAP_THRESHOLD);
+            return zip;
+        }
+
+        Tar tar = new Tar(outputStream, sourceDirectory, includedFiles, getExcludeFiles(), archiveFormat);
+        tar.setCompressionLevel(compressionLevel);
+        return tar;
+    }
+
+    /**
+     * Compress all included server files.
+     * @param archive the archive
+     * @param increment the increment, if the backup is incremental
+     */
+    private void archive(Archive archive, Increment increment) {
+        BackupEvents.Archive event = new BackupEvents.Archive();
+        event.begin();
+        long start = System.nanoTime();
+
+        archive.setCompressionThreads(compressionThreads);
+        archive.setLoadThrottle(loadThrottle);
+        archive.setProgress(progress);
+        if (journalChanges != null)
+            archive.setFileIndex(journalChanges.files());
+        if (increment != null)
+            archive.setFilter(increment.getFilter(archive));
+        archive.addIncludedFiles();
+        if (increment != null)
+            increment.finish(archive);
+        archive.finish();
+        addArchivePhase(event, start);
+
+        LOGGER.debug("Finished archiving file.");
+    }
+
+    /**
+     * Split the time spent archiving into searching the server directory and archiving the files,
+     * and commit the event of the archive phase.
+     * @param event the started event of the archive phase
+     * @param start the start of the archive phase in nanoseconds
+     */
+    private void addArchivePhase(BackupEvents.Archive event, long start) {
+        long nanos = System.nanoTime() - start;
+        long discoveryNanos = Math.max(0, nanos - progress.getFileNanos());
+        progress.addPhase(Phase.DISCOVERY, discoveryNanos);
+        progress.addPhase(Phase.ARCHIVE, nanos - discoveryNanos);
+
+        BackupProgress backupProgress = progress.getProgress();
+        event.files = backupProgress.filesArchived();
+        event.bytesIn = backupProgress.bytesArchived();
+        event.discoveryTime = discoveryNanos;
+        event.commit();
+    }
+
+    /**
+     * Create the search of the included server files, which searches the index of the change journal if it is complete.
+     * @param directory the server directory or the snapshot directory
+     * @return the search
+     */
+    private FileSearch createFileSearch(File directory) {
+        FileSearch fileSearch = new FileSearch(directory, includedFiles, getExcludeFiles());
+        if (journalChanges != null)
+            fileSearch.setIndex(journalChanges.files());
+        return fileSearch;
+    }
+
+    /**
+     * Get the excluded files together with the directories the backups are written to.
+     * @return the excluded files
+     */
+    private List<String> getExcludeFiles() {
+        List<String> excludes = new ArrayList<>(excludeFiles);
+        excludes.add(backupDirectory.getName());
+        if (chunkStoreDirectory != null)
+            excludes.add(chunkStoreDirectory.getName());
+        return excludes;
     }
 
 }
@@ -0,0 +1,158 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Catalog of the backups in the backup directory, which is kept in memory between backups.
+ * Only files named like backups are cataloged, so the manifest, a chunk store and unrelated files are ignored.
+ * The volumes of a split backup are cataloged as one backup.
+ * The time of a backup is read from its name, which contains the seconds since version 2.
+ * Refreshing the catalog only reads the size of backups added since the last refresh.
+ * Remote backups are read from the listing of the remote directory with {@link #parse(String, long)}.
+ */
+class BackupCatalog {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+    private static final DateTimeFormatter MINUTE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm");
+    private static final Pattern NAME_PATTERN = Pattern.compile(
+            "backup-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}(?:-\\d{2})?)(-incremental)?("
+                    + Arrays.stream(ArchiveFormat.values()).map(format -> Pattern.quote(format.getExtension()))
+                    .collect(Collectors.joining("|")) + ")(\\.\\d{3,})?");
+
+    /**
+     * Order of the backups, the oldest first.
+     */
+    static final Comparator<Artifact> ORDER = Comparator.comparing(Artifact::time).thenComparing(Artifact::name);
+
+    /**
+     * Backup in the backup directory or a remote directory.
+     * @param name the name of the backup file, without the number of a volume
+     * @param time the time of the backup
+     * @param incremental if the backup depends on the previous backups up to the last full backup
+     * @param size the size of the backup
+     * @param files the names of the backup file, or of all volumes of a split backup
+     */
+    record Artifact(String name, LocalDateTime time, boolean incremental, long size, List<String> files) {}
+
+    private final File directory;
+    private final Map<String, Long> fileSizes = new HashMap<>();
+    private final TreeSet<Artifact> artifacts = new TreeSet<>(ORDER);
+
+    /**
+     * Creates an empty catalog, which is filled by {@link #refresh()}.
+     * @param directory the backup directory
+     */
+    BackupCatalog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Read a backup from its name.
+     * A volume is read as a backup containing only the volume, use {@link #merge(List)} to join the volumes.
+     * @param name the name of the file
+     * @param size the size of the file
+     * @return the backup, or null if the file isn't named like a backup
+     */
+    static Artifact parse(String name, long size) {
+        Matcher matcher = NAME_PATTERN.matcher(name);
+        if (!matcher.matches())
+            return null;
+
+        String time = matcher.group(1);
+        try {
+            LocalDateTime dateTime = time.length() == 16 ?
+                    LocalDateTime.parse(time, MINUTE_TIME_FORMAT) : LocalDateTime.parse(time, TIME_FORMAT);
+            String backupName = matcher.group(4) == null ? name : name.substring(0, matcher.start(4));
+            return new Artifact(backupName, dateTime, matcher.group(2) != null, size, List.of(name));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Join the volumes of split backups.
+     * @param artifacts the backups read by {@link #parse(String, long)}
+     * @return the backups, every split backup with the size and files of all its volumes
+     */
+    static List<Artifact> merge(List<Artifact> artifacts) {
+        Map<String, Artifact> merged = new LinkedHashMap<>();
+        for (Artifact artifact : artifacts) {
+            merged.merge(artifact.name(), artifact, (first, second) -> {
+                List<String> files = new ArrayList<>(first.files());
+                files.addAll(second.files());
+                return new Artifact(first.name(), first.time(), first.incremental(),
+                        first.size() + second.size(), files);
+            });
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Add new backups and remove deleted backups, without reading the size of the known backups again.
+     * @throws RuntimeException Thrown if the backup directory isn't a directory
+     */
+    void refresh() {
+        String[] names = directory.list();
+        if (names == null)
+            throw new RuntimeException(directory + " isn't a directory!");
+
+        Set<String> existing = new HashSet<>(Arrays.asList(names));
+        fileSizes.keySet().retainAll(existing);
+
+        for (String name : names) {
+            if (fileSizes.containsKey(name))
+                continue;
+            File file = new File(directory, name);
+            if (parse(name, 0) != null && file.isFile())
+                fileSizes.put(name, file.length());
+        }
+
+        // Parsing the names is cheap compared to reading the sizes, so the backups are joined again every time
+        artifacts.clear();
+        artifacts.addAll(merge(fileSizes.entrySet().stream()
+                .map(entry -> parse(entry.getKey(), entry.getValue()))
+                .toList()));
+    }
+
+    /**
+     * Remove a deleted backup.
+     * @param artifact the backup
+     */
+    void remove(Artifact artifact) {
+        artifact.files().forEach(fileSizes.keySet()::remove);
+        artifacts.remove(artifact);
+    }
+
+    /**
+     * Get the files of a cataloged backup.
+     * @param artifact the backup
+     * @return the backup file, or the volumes of a split backup, in the backup directory
+     */
+    List<File> getFiles(Artifact artifact) {
+        return artifact.files().stream().map(name -> new File(directory, name)).toList();
+    }
+
+    /**
+     * Get all cataloged backups.
+     * @return the backups, the newest first
+     */
+    List<Artifact> getArtifacts() {
+        return new ArrayList<>(artifacts.descendingSet());
+    }
+}
@@ -0,0 +1,106 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the backup phases.
+ * The events cost almost nothing while they aren't recorded.
+ */
+final class BackupEvents {
+
+    private BackupEvents() {
+    }
+
+    @Name("de.kastenklicker.secureserverbackuplibrary.Backup")
+    @Label("Backup")
+    @Category("Secure Server Backup")
+    @Description("A whole backup")
+    static class Backup extends Event {
+
+        @Label("Successful")
+        boolean successful;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("de.kastenklicker.secureserverbackuplibrary.Snapshot")
+    @Label("Snapshot")
+    @Category("Secure Server Backup")
+    @Description("Linking or copying the server files into the snapshot")
+    static class Snapshot extends Event {
+
+        @Label("Linked Files")
+        int linkedFiles;
+
+        @Label("Copied Files")
+        int copiedFiles;
+    }
+
+    @Name("de.kastenklicker.secureserverbackuplibrary.Archive")
+    @Label("Archive")
+    @Category("Secure Server Backup")
+    @Description("Searching and archiving the server files")
+    static class Archive extends Event {
+
+        @Label("Files")
+        long files;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Discovery Time")
+        @Description("Time spent searching the server directory")
+        @Timespan
+        long discoveryTime;
+    }
+
+    @Name("de.kastenklicker.secureserverbackuplibrary.Upload")
+    @Label("Upload")
+    @Category("Secure Server Backup")
+    @Description("Uploading a backup with one upload client")
+    static class Upload extends Event {
+
+        @Label("Hostname")
+        String hostname;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Retries")
+        int retries;
+
+        @Label("Successful")
+        boolean successful;
+    }
+
+    @Name("de.kastenklicker.secureserverbackuplibrary.Retention")
+    @Label("Retention")
+    @Category("Secure Server Backup")
+    @Description("Deleting the oldest backups")
+    static class Retention extends Event {
+
+        @Label("Deleted Files")
+        int deletedFiles;
+
+        @Label("Deleted Bytes")
+        @DataAmount
+        long deletedBytes;
+
+        @Label("Deleted Remote Files")
+        int deletedRemoteFiles;
+    }
+}
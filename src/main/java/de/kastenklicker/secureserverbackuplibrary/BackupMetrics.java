@@ -0,0 +1,52 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metrics of one backup, passed to the metrics listener after the backup finished or failed.
+ * @param successful if the backup was created and uploaded successfully
+ * @param duration how long the whole backup took
+ * @param phases the duration of every phase, phases which didn't run are missing
+ * @param files the number of files archived
+ * @param bytesIn the bytes of the server files read into the backup
+ * @param bytesOut the size of the backup, or the size of the new files of a chunk store
+ * @param uploads the metrics of every upload client
+ */
+public record BackupMetrics(boolean successful, Duration duration, Map<Phase, Duration> phases, long files,
+                            long bytesIn, long bytesOut, List<UploadMetrics> uploads) {
+
+    /**
+     * Get the duration of a phase.
+     * @param phase the phase
+     * @return the duration, zero if the phase didn't run
+     */
+    public Duration getDuration(Phase phase) {
+        return phases.getOrDefault(phase, Duration.ZERO);
+    }
+
+    /**
+     * Get how much the backup is smaller than the server files.
+     * @return the size of the backup divided by the size of the files, 1 if no files were archived
+     */
+    public double getCompressionRatio() {
+        return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+    }
+
+    /**
+     * Get the average number of files archived per second, while searching and archiving.
+     * @return the files per second
+     */
+    public double getFilesPerSecond() {
+        return UploadMetrics.rate(files, getDuration(Phase.DISCOVERY).plus(getDuration(Phase.ARCHIVE)));
+    }
+
+    /**
+     * Get the number of retried uploads of all upload clients.
+     * @return the number of retries
+     */
+    public int getRetries() {
+        return uploads.stream().mapToInt(UploadMetrics::retries).sum();
+    }
+}
@@ -0,0 +1,14 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+/**
+ * Progress of a running backup.
+ * Uploaded bytes are counted for every upload client, so they add up to the backup size times the number of clients.
+ * @param filesScanned the number of files found by searching the server directory
+ * @param bytesScanned the size of the found files
+ * @param filesArchived the number of files written to the backup
+ * @param bytesArchived the bytes of the server files read into the backup
+ * @param bytesUploaded the bytes of the backup uploaded by all upload clients
+ */
+public record BackupProgress(long filesScanned, long bytesScanned, long filesArchived, long bytesArchived,
+                             long bytesUploaded) {
+}
@@ -0,0 +1,219 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Statistics over all backups, which can be read with JMX.
+ * Pass the statistics as metrics listener to {@link Backup#setMetricsListener(Consumer)},
+ * several backups can share the same statistics.
+ */
+public class BackupStats implements BackupStatsMXBean, Consumer<BackupMetrics> {
+
+    private static final long[] MILLIS_BOUNDS = {100, 1000, 10_000, 60_000, 600_000, 3_600_000};
+    private static final long[] RATE_BOUNDS = {1, 10, 100, 1000};
+
+    private final Histogram durationHistogram = new Histogram(MILLIS_BOUNDS);
+    private final Map<Phase, Histogram> phaseHistograms = new EnumMap<>(Phase.class);
+    private final Histogram uploadRateHistogram = new Histogram(RATE_BOUNDS);
+    private long backups;
+    private long failedBackups;
+    private long retries;
+    private long bytesIn;
+    private long bytesOut;
+    private BackupMetrics lastMetrics;
+    private ObjectName objectName;
+
+    /**
+     * Number of values in buckets with fixed upper bounds, the last bucket has no upper bound.
+     */
+    private static class Histogram {
+
+        private final long[] bounds;
+        private final long[] counts;
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        void add(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket])
+                bucket++;
+            counts[bucket]++;
+        }
+
+        Map<String, Long> getCounts() {
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < bounds.length; i++)
+                buckets.put("<=" + bounds[i], counts[i]);
+            buckets.put(">" + bounds[bounds.length - 1], counts[bounds.length]);
+            return buckets;
+        }
+    }
+
+    /**
+     * Creates empty statistics.
+     */
+    public BackupStats() {
+        for (Phase phase : Phase.values())
+            phaseHistograms.put(phase, new Histogram(MILLIS_BOUNDS));
+    }
+
+    /**
+     * Register the statistics with the platform MBean server.
+     * @param name the name distinguishing the statistics of several backups
+     * @return the name of the MBean
+     * @throws JMException Thrown if the statistics couldn't be registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        objectName = new ObjectName("de.kastenklicker.secureserverbackuplibrary:type=BackupStats,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Remove the statistics from the platform MBean server.
+     * @throws JMException Thrown if the statistics couldn't be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName == null)
+            return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    /**
+     * Add the metrics of a backup.
+     * @param backupMetrics the metrics
+     */
+    @Override
+    public synchronized void accept(BackupMetrics backupMetrics) {
+        backups++;
+        if (!backupMetrics.successful())
+            failedBackups++;
+        retries += backupMetrics.getRetries();
+        bytesIn += backupMetrics.bytesIn();
+        bytesOut += backupMetrics.bytesOut();
+        lastMetrics = backupMetrics;
+
+        durationHistogram.add(backupMetrics.duration().toMillis());
+        for (Map.Entry<Phase, Duration> phase : backupMetrics.phases().entrySet())
+            phaseHistograms.get(phase.getKey()).add(phase.getValue().toMillis());
+        for (UploadMetrics uploadMetrics : backupMetrics.uploads()) {
+            if (uploadMetrics.successful())
+                uploadRateHistogram.add(uploadMetrics.getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * Get the metrics of the last backup.
+     * @return the metrics, or null if there wasn't a backup yet
+     */
+    public synchronized BackupMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    @Override
+    public synchronized long getBackups() {
+        return backups;
+    }
+
+    @Override
+    public synchronized long getFailedBackups() {
+        return failedBackups;
+    }
+
+    @Override
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    @Override
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public synchronized long getLastDurationMillis() {
+        return lastMetrics == null ? 0 : lastMetrics.duration().toMillis();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getLastPhaseMillis() {
+        Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        if (lastMetrics != null) {
+            for (Map.Entry<Phase, Duration> phase : lastMetrics.phases().entrySet())
+                phaseMillis.put(phase.getKey().name(), phase.getValue().toMillis());
+        }
+        return phaseMillis;
+    }
+
+    @Override
+    public synchronized double getLastCompressionRatio() {
+        return lastMetrics == null ? 1 : lastMetrics.getCompressionRatio();
+    }
+
+    @Override
+    public synchronized double getLastFilesPerSecond() {
+        return lastMetrics == null ? 0 : lastMetrics.getFilesPerSecond();
+    }
+
+    @Override
+    public synchronized Map<String, Double> getLastUploadMegabytesPerSecond() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        if (lastMetrics != null) {
+            for (UploadMetrics uploadMetrics : lastMetrics.uploads())
+                rates.merge(uploadMetrics.hostname(), uploadMetrics.getMegabytesPerSecond(), Double::sum);
+        }
+        return rates;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getDurationHistogram() {
+        return durationHistogram.getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getSnapshotHistogram() {
+        return phaseHistograms.get(Phase.SNAPSHOT).getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getDiscoveryHistogram() {
+        return phaseHistograms.get(Phase.DISCOVERY).getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getArchiveHistogram() {
+        return phaseHistograms.get(Phase.ARCHIVE).getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getUploadHistogram() {
+        return phaseHistograms.get(Phase.UPLOAD).getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getRetentionHistogram() {
+        return phaseHistograms.get(Phase.RETENTION).getCounts();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getUploadRateHistogram() {
+        return uploadRateHistogram.getCounts();
+    }
+}
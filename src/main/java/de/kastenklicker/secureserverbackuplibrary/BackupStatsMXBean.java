@@ -0,0 +1,95 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link BackupStats}.
+ * Histograms map the upper bound of every bucket to the number of values in the bucket.
+ */
+public interface BackupStatsMXBean {
+
+    /**
+     * @return the number of finished backups, including failed backups
+     */
+    long getBackups();
+
+    /**
+     * @return the number of failed backups
+     */
+    long getFailedBackups();
+
+    /**
+     * @return the number of retried uploads
+     */
+    long getRetries();
+
+    /**
+     * @return the bytes of the server files read by all backups
+     */
+    long getBytesIn();
+
+    /**
+     * @return the size of all backups
+     */
+    long getBytesOut();
+
+    /**
+     * @return the duration of the last backup in milliseconds
+     */
+    long getLastDurationMillis();
+
+    /**
+     * @return the duration of every phase of the last backup in milliseconds
+     */
+    Map<String, Long> getLastPhaseMillis();
+
+    /**
+     * @return the compression ratio of the last backup
+     */
+    double getLastCompressionRatio();
+
+    /**
+     * @return the files archived per second by the last backup
+     */
+    double getLastFilesPerSecond();
+
+    /**
+     * @return the upload rate of every upload client of the last backup in MiB/s
+     */
+    Map<String, Double> getLastUploadMegabytesPerSecond();
+
+    /**
+     * @return the histogram of the backup durations in milliseconds
+     */
+    Map<String, Long> getDurationHistogram();
+
+    /**
+     * @return the histogram of the snapshot durations in milliseconds
+     */
+    Map<String, Long> getSnapshotHistogram();
+
+    /**
+     * @return the histogram of the discovery durations in milliseconds
+     */
+    Map<String, Long> getDiscoveryHistogram();
+
+    /**
+     * @return the histogram of the archive durations in milliseconds
+     */
+    Map<String, Long> getArchiveHistogram();
+
+    /**
+     * @return the histogram of the upload durations in milliseconds
+     */
+    Map<String, Long> getUploadHistogram();
+
+    /**
+     * @return the histogram of the retention durations in milliseconds
+     */
+    Map<String, Long> getRetentionHistogram();
+
+    /**
+     * @return the histogram of the upload rates of all upload clients in MiB/s
+     */
+    Map<String, Long> getUploadRateHistogram();
+}
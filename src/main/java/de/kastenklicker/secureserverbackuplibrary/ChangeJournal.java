@@ -0,0 +1,527 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journal of the changes of the server files, so a backup doesn't need to walk the server directory.
+ * A {@link WatchService} records created, modified and deleted files while the server runs.
+ * A reconciliation scan compares all files with the index after the start and periodically,
+ * to catch the changes the watch service missed, for example while the journal wasn't running.
+ * The index of all files and the files changed since the last backup are persisted in the journal file,
+ * so the changes made before a restart aren't lost.
+ * Until the first reconciliation scan finished, after the watch service missed changes,
+ * and while a directory can't be watched, the journal isn't complete and backups walk the server directory as before.
+ * Directories, which can't be watched, are only tried again after a restart of the journal.
+ * Use {@link Backup#setChangeJournal(ChangeJournal)} to read the server files from the journal.
+ */
+public class ChangeJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+    private static final Set<FileVisitOption> FOLLOW_LINKS = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+
+    /**
+     * Size and modification time of an indexed file.
+     * @param size size in bytes
+     * @param lastModified last modification time in milliseconds
+     */
+    private record FileState(long size, long lastModified) {}
+
+    /**
+     * Files of the server directory at the start of a backup.
+     * @param files the paths of all files relative to the server directory, sorted
+     * @param changedFiles the paths of the files changed since the last backup
+     * @param sequence the number of the last recorded change
+     */
+    record Changes(List<String> files, Set<String> changedFiles, long sequence) {}
+
+    private final Path serverPath;
+    private final File journalFile;
+    private final Object scanLock = new Object();
+    private final TreeMap<String, FileState> files = new TreeMap<>();
+    private final Map<String, Long> changedFiles = new HashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Set<Path> watchedPaths = new HashSet<>();
+    private final Set<Path> unwatchablePaths = new HashSet<>();
+    private final Set<String> changedDuringScan = new HashSet<>();
+    private final Set<String> deletedDuringScan = new HashSet<>();
+    private Duration reconciliationInterval = Duration.ofHours(1);
+    private List<String> excludeFiles = List.of();
+    private volatile List<PathMatcher> excludeMatchers = List.of();
+    private WatchService watchService;
+    private ScheduledExecutorService scheduler;
+    private long sequence;
+    private boolean complete;
+    private boolean scanning;
+    private boolean missedDuringScan;
+
+    /**
+     * Creates the journal, which doesn't record changes until it is started.
+     * @param serverDirectory the directory of the server files, the same as the one of the backup
+     * @param journalFile the file the journal is persisted in
+     */
+    public ChangeJournal(File serverDirectory, File journalFile) {
+        this.serverPath = serverDirectory.toPath().toAbsolutePath().normalize();
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Set how often all files are compared with the index. Must be called before the journal is started.
+     * @param reconciliationInterval the interval, 1 hour by default
+     */
+    public void setReconciliationInterval(Duration reconciliationInterval) {
+        this.reconciliationInterval = reconciliationInterval;
+    }
+
+    /**
+     * Set the files, which aren't recorded, for example the backup directory inside the server directory.
+     * Files of the index, which are excluded now, are removed and their directories aren't watched anymore.
+     * {@link Backup#setChangeJournal(ChangeJournal)} sets the files excluded from the backup.
+     * @param excludeFiles glob paths relative to the server directory, like the excluded files of the backup
+     */
+    public synchronized void setExcludeFiles(List<String> excludeFiles) {
+        if (excludeFiles.equals(this.excludeFiles))
+            return;
+        this.excludeFiles = List.copyOf(excludeFiles);
+        excludeMatchers = FileSearch.getMatchers(excludeFiles);
+        files.keySet().removeIf(this::isExcluded);
+        changedFiles.keySet().removeIf(this::isExcluded);
+        unwatchablePaths.removeIf(directory -> isExcluded(getName(directory)));
+        watchedDirectories.entrySet().removeIf(watchedDirectory -> {
+            if (!isExcluded(getName(watchedDirectory.getValue())))
+                return false;
+            watchedDirectory.getKey().cancel();
+            watchedPaths.remove(watchedDirectory.getValue());
+            return true;
+        });
+        save();
+    }
+
+    /**
+     * Load the persisted journal, start watching the server directory and schedule the reconciliation scans.
+     * The first scan starts immediately in the background.
+     * @throws ZipException Wrapped IOException
+     */
+    public synchronized void start() {
+        if (watchService != null)
+            throw new IllegalStateException("The journal is already started.");
+
+        try {
+            load();
+            watchService = serverPath.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+
+        Thread.ofPlatform().daemon().name("SecureServerBackup-ChangeJournal").start(this::watch);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("SecureServerBackup-Reconciliation").factory());
+        scheduler.scheduleWithFixedDelay(this::reconcileLogged, 0, reconciliationInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compare all files of the server directory with the index and record the differences as changes.
+     * Directories, which aren't watched yet, are watched.
+     * @throws ZipException Wrapped IOException
+     */
+    public void reconcile() {
+        synchronized (scanLock) {
+            synchronized (this) {
+                scanning = true;
+                missedDuringScan = false;
+                changedDuringScan.clear();
+                deletedDuringScan.clear();
+            }
+
+            long start = System.nanoTime();
+            Map<String, FileState> foundFiles = new HashMap<>();
+            try {
+                Files.walkFileTree(serverPath, FOLLOW_LINKS, Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (!dir.equals(serverPath) && isExcluded(getName(dir)))
+                            return FileVisitResult.SKIP_SUBTREE;
+                        watch(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        String name = getName(file);
+                        if (attrs.isRegularFile() && !isExcluded(name))
+                            foundFiles.put(name, new FileState(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        LOGGER.warn("Skipping {} in the change journal, it can't be read.", file, exc);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                synchronized (this) {
+                    scanning = false;
+                }
+                throw new ZipException(e);
+            }
+
+            int changes = 0;
+            synchronized (this) {
+                scanning = false;
+
+                // Files changed during the scan are already recorded by the watch service
+                for (Map.Entry<String, FileState> foundFile : foundFiles.entrySet()) {
+                    String name = foundFile.getKey();
+                    if (!isChangedDuringScan(name)
+                            && !foundFile.getValue().equals(files.put(name, foundFile.getValue()))) {
+                        changedFiles.put(name, ++sequence);
+                        changes++;
+                    }
+                }
+                files.keySet().removeIf(name -> !foundFiles.containsKey(name) && !isChangedDuringScan(name));
+                changedDuringScan.clear();
+                deletedDuringScan.clear();
+                complete = watchService != null && !missedDuringScan && unwatchablePaths.isEmpty();
+                save();
+            }
+            LOGGER.debug("Reconciled {} files with {} changes in {} ms.", foundFiles.size(), changes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Check if the watch service recorded a change of a file during the scan,
+     * so the scan may have found an outdated state of the file.
+     * @param name the path of the file relative to the server directory
+     * @return true, if the file or one of its directories changed during the scan
+     */
+    private boolean isChangedDuringScan(String name) {
+        if (changedDuringScan.contains(name))
+            return true;
+        for (int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1)) {
+            if (deletedDuringScan.contains(name.substring(0, slash)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if a file or one of its directories matches the excluded files.
+     * @param name the path of the file relative to the server directory
+     * @return true, if the file isn't recorded
+     */
+    private boolean isExcluded(String name) {
+        List<PathMatcher> excludeMatchers = this.excludeMatchers;
+        if (excludeMatchers.isEmpty())
+            return false;
+        for (Path path = Path.of(name); path != null; path = path.getParent()) {
+            if (FileSearch.matches(excludeMatchers, path))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop recording changes and persist the journal.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+
+        synchronized (this) {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Couldn't close the watch service.", e);
+                }
+                watchService = null;
+            }
+            watchedDirectories.clear();
+            watchedPaths.clear();
+            unwatchablePaths.clear();
+            complete = false;
+            save();
+        }
+    }
+
+    /**
+     * Get the files of the server directory, if the journal recorded all changes.
+     * @return the files and the changes since the last backup, or null if the journal isn't complete
+     */
+    synchronized Changes getChanges() {
+        if (!complete)
+            return null;
+        return new Changes(List.copyOf(files.keySet()), Set.copyOf(changedFiles.keySet()), sequence);
+    }
+
+    /**
+     * Forget the changes, which were backed up. Changes recorded after the backup started are kept.
+     * @param changes the changes at the start of the backup
+     */
+    synchronized void backedUp(Changes changes) {
+        changedFiles.values().removeIf(changeSequence -> changeSequence <= changes.sequence());
+        save();
+    }
+
+    /**
+     * Record the events of the watch service until it is closed.
+     */
+    private void watch() {
+        WatchService watchService;
+        synchronized (this) {
+            watchService = this.watchService;
+        }
+
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                synchronized (this) {
+                    Path directory = watchedDirectories.get(watchKey);
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            missed("The watch service missed changes.");
+                        else if (directory != null)
+                            changed(directory.resolve((Path) event.context()), event.kind());
+                    }
+                    if (!watchKey.reset())
+                        watchedPaths.remove(watchedDirectories.remove(watchKey));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching {}.", serverPath);
+        }
+    }
+
+    /**
+     * Record a changed file or directory.
+     * @param path the changed path
+     * @param kind the kind of the change
+     */
+    private void changed(Path path, WatchEvent.Kind<?> kind) {
+        String name = getName(path);
+        if (isExcluded(name))
+            return;
+        if (scanning)
+            changedDuringScan.add(name);
+
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // The scan may have found the files of a deleted directory, before it was deleted
+            files.remove(name);
+            files.subMap(name + "/", name + "/" + Character.MAX_VALUE).clear();
+            unwatchablePaths.removeIf(directory -> directory.startsWith(path));
+            if (scanning)
+                deletedDuringScan.add(name);
+            return;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Already deleted again, the delete event follows
+            return;
+        }
+
+        if (attributes.isDirectory()) {
+            // Files created before the directory is watched don't have events
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+                addDirectory(path);
+        } else if (attributes.isRegularFile()) {
+            files.put(name, new FileState(attributes.size(), attributes.lastModifiedTime().toMillis()));
+            changedFiles.put(name, ++sequence);
+        }
+    }
+
+    /**
+     * Watch a new directory and record all its files as changes.
+     * @param directory the directory
+     */
+    private void addDirectory(Path directory) {
+        try {
+            Files.walkFileTree(directory, FOLLOW_LINKS, Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (isExcluded(getName(dir)))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    watch(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String name = getName(file);
+                    if (attrs.isRegularFile() && !isExcluded(name)) {
+                        files.put(name, new FileState(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        changedFiles.put(name, ++sequence);
+                        if (scanning)
+                            changedDuringScan.add(name);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            missed("Couldn't add the new directory " + directory + ".");
+        }
+    }
+
+    /**
+     * Watch a directory, if it isn't watched yet. A directory, which can't be watched, isn't tried again,
+     * so the journal doesn't scan the server directory again and again.
+     * @param directory the directory
+     */
+    private synchronized void watch(Path directory) {
+        if (watchService == null || watchedPaths.contains(directory) || unwatchablePaths.contains(directory))
+            return;
+
+        try {
+            watchedDirectories.put(register(directory), directory);
+            watchedPaths.add(directory);
+        } catch (IOException e) {
+            unwatchablePaths.add(directory);
+            LOGGER.warn("Couldn't watch {}, the operating system may limit the watched directories. "
+                    + "The change journal isn't complete until it is restarted.", directory, e);
+            complete = false;
+        } catch (ClosedWatchServiceException e) {
+            LOGGER.debug("The journal was closed while watching {}.", directory);
+        }
+    }
+
+    /**
+     * Register a directory at the watch service.
+     * @param directory the directory
+     * @return the watch key of the directory
+     * @throws IOException if the directory can't be watched
+     */
+    WatchKey register(Path directory) throws IOException {
+        return directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Mark the journal as incomplete until the next reconciliation scan.
+     * The scan is started now, unless a scan is running, which then leaves the journal incomplete.
+     * @param reason the reason, which is logged
+     */
+    private synchronized void missed(String reason) {
+        LOGGER.warn("{} The change journal is reconciled.", reason);
+        complete = false;
+        if (scanning) {
+            missedDuringScan = true;
+            return;
+        }
+
+        if (scheduler == null)
+            return;
+        try {
+            scheduler.execute(this::reconcileLogged);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("The journal is closed, it isn't reconciled.");
+        }
+    }
+
+    /**
+     * Reconcile the journal and log failures, so the scheduled scans continue.
+     */
+    private void reconcileLogged() {
+        try {
+            reconcile();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Couldn't reconcile the change journal.", e);
+        }
+    }
+
+    /**
+     * Get the path of a file relative to the server directory.
+     * @param path the path of the file
+     * @return the relative path separated by slashes
+     */
+    private String getName(Path path) {
+        return serverPath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Load the persisted journal, the changes since its last save are found by the first scan.
+     * @throws IOException file exceptions or invalid journal
+     */
+    private void load() throws IOException {
+        if (!journalFile.exists())
+            return;
+
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                try {
+                    if (!parts[0].equals("F") && !parts[0].equals("C"))
+                        throw new IOException("Invalid journal line: " + line);
+                    files.put(parts[3], new FileState(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                    if (parts[0].equals("C"))
+                        changedFiles.put(parts[3], sequence);
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Invalid journal line: " + line, e);
+                }
+            }
+        }
+        LOGGER.debug("Loaded {} files with {} changes from the change journal.", files.size(), changedFiles.size());
+    }
+
+    /**
+     * Persist the journal. The journal file is replaced at once, so a crash doesn't leave a partial journal.
+     */
+    private void save() {
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, FileState> file : files.entrySet()) {
+                    FileState fileState = file.getValue();
+                    writer.write((changedFiles.containsKey(file.getKey()) ? "C\t" : "F\t") + fileState.size() + "\t"
+                            + fileState.lastModified() + "\t" + file.getKey() + "\n");
+                }
+            }
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't save the change journal.", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import de.kastenklicker.secureserverbackuplibrary.upload.FileDigest;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+
+/**
+ * Stream computing the checksums of an archive while it is written, so the archive doesn't need to be read again.
+ */
+class ChecksumOutputStream extends FilterOutputStream {
+
+    private final MessageDigest messageDigest;
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    /**
+     * Creates the stream.
+     * @param outputStream the stream the archive is written to
+     */
+    ChecksumOutputStream(OutputStream outputStream) {
+        super(outputStream);
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM supports SHA-256.", e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        messageDigest.update(b, off, len);
+        crc.update(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Get the checksums of all written bytes. Must be called once after the archive was written.
+     * @return the checksums
+     */
+    FileDigest getDigest() {
+        return new FileDigest(HexFormat.of().formatHex(messageDigest.digest()), crc.getValue(), size);
+    }
+}
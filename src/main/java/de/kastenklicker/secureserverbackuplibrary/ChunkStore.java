@@ -0,0 +1,573 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deduplicating store of backups.
+ * Files are split into content defined chunks and every unique chunk is stored once, identified by its SHA-256 hash.
+ * Chunks are appended to pack files, every pack file has an index file listing its chunks.
+ * A backup is a snapshot file listing the chunks of every file, so a backup only adds the chunks,
+ * which aren't part of any previous backup.
+ * <p>
+ * All files are written once and never changed, so a copy of the store is updated by uploading the files it misses.
+ * Chunks, which aren't used by any snapshot anymore, aren't removed.
+ */
+public class ChunkStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    static final String PACK_EXTENSION = ".pack";
+    static final String INDEX_EXTENSION = ".idx";
+    static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+    private static final int INDEX_MAGIC = 0x53534249;
+    private static final int SNAPSHOT_MAGIC = 0x53534253;
+    private static final int VERSION = 1;
+    private static final long MAX_PACK_SIZE = 32 * 1024 * 1024;
+
+    private final File directory;
+    private Map<ChunkId, ChunkLocation> chunks;
+
+    /**
+     * SHA-256 hash of a chunk.
+     */
+    record ChunkId(long a, long b, long c, long d) {
+
+        static ChunkId of(byte[] digest) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(digest);
+            return new ChunkId(byteBuffer.getLong(), byteBuffer.getLong(), byteBuffer.getLong(), byteBuffer.getLong());
+        }
+
+        static ChunkId read(DataInput dataInput) throws IOException {
+            return new ChunkId(dataInput.readLong(), dataInput.readLong(), dataInput.readLong(), dataInput.readLong());
+        }
+
+        void write(DataOutput dataOutput) throws IOException {
+            dataOutput.writeLong(a);
+            dataOutput.writeLong(b);
+            dataOutput.writeLong(c);
+            dataOutput.writeLong(d);
+        }
+    }
+
+    /**
+     * Position of a chunk in a pack file.
+     * @param pack name of the pack file
+     * @param offset offset of the chunk in the pack file
+     * @param length stored length of the chunk
+     * @param rawLength length of the chunk, the chunk is deflated if it differs from the stored length
+     */
+    record ChunkLocation(String pack, long offset, int length, int rawLength) {}
+
+    /**
+     * File of a snapshot.
+     * @param name path of the file relative to the server directory
+     * @param size size in bytes
+     * @param lastModified last modification time in milliseconds
+     * @param chunks the chunks of the file in order
+     */
+    record FileRecord(String name, long size, long lastModified, List<ChunkId> chunks) {}
+
+    /**
+     * Constructor for ChunkStore class.
+     * @param directory the directory of the store, which is created if it doesn't exist
+     */
+    public ChunkStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the names of all snapshots in the store.
+     * @return the snapshot names in alphabetical order, which is chronological for backups
+     */
+    public List<String> getSnapshots() {
+        String[] names = directory.list((dir, name) -> name.endsWith(SNAPSHOT_EXTENSION));
+        if (names == null)
+            return List.of();
+
+        return Arrays.stream(names)
+                .map(name -> name.substring(0, name.length() - SNAPSHOT_EXTENSION.length()))
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * Get all files of the store in the order they are uploaded.
+     * Every pack file comes before its index file and all snapshots come last,
+     * so a copy of the store never refers to chunks, which weren't uploaded yet.
+     * @return the pack, index and snapshot files
+     */
+    List<File> getFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(PACK_EXTENSION)
+                || name.endsWith(INDEX_EXTENSION));
+        List<File> storeFiles = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        storeFiles.sort(Comparator
+                .comparing((File file) -> file.getName().substring(0, file.getName().lastIndexOf('.')))
+                .thenComparing(file -> file.getName().endsWith(INDEX_EXTENSION)));
+        for (String snapshotName : getSnapshots())
+            storeFiles.add(new File(directory, snapshotName + SNAPSHOT_EXTENSION));
+        return storeFiles;
+    }
+
+    /**
+     * Restore a snapshot into a directory. Existing files are overwritten.
+     * @param snapshotName the name of the snapshot
+     * @param targetDirectory the directory the server files are restored to
+     * @throws RestoreException Thrown if chunks are missing or corrupt, or the files can't be written
+     */
+    public void restore(String snapshotName, File targetDirectory) {
+        LOGGER.debug("Restoring snapshot {}.", snapshotName);
+        Map<String, RandomAccessFile> packs = new HashMap<>();
+
+        try {
+            List<FileRecord> fileRecords = readSnapshot(snapshotName);
+            Map<ChunkId, ChunkLocation> chunks = getChunks();
+            Path targetPath = targetDirectory.toPath().toAbsolutePath().normalize();
+            MessageDigest messageDigest = newDigest();
+            Inflater inflater = new Inflater();
+
+            for (FileRecord fileRecord : fileRecords) {
+                Path filePath = targetPath.resolve(fileRecord.name()).normalize();
+                if (!filePath.startsWith(targetPath))
+                    throw new IOException("File " + fileRecord.name() + " is outside of the target directory.");
+                Files.createDirectories(filePath.getParent());
+
+                try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(filePath.toFile()))) {
+                    for (ChunkId chunkId : fileRecord.chunks()) {
+                        ChunkLocation location = chunks.get(chunkId);
+                        if (location == null)
+                            throw new IOException("Chunk of " + fileRecord.name() + " is missing.");
+
+                        byte[] data = readChunk(packs, location, inflater);
+                        if (!ChunkId.of(messageDigest.digest(data)).equals(chunkId))
+                            throw new IOException("Chunk of " + fileRecord.name() + " is corrupt.");
+                        outputStream.write(data);
+                    }
+                }
+                filePath.toFile().setLastModified(fileRecord.lastModified());
+            }
+            inflater.end();
+        } catch (IOException e) {
+            throw new RestoreException(e);
+        } finally {
+            for (RandomAccessFile pack : packs.values()) {
+                try {
+                    pack.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Couldn't close pack file.", e);
+                }
+            }
+        }
+
+        LOGGER.debug("Restored snapshot {}.", snapshotName);
+    }
+
+    /**
+     * Start a new snapshot.
+     * @param snapshotName the name of the snapshot
+     * @return the writer of the snapshot
+     * @throws IOException file exceptions
+     */
+    SnapshotWriter createSnapshot(String snapshotName) throws IOException {
+        Files.createDirectories(directory.toPath());
+        if (new File(directory, snapshotName + SNAPSHOT_EXTENSION).exists())
+            throw new IOException("Snapshot " + snapshotName + " already exists.");
+        return new SnapshotWriter(snapshotName);
+    }
+
+    /**
+     * Get the location of every chunk of the store, the index files are read on the first call.
+     * @return the chunk locations
+     * @throws IOException file exceptions or invalid index file
+     */
+    private Map<ChunkId, ChunkLocation> getChunks() throws IOException {
+        if (chunks != null)
+            return chunks;
+
+        chunks = new HashMap<>();
+        File[] indexFiles = directory.listFiles((dir, name) -> name.endsWith(INDEX_EXTENSION));
+        if (indexFiles == null)
+            return chunks;
+
+        for (File indexFile : indexFiles) {
+            String pack = indexFile.getName().replace(INDEX_EXTENSION, PACK_EXTENSION);
+            try (DataInputStream dataInputStream = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (dataInputStream.readInt() != INDEX_MAGIC || dataInputStream.readInt() != VERSION)
+                    throw new IOException(indexFile.getName() + " isn't a valid index file.");
+
+                int count = dataInputStream.readInt();
+                for (int i = 0; i < count; i++) {
+                    ChunkId chunkId = ChunkId.read(dataInputStream);
+                    chunks.put(chunkId, new ChunkLocation(pack, dataInputStream.readLong(),
+                            dataInputStream.readInt(), dataInputStream.readInt()));
+                }
+            }
+        }
+        LOGGER.debug("Loaded {} chunks from {} index files.", chunks.size(), indexFiles.length);
+
+        return chunks;
+    }
+
+    /**
+     * Read the files of a snapshot.
+     * @param snapshotName the name of the snapshot
+     * @return the files
+     * @throws IOException file exceptions or invalid snapshot file
+     */
+    private List<FileRecord> readSnapshot(String snapshotName) throws IOException {
+        File snapshotFile = new File(directory, snapshotName + SNAPSHOT_EXTENSION);
+        List<FileRecord> fileRecords = new ArrayList<>();
+
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(snapshotFile))))) {
+            if (dataInputStream.readInt() != SNAPSHOT_MAGIC || dataInputStream.readInt() != VERSION)
+                throw new IOException(snapshotFile.getName() + " isn't a valid snapshot file.");
+
+            while (dataInputStream.readBoolean()) {
+                String name = dataInputStream.readUTF();
+                long size = dataInputStream.readLong();
+                long lastModified = dataInputStream.readLong();
+                int count = dataInputStream.readInt();
+                List<ChunkId> chunkIds = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                    chunkIds.add(ChunkId.read(dataInputStream));
+                fileRecords.add(new FileRecord(name, size, lastModified, chunkIds));
+            }
+        }
+
+        return fileRecords;
+    }
+
+    /**
+     * Read a chunk from its pack file.
+     * @param packs the already opened pack files
+     * @param location the location of the chunk
+     * @param inflater inflater for deflated chunks
+     * @return the chunk
+     * @throws IOException file exceptions or corrupt chunk
+     */
+    private byte[] readChunk(Map<String, RandomAccessFile> packs, ChunkLocation location, Inflater inflater)
+            throws IOException {
+        RandomAccessFile pack = packs.get(location.pack());
+        if (pack == null) {
+            pack = new RandomAccessFile(new File(directory, location.pack()), "r");
+            packs.put(location.pack(), pack);
+        }
+
+        byte[] data = new byte[location.length()];
+        pack.seek(location.offset());
+        pack.readFully(data);
+        if (location.length() == location.rawLength())
+            return data;
+
+        byte[] rawData = new byte[location.rawLength()];
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            if (inflater.inflate(rawData) != rawData.length || !inflater.finished())
+                throw new IOException("Chunk in " + location.pack() + " is corrupt.");
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk in " + location.pack() + " is corrupt.", e);
+        }
+        return rawData;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writer adding the files of a snapshot to the store.
+     * New chunks are written to pack files, which are visible to the store once their index file was written.
+     * A snapshot, which can't be finished, must be aborted with {@link #abort()} to remove its pack files.
+     */
+    class SnapshotWriter {
+
+        private final String snapshotName;
+        private final Map<String, FileRecord> previousFiles = new HashMap<>();
+        private final List<FileRecord> fileRecords = new ArrayList<>();
+        private final List<File> newFiles = new ArrayList<>();
+        private final Chunker chunker = new Chunker();
+        private final MessageDigest messageDigest = newDigest();
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final byte[] deflateBuffer = new byte[Chunker.MAX_SIZE + 1024];
+
+        private File packFile;
+        private OutputStream packOutputStream;
+        private Map<ChunkId, ChunkLocation> packChunks = new LinkedHashMap<>();
+        private long packSize;
+        private long newChunkBytes;
+
+        private SnapshotWriter(String snapshotName) throws IOException {
+            this.snapshotName = snapshotName;
+
+            // Files, which didn't change since the last snapshot, aren't read again
+            List<String> snapshots = getSnapshots();
+            if (!snapshots.isEmpty()) {
+                for (FileRecord fileRecord : readSnapshot(snapshots.getLast()))
+                    previousFiles.put(fileRecord.name(), fileRecord);
+            }
+        }
+
+        /**
+         * Add a file to the snapshot.
+         * The file is read up to the size it had when it was added.
+         * @param file the file
+         * @param name path of the file relative to the server directory
+         * @throws IOException file exceptions
+         */
+        void add(File file, String name) throws IOException {
+            long size = file.length();
+            long lastModified = file.lastModified();
+            Map<ChunkId, ChunkLocation> chunks = getChunks();
+
+            FileRecord previous = previousFiles.get(name);
+            if (previous != null && previous.size() == size && previous.lastModified() == lastModified
+                    && chunks.keySet().containsAll(previous.chunks())) {
+                fileRecords.add(previous);
+                return;
+            }
+
+            List<ChunkId> chunkIds = new ArrayList<>();
+            try (InputStream inputStream = new FileInputStream(file)) {
+                InputStream limitedInputStream = new BoundedInputStream(inputStream, size);
+                chunker.split(limitedInputStream, (buf, off, len) -> {
+                    messageDigest.update(buf, off, len);
+                    ChunkId chunkId = ChunkId.of(messageDigest.digest());
+                    if (!chunks.containsKey(chunkId) && !packChunks.containsKey(chunkId))
+                        writeChunk(chunkId, buf, off, len);
+                    chunkIds.add(chunkId);
+                });
+            }
+            fileRecords.add(new FileRecord(name, size, lastModified, chunkIds));
+        }
+
+        /**
+         * Write the last pack file and the snapshot file.
+         * @return the files added to the store
+         * @throws IOException file exceptions
+         */
+        List<File> finish() throws IOException {
+            deflater.end();
+            closePack();
+
+            File snapshotFile = new File(directory, snapshotName + SNAPSHOT_EXTENSION);
+            File tempFile = new File(directory, snapshotFile.getName() + ".tmp");
+            try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(tempFile))))) {
+                dataOutputStream.writeInt(SNAPSHOT_MAGIC);
+                dataOutputStream.writeInt(VERSION);
+                for (FileRecord fileRecord : fileRecords) {
+                    dataOutputStream.writeBoolean(true);
+                    dataOutputStream.writeUTF(fileRecord.name());
+                    dataOutputStream.writeLong(fileRecord.size());
+                    dataOutputStream.writeLong(fileRecord.lastModified());
+                    dataOutputStream.writeInt(fileRecord.chunks().size());
+                    for (ChunkId chunkId : fileRecord.chunks())
+                        chunkId.write(dataOutputStream);
+                }
+                dataOutputStream.writeBoolean(false);
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            newFiles.add(snapshotFile);
+
+            LOGGER.debug("Snapshot {} contains {} files, {} bytes of new chunks were stored.",
+                    snapshotName, fileRecords.size(), newChunkBytes);
+            return newFiles;
+        }
+
+        /**
+         * Remove the pack and index files written by this snapshot, after it couldn't be finished.
+         * No snapshot uses their chunks, so they would never be uploaded otherwise.
+         */
+        void abort() {
+            deflater.end();
+            if (packOutputStream != null) {
+                try {
+                    packOutputStream.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Couldn't close pack file.", e);
+                }
+                packOutputStream = null;
+                delete(packFile);
+            }
+
+            // The index files are deleted before their pack files
+            List<String> packs = new ArrayList<>();
+            for (File newFile : newFiles.reversed()) {
+                if (newFile.getName().endsWith(PACK_EXTENSION))
+                    packs.add(newFile.getName());
+                delete(newFile);
+            }
+            if (chunks != null)
+                chunks.values().removeIf(location -> packs.contains(location.pack()));
+            newFiles.clear();
+
+            for (String pack : packs)
+                delete(new File(directory, pack.replace(PACK_EXTENSION, INDEX_EXTENSION) + ".tmp"));
+            delete(new File(directory, snapshotName + SNAPSHOT_EXTENSION + ".tmp"));
+            LOGGER.debug("Aborted snapshot {}, removed {} pack files.", snapshotName, packs.size());
+        }
+
+        private static void delete(File file) {
+            if (file.exists() && !file.delete())
+                LOGGER.warn("Couldn't delete {} of an aborted snapshot.", file.getName());
+        }
+
+        /**
+         * Append a new chunk to the current pack file, deflated if that makes it smaller.
+         */
+        private void writeChunk(ChunkId chunkId, byte[] buf, int off, int len) throws IOException {
+            if (packOutputStream == null)
+                openPack();
+
+            deflater.reset();
+            deflater.setInput(buf, off, len);
+            deflater.finish();
+            int compressedLength = deflater.deflate(deflateBuffer);
+
+            ChunkLocation location;
+            if (deflater.finished() && compressedLength < len) {
+                packOutputStream.write(deflateBuffer, 0, compressedLength);
+                location = new ChunkLocation(null, packSize, compressedLength, len);
+            } else {
+                packOutputStream.write(buf, off, len);
+                location = new ChunkLocation(null, packSize, len, len);
+            }
+            packSize += location.length();
+            newChunkBytes += location.length();
+            packChunks.put(chunkId, location);
+
+            if (packSize >= MAX_PACK_SIZE)
+                closePack();
+        }
+
+        private void openPack() throws IOException {
+            packFile = File.createTempFile("pack", ".tmp", directory);
+            packOutputStream = new BufferedOutputStream(new FileOutputStream(packFile), 64 * 1024);
+            packChunks = new LinkedHashMap<>();
+            packSize = 0;
+        }
+
+        /**
+         * Name the current pack file after the hash of its chunks and write its index file.
+         * The index file is written last, so an incomplete pack file is never used.
+         */
+        private void closePack() throws IOException {
+            if (packOutputStream == null)
+                return;
+            packOutputStream.close();
+            packOutputStream = null;
+
+            DataOutputStream digestOutputStream = new DataOutputStream(
+                    new DigestOutputStream(OutputStream.nullOutputStream(), messageDigest));
+            for (ChunkId chunkId : packChunks.keySet())
+                chunkId.write(digestOutputStream);
+            String name = "pack-" + HexFormat.of().formatHex(messageDigest.digest(), 0, 16);
+
+            File namedPackFile = new File(directory, name + PACK_EXTENSION);
+            Files.move(packFile.toPath(), namedPackFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            newFiles.add(namedPackFile);
+
+            File indexFile = new File(directory, name + INDEX_EXTENSION);
+            File tempFile = new File(directory, indexFile.getName() + ".tmp");
+            try (DataOutputStream dataOutputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dataOutputStream.writeInt(INDEX_MAGIC);
+                dataOutputStream.writeInt(VERSION);
+                dataOutputStream.writeInt(packChunks.size());
+                for (Map.Entry<ChunkId, ChunkLocation> packChunk : packChunks.entrySet()) {
+                    ChunkLocation location = packChunk.getValue();
+                    packChunk.getKey().write(dataOutputStream);
+                    dataOutputStream.writeLong(location.offset());
+                    dataOutputStream.writeInt(location.length());
+                    dataOutputStream.writeInt(location.rawLength());
+                }
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            // The chunks are only known to the store once their index file exists
+            for (Map.Entry<ChunkId, ChunkLocation> packChunk : packChunks.entrySet()) {
+                ChunkLocation location = packChunk.getValue();
+                chunks.put(packChunk.getKey(), new ChunkLocation(namedPackFile.getName(),
+                        location.offset(), location.length(), location.rawLength()));
+            }
+            packChunks = new LinkedHashMap<>();
+            newFiles.add(indexFile);
+        }
+    }
+
+    /**
+     * Stream ending after a number of bytes.
+     */
+    private static class BoundedInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private long remaining;
+
+        private BoundedInputStream(InputStream inputStream, long limit) {
+            this.inputStream = inputStream;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0)
+                return -1;
+            int b = inputStream.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0)
+                return -1;
+            int read = inputStream.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0)
+                remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Content defined chunking with the FastCDC gear hash.
+ * Chunk boundaries depend only on the bytes around them, so inserting or changing a few bytes
+ * changes only the chunks around the change, while all other chunks stay the same.
+ */
+class Chunker {
+
+    static final int MIN_SIZE = 4 * 1024;
+    static final int AVERAGE_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 64 * 1024;
+
+    // Stricter mask below the average size and looser mask above it, which narrows the chunk size distribution
+    private static final long MASK_SMALL = mask(Integer.numberOfTrailingZeros(AVERAGE_SIZE) + 1);
+    private static final long MASK_LARGE = mask(Integer.numberOfTrailingZeros(AVERAGE_SIZE) - 1);
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, the chunk boundaries must be the same on every run
+        SplittableRandom random = new SplittableRandom(0x5EC05E8BAC4BL);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    /**
+     * Action for every chunk.
+     */
+    interface ChunkConsumer {
+        /**
+         * Accept a chunk. The buffer is reused for the next chunk.
+         * @param buf buffer containing the chunk
+         * @param off offset of the chunk
+         * @param len length of the chunk
+         * @throws IOException exceptions of the consumer
+         */
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    private final byte[] buf = new byte[MAX_SIZE * 2];
+
+    /**
+     * Split a stream into chunks.
+     * @param inputStream the stream, which isn't closed
+     * @param consumer action for every chunk
+     * @throws IOException stream exceptions
+     */
+    void split(InputStream inputStream, ChunkConsumer consumer) throws IOException {
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+
+        while (true) {
+
+            // Fill the buffer, so it contains at least one chunk of maximum size
+            if (!eof && end - start < MAX_SIZE) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                int len = inputStream.readNBytes(buf, end, buf.length - end);
+                end += len;
+                eof = end < buf.length;
+            }
+
+            if (start == end)
+                return;
+
+            int len = cut(buf, start, end - start);
+            consumer.accept(buf, start, len);
+            start += len;
+        }
+    }
+
+    /**
+     * Find the end of the next chunk.
+     * @param buf the data
+     * @param off offset of the chunk
+     * @param len length of the available data
+     * @return length of the chunk
+     */
+    static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE)
+            return len;
+
+        int normalSize = Math.min(len, AVERAGE_SIZE);
+        int maxSize = Math.min(len, MAX_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((hash & MASK_SMALL) == 0)
+                return i + 1;
+        }
+
+        for (; i < maxSize; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((hash & MASK_LARGE) == 0)
+                return i + 1;
+        }
+
+        return maxSize;
+    }
+
+    /**
+     * Create a mask of the highest bits, which depend on the most recent bytes.
+     * @param bits number of bits
+     * @return the mask
+     */
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+}
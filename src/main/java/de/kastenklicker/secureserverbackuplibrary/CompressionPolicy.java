@@ -0,0 +1,154 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Policy deciding how every file is compressed.
+ * Files with a configured extension use the level of their extension. For all other files a sample
+ * from the middle of the file is compressed, files which barely shrink are stored uncompressed.
+ */
+public class CompressionPolicy {
+
+    /**
+     * Level of files, which are stored uncompressed.
+     */
+    public static final int STORED = 0;
+
+    /**
+     * Extensions of file formats, which are already compressed.
+     * Region files are included, their chunks are compressed by the server.
+     */
+    private static final List<String> COMPRESSED_EXTENSIONS = List.of(
+            "mca", "mcr", "mcc", "jar", "zip", "gz", "tgz", "xz", "zst", "bz2", "7z", "rar", "lz4",
+            "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4");
+
+    private static final ThreadLocal<Deflater> SAMPLE_DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    private final Map<String, Integer> extensionLevels = new HashMap<>();
+    private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private int sampleSize = 64 * 1024;
+    private double minSavings = 0.05;
+
+    /**
+     * Creates a policy, which stores the common already compressed file formats.
+     */
+    public CompressionPolicy() {
+        for (String extension : COMPRESSED_EXTENSIONS)
+            extensionLevels.put(extension, STORED);
+    }
+
+    /**
+     * Set the level of all files with an extension.
+     * @param extension the extension without dot, case is ignored
+     * @param level deflate level from 1 to 9, -1 for the default level, {@link #STORED} for no compression
+     */
+    public void setLevel(String extension, int level) {
+        checkLevel(level);
+        extensionLevels.put(extension.toLowerCase(Locale.ROOT), level);
+    }
+
+    /**
+     * Remove the rule of an extension, so the files are sampled.
+     * @param extension the extension without dot, case is ignored
+     */
+    public void removeLevel(String extension) {
+        extensionLevels.remove(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Set the level of files, which aren't stored.
+     * @param defaultLevel deflate level from 1 to 9, -1 for the default level, {@link #STORED} for no compression
+     */
+    public void setDefaultLevel(int defaultLevel) {
+        checkLevel(defaultLevel);
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Set the size of the sample, which is compressed to decide if a file is stored.
+     * @param sampleSize sample size in bytes, 0 disables sampling
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < 0)
+            throw new IllegalArgumentException("Sample size must not be negative.");
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Set how much a sample has to shrink, so the file is compressed.
+     * @param minSavings the minimum savings, 0.05 compresses files, whose sample shrinks by at least 5 %
+     */
+    public void setMinSavings(double minSavings) {
+        this.minSavings = minSavings;
+    }
+
+    /**
+     * Decide the compression level of a file.
+     * @param file the file
+     * @param name path of the file relative to the server directory
+     * @return deflate level, {@link #STORED} if the file shouldn't be compressed
+     * @throws IOException file exceptions while reading the sample
+     */
+    public int getLevel(File file, String name) throws IOException {
+        Integer level = extensionLevels.get(getExtension(name));
+        if (level != null)
+            return level;
+
+        if (defaultLevel == STORED || sampleSize == 0 || isCompressible(file))
+            return defaultLevel;
+        return STORED;
+    }
+
+    /**
+     * Compress a sample of the file with the fastest level.
+     * @param file the file
+     * @return if the sample shrunk by the minimum savings
+     * @throws IOException file exceptions
+     */
+    private boolean isCompressible(File file) throws IOException {
+        byte[] sample;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            if (length == 0)
+                return true;
+
+            // The start of a file is often a header, which compresses better than the rest
+            sample = new byte[(int) Math.min(sampleSize, length)];
+            randomAccessFile.seek((length - sample.length) / 2);
+            randomAccessFile.readFully(sample);
+        }
+
+        Deflater deflater = SAMPLE_DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(sample);
+        deflater.finish();
+
+        byte[] buf = new byte[8 * 1024];
+        long compressedSize = 0;
+        while (!deflater.finished())
+            compressedSize += deflater.deflate(buf);
+
+        return compressedSize <= sample.length * (1 - minSavings);
+    }
+
+    private static String getExtension(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot <= slash + 1)
+            return "";
+        return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static void checkLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level + ".");
+    }
+}
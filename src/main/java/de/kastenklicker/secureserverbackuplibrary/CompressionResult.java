@@ -0,0 +1,27 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+/**
+ * How a file was compressed.
+ * @param name the entry name of the file
+ * @param level the deflate level, {@link CompressionPolicy#STORED} if the file was stored uncompressed
+ * @param size the size of the file
+ * @param compressedSize the size of the file in the zip
+ */
+public record CompressionResult(String name, int level, long size, long compressedSize) {
+
+    /**
+     * Check if the file was stored uncompressed.
+     * @return if the file wasn't compressed
+     */
+    public boolean isStored() {
+        return level == CompressionPolicy.STORED;
+    }
+
+    /**
+     * Get the bytes saved by compressing the file.
+     * @return saved bytes, negative if compressing made the file bigger
+     */
+    public long getSavedBytes() {
+        return size - compressedSize;
+    }
+}
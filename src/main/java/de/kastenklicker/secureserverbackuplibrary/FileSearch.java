@@ -0,0 +1,280 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Class for finding the server files, which should be backed up.
+ * The server directory is walked once, excluded directories are skipped as soon as they match
+ * and the found files are handed over one by one, so they are never all held in memory.
+ * With an index of the server files, for example of a {@link ChangeJournal}, the index is searched instead.
+ */
+class FileSearch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    private static final Set<FileVisitOption> FOLLOW_LINKS = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+
+    private final List<PathMatcher> includeMatchers;
+    private final List<PathMatcher> excludeMatchers;
+    private final int includeDepth;
+    private final Path serverPath;
+    private final Path absoluteServerPath;
+    private Collection<String> index;
+
+    /**
+     * Action for every found file.
+     */
+    interface FileConsumer {
+        /**
+         * Accept a found file.
+         * @param file the file
+         * @param name path of the file relative to the server directory, separated by slashes
+         * @throws IOException file exceptions
+         */
+        void accept(File file, String name) throws IOException;
+    }
+
+    /**
+     * Prepare the search, no files are searched until they are needed.
+     * @param serverDirectory The directory where the server.jar is located.
+     * @param includeFiles List of files which should be included.
+     * @param excludeFiles List of files which should be excluded.
+     */
+    FileSearch(File serverDirectory, List<String> includeFiles, List<String> excludeFiles) {
+        this.serverPath = serverDirectory.toPath();
+        this.absoluteServerPath = serverPath.toAbsolutePath().normalize();
+        this.includeMatchers = getMatchers(includeFiles);
+        this.excludeMatchers = getMatchers(excludeFiles);
+        this.includeDepth = getDepth(includeFiles);
+    }
+
+    /**
+     * Get the files and directories matching the included files, which aren't excluded.
+     * Matches inside an included directory are part of that directory and aren't returned.
+     * @return the included files
+     * @throws IOException file exceptions
+     */
+    Set<File> getIncludedFiles() throws IOException {
+        Set<File> includedFiles = new HashSet<>();
+
+        Files.walkFileTree(serverPath, FOLLOW_LINKS, Integer.MAX_VALUE, new Visitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(serverPath))
+                    return FileVisitResult.CONTINUE;
+
+                Path relativePath = relativize(dir);
+                if (matches(excludeMatchers, relativePath))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if (matches(includeMatchers, relativePath)) {
+                    includedFiles.add(dir.toFile());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return canContainIncludedFiles(relativePath) ?
+                        FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relativePath = relativize(file);
+                if (!matches(excludeMatchers, relativePath) && matches(includeMatchers, relativePath))
+                    includedFiles.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return includedFiles;
+    }
+
+    /**
+     * Search an index of the server files instead of walking the server directory.
+     * @param index the paths of all server files relative to the server directory, separated by slashes,
+     * or null to walk the server directory
+     */
+    void setIndex(Collection<String> index) {
+        this.index = index;
+    }
+
+    /**
+     * Visit all included files, except the excluded ones, in a single walk of the server directory,
+     * or in the order of the index.
+     * @param consumer action for every file
+     * @throws IOException exceptions of the consumer
+     */
+    void walk(FileConsumer consumer) throws IOException {
+        if (index == null) {
+            walk(serverPath, false, consumer);
+            return;
+        }
+
+        for (String name : index) {
+            if (isIncluded(name))
+                consumer.accept(serverPath.resolve(name).toFile(), name);
+        }
+    }
+
+    /**
+     * Check if a file is found by the search, without reading the file.
+     * A file is included if it or one of its parent directories matches the included files,
+     * and neither of them matches the excluded files.
+     * @param name path of the file relative to the server directory, separated by slashes
+     * @return true, if the file is included
+     */
+    boolean isIncluded(String name) {
+        boolean included = false;
+        for (Path path = Path.of(name); path != null; path = path.getParent()) {
+            if (matches(excludeMatchers, path))
+                return false;
+            included = included || matches(includeMatchers, path);
+        }
+        return included;
+    }
+
+    /**
+     * Visit a file or all files of a directory recursive, except the excluded ones.
+     * @param file file or directory
+     * @param consumer action for every file
+     * @throws IOException exceptions of the consumer
+     */
+    void walk(File file, FileConsumer consumer) throws IOException {
+        walk(file.toPath(), true, consumer);
+    }
+
+    private void walk(Path start, boolean startIncluded, FileConsumer consumer) throws IOException {
+        Files.walkFileTree(start, FOLLOW_LINKS, Integer.MAX_VALUE, new Visitor() {
+
+            // Root of the included directory currently walked, its files don't need to match
+            private Path includedDirectory;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(serverPath))
+                    return FileVisitResult.CONTINUE;
+
+                Path relativePath = relativize(dir);
+                if (matches(excludeMatchers, relativePath))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if (includedDirectory != null || startIncluded)
+                    return FileVisitResult.CONTINUE;
+
+                if (matches(includeMatchers, relativePath))
+                    includedDirectory = dir;
+                else if (!canContainIncludedFiles(relativePath))
+                    return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relativePath = relativize(file);
+                if (matches(excludeMatchers, relativePath))
+                    return FileVisitResult.CONTINUE;
+
+                if (includedDirectory != null || startIncluded || matches(includeMatchers, relativePath))
+                    consumer.accept(file.toFile(), relativePath.toString().replace(File.separatorChar, '/'));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                super.postVisitDirectory(dir, exc);
+                if (dir.equals(includedDirectory))
+                    includedDirectory = null;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Get the path of a file relative to the server directory.
+     * @param path the path of the file
+     * @return the relative path
+     */
+    private Path relativize(Path path) {
+        if (path.startsWith(serverPath))
+            return serverPath.relativize(path);
+        return absoluteServerPath.relativize(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Check if a directory, which doesn't match any included file, can contain matching files.
+     * @param relativePath the path of the directory relative to the server directory
+     * @return false if all included file paths have less path elements than the directory's children
+     */
+    private boolean canContainIncludedFiles(Path relativePath) {
+        return relativePath.getNameCount() < includeDepth;
+    }
+
+    /**
+     * Check if a path matches at least one of the path matchers.
+     * @param matchers the path matchers
+     * @param relativePath the path relative to the server directory
+     * @return if a path matcher matches
+     */
+    static boolean matches(List<PathMatcher> matchers, Path relativePath) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create path matchers from glob paths.
+     * @param filePaths glob paths
+     * @return the path matchers
+     */
+    static List<PathMatcher> getMatchers(List<String> filePaths) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String filePath : filePaths)
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + filePath));
+        return matchers;
+    }
+
+    /**
+     * Get the maximum number of path elements a file matching the glob paths can have.
+     * @param filePaths glob paths
+     * @return the maximum number, {@link Integer#MAX_VALUE} if a glob path can match any number
+     */
+    private static int getDepth(List<String> filePaths) {
+        int depth = 0;
+        for (String filePath : filePaths) {
+            if (filePath.contains("**") || filePath.contains("{"))
+                return Integer.MAX_VALUE;
+            depth = Math.max(depth, filePath.split("/").length);
+        }
+        return depth;
+    }
+
+    /**
+     * Visitor skipping files, which can't be read, instead of failing the whole backup.
+     */
+    private static class Visitor extends SimpleFileVisitor<Path> {
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            LOGGER.warn("Skipping {}, it can't be read.", file, exc);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            if (exc != null)
+                LOGGER.warn("Skipping the rest of {}, it can't be read.", dir, exc);
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
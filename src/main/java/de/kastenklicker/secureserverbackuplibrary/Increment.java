@@ -0,0 +1,186 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * Decides which files belong into an incremental backup and builds the manifest of the backup.
+ * A file is changed if it is new or its content hash differs from the previous backup.
+ * The hash is only calculated if the size or modification time of the file changed.
+ * With region deltas, only the changed chunks of changed region files are backed up.
+ */
+class Increment {
+
+    private final Manifest previousManifest;
+    private final Manifest manifest = new Manifest();
+    private final boolean full;
+    private final boolean regionDeltas;
+    private Set<String> changedFiles;
+
+    /**
+     * Creates the increment.
+     * @param previousManifest the manifest of the previous backup, or null if there is none
+     * @param fullBackupInterval every how many backups a full backup is made
+     * @param regionDeltas if only the changed chunks of region files are backed up
+     */
+    Increment(Manifest previousManifest, int fullBackupInterval, boolean regionDeltas) {
+        this.previousManifest = previousManifest;
+        this.full = previousManifest == null || previousManifest.getIncrementCount() + 1 >= fullBackupInterval;
+        this.regionDeltas = regionDeltas;
+    }
+
+    /**
+     * Check if all files are backed up.
+     * @return true for a full backup
+     */
+    boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Set the file name of the backup and link it to the previous backup.
+     * @param backupName file name of the backup
+     */
+    void setBackupName(String backupName) {
+        if (full)
+            manifest.setChain(backupName, backupName, null, 0);
+        else
+            manifest.setChain(backupName, previousManifest.getBase(), previousManifest.getName(),
+                    previousManifest.getIncrementCount() + 1);
+    }
+
+    /**
+     * Only check the files changed since the previous backup, the other files keep their state
+     * of the previous manifest without being read.
+     * @param changedFiles the files changed since the previous backup, recorded by a {@link ChangeJournal}
+     */
+    void setChangedFiles(Set<String> changedFiles) {
+        this.changedFiles = changedFiles;
+    }
+
+    Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Add a file to the manifest and check if it changed since the previous backup.
+     * @param file the file
+     * @param name the entry name of the file
+     * @return true, if the file should be backed up
+     * @throws ZipException Thrown if the file couldn't be hashed
+     */
+    boolean isChanged(File file, String name) {
+        Manifest.FileState previousState = previousManifest == null ? null : previousManifest.get(name);
+        if (changedFiles != null && previousState != null && !changedFiles.contains(name)) {
+            manifest.put(name, previousState);
+            return full;
+        }
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String hash;
+
+        if (previousState != null && previousState.size() == size && previousState.lastModified() == lastModified) {
+            hash = previousState.hash();
+        } else {
+            try {
+                hash = Manifest.hash(file);
+            } catch (IOException e) {
+                throw new ZipException(e);
+            }
+        }
+
+        manifest.put(name, new Manifest.FileState(size, lastModified, hash));
+        return full || previousState == null || !previousState.hash().equals(hash);
+    }
+
+    /**
+     * Get the filter of the archive, which only accepts changed files.
+     * @param archive the archive, the region deltas are added to
+     * @return the filter
+     */
+    BiPredicate<File, String> getFilter(Archive archive) {
+        if (!regionDeltas)
+            return this::isChanged;
+
+        return (file, name) -> RegionDelta.isRegionFile(name) ?
+                isChangedRegion(archive, file, name) : isChanged(file, name);
+    }
+
+    /**
+     * Check if a region file changed and add the delta of its changed chunks, if it is smaller than the file.
+     * @param archive the archive
+     * @param file the region file
+     * @param name the entry name of the region file
+     * @return true, if the whole file should be backed up
+     * @throws ZipException Thrown if the file couldn't be read
+     */
+    private boolean isChangedRegion(Archive archive, File file, String name) {
+        boolean changed = isChanged(file, name);
+        int[] previousTimestamps = previousManifest == null ? null : previousManifest.getRegionTimestamps(name);
+
+        try {
+            // The chunks of a file with the same content have the same modification times
+            if (!changed && previousTimestamps != null) {
+                manifest.putRegionTimestamps(name, previousTimestamps);
+                return false;
+            }
+
+            if (!changed || full || previousTimestamps == null) {
+                int[] timestamps = RegionDelta.readTimestamps(file);
+                if (timestamps != null)
+                    manifest.putRegionTimestamps(name, timestamps);
+                return changed;
+            }
+
+            RegionDelta regionDelta;
+            try {
+                regionDelta = RegionDelta.create(file, previousTimestamps);
+            } catch (IOException e) {
+                // Damaged region files are backed up as they are
+                return true;
+            }
+            if (regionDelta == null)
+                return true;
+            manifest.putRegionTimestamps(name, regionDelta.getTimestamps());
+
+            // If most of the file changed, the whole file is backed up, so restoring doesn't need older backups
+            if (regionDelta.getChunkSize() > file.length() / 2)
+                return true;
+
+            archive.add(RegionDelta.ENTRY_PREFIX + name, regionDelta.toByteArray());
+            return false;
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+
+    /**
+     * Add the manifest and the list of deleted files to the backup.
+     * @param archive the backup archive, all files must be added already
+     * @throws ZipException Wrapped IOException
+     */
+    void finish(Archive archive) {
+        StringBuilder deletedFiles = new StringBuilder();
+        if (previousManifest != null && !full) {
+            for (String path : previousManifest.getPaths()) {
+                if (manifest.get(path) == null)
+                    deletedFiles.append(path).append('\n');
+            }
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            manifest.write(outputStream);
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+
+        archive.add(Manifest.ENTRY_NAME, outputStream.toByteArray());
+        archive.add(Manifest.DELETED_ENTRY_NAME, deletedFiles.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
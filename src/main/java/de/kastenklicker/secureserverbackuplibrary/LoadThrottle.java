@@ -0,0 +1,147 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Duration;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Slows down archiving while the server is under load, so the backup doesn't compete with the server
+ * for disk and CPU. The load is read from a pluggable signal, for example the duration of the last server tick.
+ * Above the target load the read rate and the number of compressing threads are halved on every check,
+ * below 80 % of the target load they are raised again until archiving runs at full speed.
+ * Above the pause load no new file is started, until the load drops or the maximum pause is reached.
+ * The archive itself is written unchanged, only the time between reads changes.
+ */
+public class LoadThrottle {
+
+    private static final double RECOVERY_LOAD = 0.8;
+
+    private final DoubleSupplier load;
+    private final double targetLoad;
+    private double pauseLoad;
+    private long minBytesPerSecond = 1024 * 1024;
+    private Duration maxPause = Duration.ofSeconds(30);
+    private long checkInterval = Duration.ofMillis(500).toNanos();
+
+    private double bytesPerSecond = Double.POSITIVE_INFINITY;
+    private double parallelism = 1;
+    private long lastCheck = System.nanoTime();
+    private long bytesSinceCheck;
+    private long nextRead = System.nanoTime();
+
+    /**
+     * Creates the throttle.
+     * @param load the current load, for example the tick duration in milliseconds or {@link #systemLoad()}
+     * @param targetLoad the load, above which archiving is slowed down, for example 50 milliseconds per tick
+     */
+    public LoadThrottle(DoubleSupplier load, double targetLoad) {
+        this.load = load;
+        this.targetLoad = targetLoad;
+        this.pauseLoad = targetLoad * 2;
+    }
+
+    /**
+     * Get the system load average per processor, 1.0 means all processors are busy.
+     * @return the signal, which is 0 if the system load isn't available
+     */
+    public static DoubleSupplier systemLoad() {
+        OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+        return () -> Math.max(0, operatingSystemMXBean.getSystemLoadAverage())
+                / operatingSystemMXBean.getAvailableProcessors();
+    }
+
+    /**
+     * Set the load, above which archiving is paused between files. Twice the target load by default.
+     * @param pauseLoad the load
+     */
+    public void setPauseLoad(double pauseLoad) {
+        this.pauseLoad = pauseLoad;
+    }
+
+    /**
+     * Set the maximum time archiving is paused before a file, so a backup always finishes.
+     * @param maxPause the maximum pause, 30 seconds by default
+     */
+    public void setMaxPause(Duration maxPause) {
+        this.maxPause = maxPause;
+    }
+
+    /**
+     * Set the lowest read rate, the files are read with while the server is under load.
+     * @param minBytesPerSecond the rate, 1 MiB/s by default
+     */
+    public void setMinBytesPerSecond(long minBytesPerSecond) {
+        this.minBytesPerSecond = minBytesPerSecond;
+    }
+
+    /**
+     * Set how often the load is checked.
+     * @param checkInterval the interval, 500 milliseconds by default
+     */
+    public void setCheckInterval(Duration checkInterval) {
+        this.checkInterval = checkInterval.toNanos();
+    }
+
+    /**
+     * Wait before a file is added, while the load is above the pause load.
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    synchronized void awaitFile() throws InterruptedException {
+        long deadline = System.nanoTime() + maxPause.toNanos();
+        while (load.getAsDouble() > pauseLoad && System.nanoTime() - deadline < 0)
+            Thread.sleep(Duration.ofNanos(checkInterval));
+    }
+
+    /**
+     * Wait until bytes can be read at the current read rate.
+     * @param bytes the number of bytes to read
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    synchronized void acquire(int bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        if (now - lastCheck >= checkInterval)
+            check(now);
+        bytesSinceCheck += bytes;
+
+        if (bytesPerSecond == Double.POSITIVE_INFINITY)
+            return;
+        nextRead = Math.max(nextRead, now) + (long) (bytes * 1e9 / bytesPerSecond);
+        if (nextRead - now > 0)
+            Thread.sleep(Duration.ofNanos(nextRead - now));
+    }
+
+    /**
+     * Get the number of threads, which should compress at the same time.
+     * @param compressionThreads the number of compression threads
+     * @return the number of threads, at least 1
+     */
+    synchronized int getParallelism(int compressionThreads) {
+        return Math.max(1, (int) Math.round(compressionThreads * parallelism));
+    }
+
+    /**
+     * Adapt the read rate and parallelism to the current load.
+     * @param now the current time in nanoseconds
+     */
+    private void check(long now) {
+        double measuredBytesPerSecond = bytesSinceCheck * 1e9 / (now - lastCheck);
+        double currentLoad = load.getAsDouble();
+
+        if (currentLoad > targetLoad) {
+            double currentRate = Double.isInfinite(bytesPerSecond) ? measuredBytesPerSecond : bytesPerSecond;
+            bytesPerSecond = Math.max(minBytesPerSecond, currentRate / 2);
+            parallelism = Math.max(0.01, parallelism / 2);
+        } else if (currentLoad < targetLoad * RECOVERY_LOAD) {
+            bytesPerSecond *= 1.5;
+
+            // The rate isn't limiting anymore, if the files are read much slower than allowed
+            if (bytesPerSecond > measuredBytesPerSecond * 4)
+                bytesPerSecond = Double.POSITIVE_INFINITY;
+            parallelism = Math.min(1, parallelism * 1.5);
+        }
+
+        lastCheck = now;
+        bytesSinceCheck = 0;
+    }
+}
@@ -0,0 +1,234 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of all files of a backup, used to find the files changed since the previous backup.
+ * Every backup archive of an incremental backup chain contains the manifest of the server files
+ * at the time of the backup, so deleted files are the ones missing from the manifest.
+ */
+class Manifest {
+
+    /**
+     * Name of the manifest entry in the backup archive.
+     */
+    static final String ENTRY_NAME = ".secureserverbackup/manifest";
+
+    /**
+     * Name of the entry listing the files deleted since the previous backup.
+     */
+    static final String DELETED_ENTRY_NAME = ".secureserverbackup/deleted";
+
+    /**
+     * State of a file at the time of the backup.
+     * @param size size in bytes
+     * @param lastModified last modification time in milliseconds
+     * @param hash hex encoded SHA-256 hash of the content
+     */
+    record FileState(long size, long lastModified, String hash) {}
+
+    private final Map<String, FileState> files = new LinkedHashMap<>();
+    private final Map<String, int[]> regionTimestamps = new HashMap<>();
+    private String name;
+    private String base;
+    private String parent;
+    private int incrementCount;
+
+    /**
+     * Get the archive this manifest belongs to.
+     * @return file name of the backup
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Get the full backup the backup chain starts with.
+     * @return file name of the full backup
+     */
+    String getBase() {
+        return base;
+    }
+
+    /**
+     * Get the archive this incremental backup is based on.
+     * @return file name of the previous backup, or null if this is a full backup
+     */
+    String getParent() {
+        return parent;
+    }
+
+    /**
+     * Get the number of incremental backups since the last full backup.
+     * @return 0 for a full backup
+     */
+    int getIncrementCount() {
+        return incrementCount;
+    }
+
+    /**
+     * Set the position of the backup in its backup chain.
+     * @param name file name of the backup
+     * @param base file name of the full backup the chain starts with
+     * @param parent file name of the previous backup, or null for a full backup
+     * @param incrementCount number of incremental backups since the last full backup
+     */
+    void setChain(String name, String base, String parent, int incrementCount) {
+        this.name = name;
+        this.base = base;
+        this.parent = parent;
+        this.incrementCount = incrementCount;
+    }
+
+    FileState get(String path) {
+        return files.get(path);
+    }
+
+    void put(String path, FileState fileState) {
+        files.put(path, fileState);
+    }
+
+    /**
+     * Get the chunk modification times of a region file, which are needed for a {@link RegionDelta}.
+     * @param path the entry name of the region file
+     * @return the modification times, or null if they weren't recorded
+     */
+    int[] getRegionTimestamps(String path) {
+        return regionTimestamps.get(path);
+    }
+
+    void putRegionTimestamps(String path, int[] timestamps) {
+        regionTimestamps.put(path, timestamps);
+    }
+
+    Set<String> getPaths() {
+        return files.keySet();
+    }
+
+    /**
+     * Write the manifest.
+     * @param outputStream the stream, which isn't closed
+     * @throws IOException stream exceptions
+     */
+    void write(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writer.write("B\t" + incrementCount + "\t" + name + "\t" + base + "\n");
+        if (parent != null)
+            writer.write("P\t" + parent + "\n");
+        for (Map.Entry<String, FileState> file : files.entrySet()) {
+            FileState fileState = file.getValue();
+            writer.write("F\t" + fileState.hash() + "\t" + fileState.size() + "\t"
+                    + fileState.lastModified() + "\t" + file.getKey() + "\n");
+        }
+        for (Map.Entry<String, int[]> region : regionTimestamps.entrySet()) {
+            ByteBuffer timestamps = ByteBuffer.allocate(region.getValue().length * 4);
+            timestamps.asIntBuffer().put(region.getValue());
+            writer.write("R\t" + Base64.getEncoder().encodeToString(timestamps.array()) + "\t"
+                    + region.getKey() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Read a manifest.
+     * @param inputStream the stream, which isn't closed
+     * @return the manifest
+     * @throws IOException stream exceptions or invalid manifest
+     */
+    static Manifest read(InputStream inputStream) throws IOException {
+        Manifest manifest = new Manifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split("\t", 5);
+            try {
+                switch (parts[0]) {
+                    case "B" -> manifest.setChain(parts[2], parts[3], manifest.parent,
+                            Integer.parseInt(parts[1]));
+                    case "P" -> manifest.parent = parts[1];
+                    case "F" -> manifest.put(parts[4], new FileState(
+                            Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[1]));
+                    case "R" -> {
+                        ByteBuffer timestamps = ByteBuffer.wrap(Base64.getDecoder().decode(parts[1]));
+                        int[] regionTimestamps = new int[timestamps.remaining() / 4];
+                        timestamps.asIntBuffer().get(regionTimestamps);
+                        manifest.putRegionTimestamps(line.split("\t", 3)[2], regionTimestamps);
+                    }
+                    default -> throw new IOException("Invalid manifest line: " + line);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid manifest line: " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Load a manifest from a file.
+     * @param file the manifest file
+     * @return the manifest, or null if the file doesn't exist
+     * @throws IOException file exceptions or invalid manifest
+     */
+    static Manifest load(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return read(inputStream);
+        }
+    }
+
+    /**
+     * Save the manifest to a file.
+     * @param file the manifest file
+     * @throws IOException file exceptions
+     */
+    void save(File file) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            write(outputStream);
+        }
+    }
+
+    /**
+     * Calculate the SHA-256 hash of a file.
+     * @param file the file
+     * @return hex encoded hash
+     * @throws IOException file exceptions
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while ((len = inputStream.read(buf)) > 0)
+                messageDigest.update(buf, 0, len);
+        }
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+}
@@ -0,0 +1,33 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+/**
+ * Phase of a backup, whose duration is measured by {@link BackupMetrics}.
+ */
+public enum Phase {
+
+    /**
+     * Linking or copying the included server files into the snapshot, see {@link SnapshotMode}.
+     */
+    SNAPSHOT,
+
+    /**
+     * Searching the server directory and comparing the files with the previous incremental backup.
+     */
+    DISCOVERY,
+
+    /**
+     * Reading and compressing the files into the archive or the chunk store.
+     */
+    ARCHIVE,
+
+    /**
+     * Uploading the backup. Streamed backups are uploaded while archiving,
+     * so only connecting to the upload servers is counted.
+     */
+    UPLOAD,
+
+    /**
+     * Deleting the oldest backups, while the backup directory is over its size limit.
+     */
+    RETENTION
+}
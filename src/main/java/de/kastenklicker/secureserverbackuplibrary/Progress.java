@@ -0,0 +1,186 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Counts the progress of one backup, passes it to the listener and tells the archives if the backup was cancelled.
+ * The counters can be updated from any thread, the listener is called at most every 100 milliseconds.
+ * The durations of the phases and the uploads are collected for the {@link BackupMetrics}.
+ */
+final class Progress {
+
+    private static final long REPORT_INTERVAL = 100_000_000L;
+
+    private final Consumer<BackupProgress> listener;
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    private final AtomicLong filesArchived = new AtomicLong();
+    private final AtomicLong bytesArchived = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+    private final List<UploadMetrics> uploads = new ArrayList<>();
+    private volatile boolean cancelled;
+    private long lastReport = System.nanoTime();
+    private long fileStart;
+    private long fileNanos;
+
+    /**
+     * Creates the progress.
+     * @param listener the listener, which is called with the current progress
+     */
+    Progress(Consumer<BackupProgress> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Count a file found by searching the server directory.
+     * @param size the size of the file
+     */
+    void scanFile(long size) {
+        fileStart = System.nanoTime();
+        filesScanned.incrementAndGet();
+        bytesScanned.addAndGet(size);
+        report(false);
+    }
+
+    /**
+     * Mark the end of handling a scanned file, so the time spent searching the server directory can be measured.
+     * Must be called on the thread, which called {@link #scanFile(long)}.
+     */
+    void fileDone() {
+        fileNanos += System.nanoTime() - fileStart;
+    }
+
+    /**
+     * Get the time spent handling the scanned files, since the progress was created.
+     * @return the time in nanoseconds
+     */
+    long getFileNanos() {
+        return fileNanos;
+    }
+
+    /**
+     * Count bytes read into the archive.
+     * @param bytes the number of bytes
+     */
+    void archiveBytes(long bytes) {
+        bytesArchived.addAndGet(bytes);
+        report(false);
+    }
+
+    /**
+     * Count a file, which was completely read into the archive.
+     */
+    void archiveFile() {
+        filesArchived.incrementAndGet();
+        report(false);
+    }
+
+    /**
+     * Count bytes uploaded by an upload client.
+     * @param bytes the number of bytes
+     */
+    void uploadBytes(long bytes) {
+        bytesUploaded.addAndGet(bytes);
+        report(false);
+    }
+
+    /**
+     * Count bytes of the backup written to the backup file or the chunk store.
+     * @param bytes the number of bytes
+     */
+    void writeBytes(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Get the bytes of the backup written so far.
+     * @return the number of bytes
+     */
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Add time spent in a phase.
+     * @param phase the phase
+     * @param nanos the time in nanoseconds
+     */
+    synchronized void addPhase(Phase phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * Add the metrics of an upload.
+     * @param uploadMetrics the metrics
+     */
+    synchronized void addUpload(UploadMetrics uploadMetrics) {
+        uploads.add(uploadMetrics);
+    }
+
+    /**
+     * Create the metrics of the backup.
+     * @param successful if the backup was successful
+     * @param duration the duration of the whole backup
+     * @return the metrics
+     */
+    synchronized BackupMetrics getMetrics(boolean successful, Duration duration) {
+        Map<Phase, Duration> phases = new EnumMap<>(Phase.class);
+        phaseNanos.forEach((phase, nanos) -> phases.put(phase, Duration.ofNanos(nanos)));
+        return new BackupMetrics(successful, duration, phases, filesArchived.get(), bytesArchived.get(),
+                bytesWritten.get(), List.copyOf(uploads));
+    }
+
+    /**
+     * Stop the backup at the next check.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the backup was cancelled.
+     * @return true, if the backup was cancelled
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop the calling archive or upload, if the backup was cancelled.
+     * @throws CancellationException Thrown if the backup was cancelled
+     */
+    void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException("The backup was cancelled.");
+    }
+
+    /**
+     * Pass the current progress to the listener.
+     * @param force if the listener should be called, even if it was called just before
+     */
+    synchronized void report(boolean force) {
+        long now = System.nanoTime();
+        if (!force && now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        listener.accept(getProgress());
+    }
+
+    /**
+     * Get the current progress.
+     * @return the progress
+     */
+    BackupProgress getProgress() {
+        return new BackupProgress(filesScanned.get(), bytesScanned.get(), filesArchived.get(),
+                bytesArchived.get(), bytesUploaded.get());
+    }
+}
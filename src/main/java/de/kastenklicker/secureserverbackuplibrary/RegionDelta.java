@@ -0,0 +1,242 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changed chunks of a Minecraft region file (Anvil .mca) since the previous backup.
+ * A region file starts with a table of the sector offset and count of its 1024 chunks,
+ * followed by a table of their last modification times in seconds.
+ * A delta contains both tables and only the chunks whose modification time changed,
+ * the other chunks are taken from the previous backups when the region file is rebuilt.
+ */
+class RegionDelta {
+
+    /**
+     * Prefix of the delta entries in the backup archive, followed by the entry name of the region file.
+     */
+    static final String ENTRY_PREFIX = ".secureserverbackup/region/";
+
+    static final int CHUNKS = 1024;
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    private static final int VERSION = 1;
+
+    private final byte[] header;
+    private final Map<Integer, byte[]> chunks;
+
+    private RegionDelta(byte[] header, Map<Integer, byte[]> chunks) {
+        this.header = header;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Check if a file is a region file by its name.
+     * @param name the entry name
+     * @return true for .mca files
+     */
+    static boolean isRegionFile(String name) {
+        return name.endsWith(".mca");
+    }
+
+    /**
+     * Read the modification times of all chunks of a region file.
+     * @param file the region file
+     * @return the modification time of every chunk in seconds, or null if the file has no complete header
+     * @throws IOException file exceptions
+     */
+    static int[] readTimestamps(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] header = readHeader(randomAccessFile);
+            return header == null ? null : timestamps(header);
+        }
+    }
+
+    /**
+     * Create the delta of a region file.
+     * @param file the region file
+     * @param previousTimestamps the chunk modification times of the previous backup
+     * @return the delta, or null if the file has no complete header
+     * @throws IOException file exceptions or invalid chunk
+     */
+    static RegionDelta create(File file, int[] previousTimestamps) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] header = readHeader(randomAccessFile);
+            if (header == null)
+                return null;
+
+            int[] timestamps = timestamps(header);
+            Map<Integer, byte[]> chunks = new LinkedHashMap<>();
+            for (int i = 0; i < CHUNKS; i++) {
+                if (timestamps[i] != previousTimestamps[i] && sectorOffset(header, i) != 0)
+                    chunks.put(i, readChunk(randomAccessFile, header, i));
+            }
+            return new RegionDelta(header, chunks);
+        }
+    }
+
+    /**
+     * Get the modification times of the chunks of this delta.
+     * @return the modification time of every chunk in seconds
+     */
+    int[] getTimestamps() {
+        return timestamps(header);
+    }
+
+    /**
+     * Get the size of the changed chunks.
+     * @return the size in bytes
+     */
+    long getChunkSize() {
+        return chunks.values().stream().mapToLong(chunk -> chunk.length).sum();
+    }
+
+    /**
+     * Write the delta.
+     * @return the serialized delta
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream)) {
+            outputStream.writeInt(VERSION);
+            outputStream.write(header);
+            outputStream.writeInt(chunks.size());
+            for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+                outputStream.writeShort(chunk.getKey());
+                outputStream.writeInt(chunk.getValue().length);
+                outputStream.write(chunk.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Read a delta.
+     * @param data the serialized delta
+     * @return the delta
+     * @throws IOException invalid delta
+     */
+    static RegionDelta read(byte[] data) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+        if (inputStream.readInt() != VERSION)
+            throw new IOException("Unsupported region delta version.");
+
+        byte[] header = new byte[HEADER_SIZE];
+        inputStream.readFully(header);
+        int count = inputStream.readInt();
+        Map<Integer, byte[]> chunks = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int index = inputStream.readUnsignedShort();
+            byte[] chunk = new byte[inputStream.readInt()];
+            inputStream.readFully(chunk);
+            chunks.put(index, chunk);
+        }
+        return new RegionDelta(header, chunks);
+    }
+
+    /**
+     * Rebuild a region file from its last full copy and the deltas since then.
+     * Every chunk is taken from the newest delta containing it, or from the full copy.
+     * The chunks are written at the positions of the newest header, unused sectors are zeroed.
+     * @param file the full copy of the region file, which is replaced by the rebuilt file
+     * @param deltas the deltas since the full copy, the newest first
+     * @throws IOException file exceptions or chunk missing in the full copy
+     */
+    static void rebuild(File file, List<RegionDelta> deltas) throws IOException {
+        byte[] header = deltas.getFirst().header;
+        Path rebuiltPath = file.toPath().resolveSibling(file.getName() + ".rebuild");
+
+        try (RandomAccessFile base = new RandomAccessFile(file, "r");
+             RandomAccessFile rebuilt = new RandomAccessFile(rebuiltPath.toFile(), "rw")) {
+            byte[] baseHeader = readHeader(base);
+            rebuilt.setLength(0);
+            rebuilt.write(header);
+
+            long length = HEADER_SIZE;
+            for (int i = 0; i < CHUNKS; i++) {
+                int offset = sectorOffset(header, i);
+                if (offset == 0)
+                    continue;
+
+                byte[] chunk = null;
+                for (RegionDelta delta : deltas) {
+                    chunk = delta.chunks.get(i);
+                    if (chunk != null)
+                        break;
+                }
+                if (chunk == null) {
+                    if (baseHeader == null || sectorOffset(baseHeader, i) == 0)
+                        throw new IOException("Chunk " + i + " of " + file.getName() + " is missing in the backup chain.");
+                    chunk = readChunk(base, baseHeader, i);
+                }
+
+                long size = (long) sectorCount(header, i) * SECTOR_SIZE;
+                if (chunk.length > size)
+                    throw new IOException("Chunk " + i + " of " + file.getName() + " doesn't fit into its sectors.");
+                rebuilt.seek((long) offset * SECTOR_SIZE);
+                rebuilt.write(chunk);
+                length = Math.max(length, (long) offset * SECTOR_SIZE + size);
+            }
+            rebuilt.setLength(length);
+        } catch (IOException e) {
+            Files.deleteIfExists(rebuiltPath);
+            throw e;
+        }
+
+        Files.move(rebuiltPath, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] readHeader(RandomAccessFile randomAccessFile) throws IOException {
+        if (randomAccessFile.length() < HEADER_SIZE)
+            return null;
+        byte[] header = new byte[HEADER_SIZE];
+        randomAccessFile.seek(0);
+        randomAccessFile.readFully(header);
+        return header;
+    }
+
+    /**
+     * Read a chunk, which starts with its length and is followed by the compression type and data.
+     */
+    private static byte[] readChunk(RandomAccessFile randomAccessFile, byte[] header, int index) throws IOException {
+        long position = (long) sectorOffset(header, index) * SECTOR_SIZE;
+        randomAccessFile.seek(position);
+        long length = Integer.toUnsignedLong(randomAccessFile.readInt());
+        if (length > (long) sectorCount(header, index) * SECTOR_SIZE - 4)
+            throw new IOException("Invalid length of chunk " + index + ".");
+
+        byte[] chunk = new byte[(int) length + 4];
+        randomAccessFile.seek(position);
+        randomAccessFile.readFully(chunk);
+        return chunk;
+    }
+
+    private static int[] timestamps(byte[] header) {
+        int[] timestamps = new int[CHUNKS];
+        ByteBuffer.wrap(header, SECTOR_SIZE, SECTOR_SIZE).asIntBuffer().get(timestamps);
+        return timestamps;
+    }
+
+    private static int sectorOffset(byte[] header, int index) {
+        return ByteBuffer.wrap(header).getInt(index * 4) >>> 8;
+    }
+
+    private static int sectorCount(byte[] header, int index) {
+        return header[index * 4 + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,538 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Class for restoring backups.
+ * Incremental backups are restored together with all backups of their chain,
+ * every file is extracted from the newest backup containing it.
+ * Region files backed up as deltas are rebuilt from their last full copy and the newer deltas.
+ * Zip archives are read by their central directory and their files are extracted by several threads,
+ * tar archives are read sequentially. Single files or directories can be restored without extracting the rest.
+ * The volumes of a split backup are joined into a temporary file next to them, which is deleted after reading.
+ */
+public class Restore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    private final File backupDirectory;
+    private List<PathMatcher> includeMatchers;
+    private int extractionThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * File of a zip archive.
+     * @param zipFile the zip archive
+     * @param zipEntry the entry of the file
+     */
+    private record Source(ZipFile zipFile, ZipEntry zipEntry) {}
+
+    /**
+     * File, which is extracted from the newest backup containing it.
+     * @param name the entry name
+     * @param source the newest copy of the file
+     * @param deltas the deltas of a region file in the newer backups, the newest first
+     * @param lastModified last modification time of a rebuilt region file in milliseconds
+     */
+    private record Extraction(String name, Source source, List<Source> deltas, long lastModified) {}
+
+    /**
+     * Action for every file of a backup.
+     */
+    private interface EntryConsumer {
+        /**
+         * Accept a file of the backup.
+         * @param name the entry name
+         * @param lastModified last modification time in milliseconds
+         * @param inputStream the content of the file
+         * @return false to stop reading the backup
+         * @throws IOException stream exceptions
+         */
+        boolean accept(String name, long lastModified, InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Constructor for Restore class.
+     * @param backupDirectory the directory of the backups
+     */
+    public Restore(File backupDirectory) {
+        this.backupDirectory = backupDirectory;
+    }
+
+    /**
+     * Get all backups needed to restore a backup, starting with the backup itself.
+     * @param backupFile the backup
+     * @return the backup and the backups it is based on, the full backup is the last one
+     * @throws RestoreException Thrown if a backup of the chain is missing or can't be read
+     */
+    public List<File> getBackupChain(File backupFile) {
+        Map<File, File> joinedFiles = new HashMap<>();
+        try {
+            return getBackupChain(backupFile, joinedFiles);
+        } catch (IOException e) {
+            throw new RestoreException(e);
+        } finally {
+            deleteJoined(joinedFiles);
+        }
+    }
+
+    /**
+     * Get all backups needed to restore a backup, starting with the backup itself.
+     * @param backupFile the backup
+     * @param joinedFiles the joined files of split backups, which are added while reading the manifests
+     * @return the backup and the backups it is based on, the full backup is the last one
+     * @throws IOException Thrown if a backup of the chain is missing or can't be read
+     */
+    private List<File> getBackupChain(File backupFile, Map<File, File> joinedFiles) throws IOException {
+        List<File> chain = new ArrayList<>();
+        File currentFile = backupFile;
+
+        while (currentFile != null) {
+            chain.add(currentFile);
+
+            Manifest manifest = readManifest(readable(currentFile, joinedFiles));
+            currentFile = manifest == null || manifest.getParent() == null ?
+                    null : new File(backupDirectory, manifest.getParent());
+        }
+
+        return chain;
+    }
+
+    /**
+     * Get the file a backup is read from, which is the joined file of a split backup.
+     * @param backupFile the backup
+     * @param joinedFiles the already joined files of split backups
+     * @return the readable file
+     * @throws IOException Thrown if the backup is missing or the volumes can't be joined
+     */
+    private static File readable(File backupFile, Map<File, File> joinedFiles) throws IOException {
+        if (backupFile.exists())
+            return backupFile;
+        File joinedFile = joinedFiles.get(backupFile);
+        if (joinedFile != null)
+            return joinedFile;
+
+        List<File> volumes = VolumeOutputStream.list(backupFile);
+        if (volumes.isEmpty())
+            throw new IOException("Backup " + backupFile.getName() + " of the backup chain is missing.");
+        if (VolumeOutputStream.getNumber(backupFile, volumes.getLast()) != volumes.size())
+            throw new IOException("Volumes of backup " + backupFile.getName() + " are missing.");
+
+        // The joined file keeps the extension of the backup, which decides its format
+        joinedFile = File.createTempFile("restore-", "-" + backupFile.getName(),
+                backupFile.getAbsoluteFile().getParentFile());
+        joinedFiles.put(backupFile, joinedFile);
+        try (OutputStream outputStream = new FileOutputStream(joinedFile)) {
+            for (File volume : volumes)
+                Files.copy(volume.toPath(), outputStream);
+        }
+        LOGGER.debug("Joined {} volumes of {}.", volumes.size(), backupFile.getName());
+        return joinedFile;
+    }
+
+    /**
+     * Delete the joined files of split backups.
+     * @param joinedFiles the joined files
+     */
+    private static void deleteJoined(Map<File, File> joinedFiles) {
+        for (File joinedFile : joinedFiles.values()) {
+            if (!joinedFile.delete())
+                LOGGER.warn("Couldn't delete joined backup {}.", joinedFile.getName());
+        }
+    }
+
+    /**
+     * Set the files, which are restored, instead of all files of the backup.
+     * The glob paths are matched like the included files of a {@link Backup},
+     * a matching directory is restored with all its files.
+     * @param includedFiles glob paths relative to the server directory, for example {@code world/region/r.0.*.mca}
+     */
+    public void setIncludedFiles(List<String> includedFiles) {
+        this.includeMatchers = includedFiles.stream()
+                .map(filePath -> FileSystems.getDefault().getPathMatcher("glob:" + filePath))
+                .toList();
+    }
+
+    /**
+     * Set the number of threads extracting the files of zip archives at the same time.
+     * Tar archives can only be read sequentially, so they are extracted by one thread.
+     * @param extractionThreads number of extraction threads, all cores by default
+     */
+    public void setExtractionThreads(int extractionThreads) {
+        if (extractionThreads < 1)
+            throw new IllegalArgumentException("At least one extraction thread is needed.");
+        this.extractionThreads = extractionThreads;
+    }
+
+    /**
+     * Restore a backup into a directory. Existing files are overwritten.
+     * @param backupFile the backup
+     * @param targetDirectory the directory the server files are restored to
+     * @throws RestoreException Thrown if the backup chain is incomplete or the files can't be written
+     */
+    public void restore(File backupFile, File targetDirectory) {
+        Map<File, File> joinedFiles = new HashMap<>();
+        try {
+            List<File> chain = getBackupChain(backupFile, joinedFiles);
+            LOGGER.debug("Restoring {} from {} backups.", backupFile.getName(), chain.size());
+
+            List<File> readableChain = new ArrayList<>();
+            for (File file : chain)
+                readableChain.add(readable(file, joinedFiles));
+            Manifest manifest = readManifest(readableChain.getFirst());
+
+            // Only the newest version of every selected file is restored
+            Set<String> missingFiles = null;
+            if (manifest != null) {
+                missingFiles = new HashSet<>();
+                for (String path : manifest.getPaths()) {
+                    if (isIncluded(path))
+                        missingFiles.add(path);
+                }
+            }
+
+            if (readableChain.stream().allMatch(Restore::isZip))
+                restoreZip(readableChain, manifest, missingFiles, targetDirectory);
+            else
+                restoreSequential(readableChain, manifest, missingFiles, targetDirectory);
+
+            if (missingFiles != null && !missingFiles.isEmpty())
+                throw new IOException(missingFiles.size() + " files are missing in the backup chain.");
+        } catch (IOException e) {
+            throw new RestoreException(e);
+        } finally {
+            deleteJoined(joinedFiles);
+        }
+
+        LOGGER.debug("Restored {}.", backupFile.getName());
+    }
+
+    /**
+     * Restore zip archives. The files to extract are found in the central directories,
+     * before they are extracted by all extraction threads, the biggest files first.
+     * @param chain the readable backups of the chain, starting with the restored backup
+     * @param manifest the manifest of the restored backup, or null if it isn't incremental
+     * @param missingFiles the selected files of the manifest, which are removed when they are found
+     * @param targetDirectory the directory the server files are restored to
+     * @throws IOException file exceptions
+     */
+    private void restoreZip(List<File> chain, Manifest manifest, Set<String> missingFiles, File targetDirectory)
+            throws IOException {
+        List<ZipFile> zipFiles = new ArrayList<>();
+        try {
+            List<Extraction> extractions = new ArrayList<>();
+            Map<String, List<Source>> regionDeltas = new HashMap<>();
+
+            for (File file : chain) {
+                ZipFile zipFile = new ZipFile(file);
+                zipFiles.add(zipFile);
+
+                for (ZipEntry zipEntry : Collections.list(zipFile.entries())) {
+                    String name = zipEntry.getName();
+                    if (zipEntry.isDirectory())
+                        continue;
+
+                    if (manifest == null) {
+                        if (isIncluded(name))
+                            extractions.add(new Extraction(name, new Source(zipFile, zipEntry), List.of(), 0));
+                    } else if (name.startsWith(RegionDelta.ENTRY_PREFIX)) {
+                        String regionName = name.substring(RegionDelta.ENTRY_PREFIX.length());
+                        if (missingFiles.contains(regionName))
+                            regionDeltas.computeIfAbsent(regionName, key -> new ArrayList<>())
+                                    .add(new Source(zipFile, zipEntry));
+                    } else if (missingFiles.remove(name)) {
+                        // Newer deltas of the region file were found in the newer backups
+                        List<Source> deltas = regionDeltas.remove(name);
+                        extractions.add(new Extraction(name, new Source(zipFile, zipEntry),
+                                deltas == null ? List.of() : deltas, manifest.get(name).lastModified()));
+                    }
+                }
+                if (missingFiles != null && missingFiles.isEmpty())
+                    break;
+            }
+
+            extractions.sort(Comparator.comparingLong(
+                    (Extraction extraction) -> extraction.source().zipEntry().getCompressedSize()).reversed());
+            LOGGER.debug("Extracting {} files with {} threads.", extractions.size(), extractionThreads);
+            extractAll(extractions, targetDirectory);
+        } finally {
+            for (ZipFile zipFile : zipFiles)
+                zipFile.close();
+        }
+    }
+
+    /**
+     * Extract files of zip archives with all extraction threads.
+     * @param extractions the files to extract
+     * @param targetDirectory the directory the server files are restored to
+     * @throws IOException file exceptions of the first failed extraction
+     */
+    private void extractAll(List<Extraction> extractions, File targetDirectory) throws IOException {
+        try (ExecutorService executorService = Executors.newFixedThreadPool(extractionThreads)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Extraction extraction : extractions) {
+                futures.add(executorService.submit(() -> {
+                    extract(extraction, targetDirectory);
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<Void> future : futures)
+                    future.get();
+            } catch (ExecutionException e) {
+                executorService.shutdownNow();
+                if (e.getCause() instanceof IOException ioException)
+                    throw ioException;
+                throw new RestoreException(e.getCause());
+            } catch (InterruptedException e) {
+                executorService.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting the backup.");
+            }
+        }
+    }
+
+    /**
+     * Extract a file of a zip archive into a file, which is extended to its final size first,
+     * and rebuild a region file from its deltas.
+     * @param extraction the file to extract
+     * @param targetDirectory the directory the server files are restored to
+     * @throws IOException file exceptions or entry outside of target directory
+     */
+    private static void extract(Extraction extraction, File targetDirectory) throws IOException {
+        Path filePath = resolve(extraction.name(), targetDirectory);
+        if (filePath == null)
+            return;
+
+        ZipEntry zipEntry = extraction.source().zipEntry();
+        Files.createDirectories(filePath.getParent());
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             InputStream inputStream = extraction.source().zipFile().getInputStream(zipEntry)) {
+            if (zipEntry.getSize() > 0)
+                fileChannel.write(ByteBuffer.allocate(1), zipEntry.getSize() - 1);
+            inputStream.transferTo(Channels.newOutputStream(fileChannel));
+            fileChannel.truncate(fileChannel.position());
+        }
+
+        if (extraction.deltas().isEmpty()) {
+            filePath.toFile().setLastModified(zipEntry.getTime());
+            return;
+        }
+        List<RegionDelta> deltas = new ArrayList<>();
+        for (Source delta : extraction.deltas()) {
+            try (InputStream inputStream = delta.zipFile().getInputStream(delta.zipEntry())) {
+                deltas.add(RegionDelta.read(inputStream.readAllBytes()));
+            }
+        }
+        RegionDelta.rebuild(filePath.toFile(), deltas);
+        filePath.toFile().setLastModified(extraction.lastModified());
+    }
+
+    /**
+     * Restore backups, which contain tar archives, by reading them sequentially.
+     * @param chain the readable backups of the chain, starting with the restored backup
+     * @param manifest the manifest of the restored backup, or null if it isn't incremental
+     * @param missingFiles the selected files of the manifest, which are removed when they are found
+     * @param targetDirectory the directory the server files are restored to
+     * @throws IOException file exceptions
+     */
+    private void restoreSequential(List<File> chain, Manifest manifest, Set<String> missingFiles,
+                                   File targetDirectory) throws IOException {
+        // Not an incremental backup, so just extract every selected file
+        if (manifest == null) {
+            readEntries(chain.getFirst(), (name, lastModified, inputStream) -> {
+                if (isIncluded(name))
+                    extract(name, lastModified, inputStream, targetDirectory);
+                return true;
+            });
+            return;
+        }
+
+        Map<String, List<RegionDelta>> regionDeltas = new HashMap<>();
+        for (File file : chain) {
+            if (missingFiles.isEmpty())
+                break;
+            readEntries(file, (name, lastModified, inputStream) -> {
+                if (name.startsWith(RegionDelta.ENTRY_PREFIX)) {
+                    String regionName = name.substring(RegionDelta.ENTRY_PREFIX.length());
+                    if (missingFiles.contains(regionName))
+                        regionDeltas.computeIfAbsent(regionName, key -> new ArrayList<>())
+                                .add(RegionDelta.read(inputStream.readAllBytes()));
+                } else if (missingFiles.remove(name)) {
+                    Path filePath = extract(name, lastModified, inputStream, targetDirectory);
+
+                    // Newer deltas of the region file were found in the newer backups
+                    List<RegionDelta> deltas = regionDeltas.remove(name);
+                    if (deltas != null) {
+                        RegionDelta.rebuild(filePath.toFile(), deltas);
+                        filePath.toFile().setLastModified(manifest.get(name).lastModified());
+                    }
+                }
+                return !missingFiles.isEmpty();
+            });
+        }
+    }
+
+    /**
+     * Check if a file of the backup is selected.
+     * @param name the entry name
+     * @return true, if the file or one of its parent directories matches the included files
+     */
+    private boolean isIncluded(String name) {
+        if (includeMatchers == null)
+            return true;
+
+        for (Path path = Path.of(name); path != null; path = path.getParent()) {
+            for (PathMatcher matcher : includeMatchers) {
+                if (matcher.matches(path))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the path of an extracted file.
+     * @param name the entry name
+     * @param targetDirectory the directory the server files are restored to
+     * @return the path, or null if the entry isn't a server file
+     * @throws IOException Thrown if the entry is outside of the target directory
+     */
+    private static Path resolve(String name, File targetDirectory) throws IOException {
+        if (name.startsWith(".secureserverbackup/"))
+            return null;
+
+        Path targetPath = targetDirectory.toPath().toAbsolutePath().normalize();
+        Path filePath = targetPath.resolve(name).normalize();
+        if (!filePath.startsWith(targetPath))
+            throw new IOException("Entry " + name + " is outside of the target directory.");
+        return filePath;
+    }
+
+    /**
+     * Extract an entry of a backup.
+     * @param name the entry name
+     * @param lastModified last modification time in milliseconds
+     * @param inputStream the content of the entry
+     * @param targetDirectory the directory the server files are restored to
+     * @return the extracted file, or null if the entry isn't a server file
+     * @throws IOException file exceptions or entry outside of target directory
+     */
+    private static Path extract(String name, long lastModified, InputStream inputStream, File targetDirectory)
+            throws IOException {
+        Path filePath = resolve(name, targetDirectory);
+        if (filePath == null)
+            return null;
+
+        Files.createDirectories(filePath.getParent());
+        Files.copy(inputStream, filePath, StandardCopyOption.REPLACE_EXISTING);
+        filePath.toFile().setLastModified(lastModified);
+        return filePath;
+    }
+
+    /**
+     * Read all files of a backup in the order they were written.
+     * Files without the extension of a tar format are read as zip archive.
+     * @param backupFile the backup
+     * @param consumer action for every file
+     * @throws IOException file exceptions
+     */
+    private static void readEntries(File backupFile, EntryConsumer consumer) throws IOException {
+        if (isZip(backupFile)) {
+            try (ZipFile zipFile = new ZipFile(backupFile)) {
+                for (ZipEntry zipEntry : Collections.list(zipFile.entries())) {
+                    if (zipEntry.isDirectory())
+                        continue;
+                    try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+                        if (!consumer.accept(zipEntry.getName(), zipEntry.getTime(), inputStream))
+                            return;
+                    }
+                }
+            }
+            return;
+        }
+
+        try (InputStream inputStream = ArchiveFormat.of(backupFile).decompress(
+                new BufferedInputStream(new FileInputStream(backupFile), 64 * 1024))) {
+            TarReader tarReader = new TarReader(inputStream);
+            TarReader.Entry entry;
+            while ((entry = tarReader.next()) != null) {
+                if (!consumer.accept(entry.name(), entry.lastModified(), tarReader.getInputStream()))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Check if a backup is read as zip archive, which are all files without the extension of a tar format.
+     * @param backupFile the backup
+     * @return true, if the backup is read as zip archive
+     */
+    private static boolean isZip(File backupFile) {
+        ArchiveFormat archiveFormat = ArchiveFormat.of(backupFile);
+        return archiveFormat == null || archiveFormat == ArchiveFormat.ZIP;
+    }
+
+    /**
+     * Read the manifest of a backup.
+     * The manifest of a tar archive is its last entry, so the whole archive is read.
+     * @param backupFile the backup
+     * @return the manifest, or null if it isn't part of an incremental backup chain
+     * @throws IOException file exceptions
+     */
+    private static Manifest readManifest(File backupFile) throws IOException {
+        if (isZip(backupFile)) {
+            try (ZipFile zipFile = new ZipFile(backupFile)) {
+                ZipEntry manifestEntry = zipFile.getEntry(Manifest.ENTRY_NAME);
+                if (manifestEntry == null)
+                    return null;
+
+                try (InputStream inputStream = zipFile.getInputStream(manifestEntry)) {
+                    return Manifest.read(inputStream);
+                }
+            }
+        }
+
+        Manifest[] manifest = new Manifest[1];
+        readEntries(backupFile, (name, lastModified, inputStream) -> {
+            if (name.equals(Manifest.ENTRY_NAME))
+                manifest[0] = Manifest.read(inputStream);
+            return manifest[0] == null;
+        });
+        return manifest[0];
+    }
+}
@@ -0,0 +1,14 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+/**
+ * Thrown if a restore related exception is caught.
+ */
+public class RestoreException extends RuntimeException{
+    /**
+     * Throw unchecked restore exception.
+     * @param cause Restore related exceptions, mostly IOException
+     */
+    public RestoreException(Throwable cause) {
+        super("SecureServerBackupLibrary failed to restore the backup.", cause);
+    }
+}
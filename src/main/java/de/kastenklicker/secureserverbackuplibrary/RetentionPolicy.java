@@ -0,0 +1,156 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Policy deciding which backups of the backup directory are kept.
+ * Without generations all backups are kept, while they are within the size and count limits.
+ * With generations (grandfather-father-son) only the newest backups and the newest backup of the last
+ * hours, days, weeks and months are kept, and the limits are applied to these backups.
+ * The newest backup is always kept. Incremental backups are only kept together with the backups
+ * they depend on, and incremental backups whose full backup was deleted are deleted too.
+ */
+public class RetentionPolicy {
+
+    /**
+     * Generation of backups, of which the newest backup of every period is kept.
+     * @param count the number of periods
+     * @param period the period of a backup
+     */
+    private record Generation(int count, Function<LocalDateTime, Object> period) {}
+
+    private long maxSize;
+    private int maxCount;
+    private int keepLast;
+    private int keepHourly;
+    private int keepDaily;
+    private int keepWeekly;
+    private int keepMonthly;
+
+    /**
+     * Set the maximum size of all backups. Files of the backup directory, which aren't backups, don't count.
+     * @param maxSize the size in bytes, 0 for no limit
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Set the maximum number of backups.
+     * @param maxCount the number, 0 for no limit
+     */
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Keep the newest backups.
+     * @param keepLast the number of backups
+     */
+    public void setKeepLast(int keepLast) {
+        this.keepLast = keepLast;
+    }
+
+    /**
+     * Keep the newest backup of each of the last hours with a backup.
+     * @param keepHourly the number of hours
+     */
+    public void setKeepHourly(int keepHourly) {
+        this.keepHourly = keepHourly;
+    }
+
+    /**
+     * Keep the newest backup of each of the last days with a backup.
+     * @param keepDaily the number of days
+     */
+    public void setKeepDaily(int keepDaily) {
+        this.keepDaily = keepDaily;
+    }
+
+    /**
+     * Keep the newest backup of each of the last ISO weeks with a backup.
+     * @param keepWeekly the number of weeks
+     */
+    public void setKeepWeekly(int keepWeekly) {
+        this.keepWeekly = keepWeekly;
+    }
+
+    /**
+     * Keep the newest backup of each of the last months with a backup.
+     * @param keepMonthly the number of months
+     */
+    public void setKeepMonthly(int keepMonthly) {
+        this.keepMonthly = keepMonthly;
+    }
+
+    /**
+     * Select the backups to delete.
+     * The generations, dependencies and limits are evaluated in one pass from the newest to the oldest backup,
+     * the backups depending on deleted full backups in one pass back.
+     * @param artifacts all backups, the newest first
+     * @return the backups to delete, the oldest first
+     */
+    List<BackupCatalog.Artifact> select(List<BackupCatalog.Artifact> artifacts) {
+        List<Generation> generations = List.of(
+                new Generation(keepHourly, time -> time.truncatedTo(ChronoUnit.HOURS)),
+                new Generation(keepDaily, LocalDateTime::toLocalDate),
+                new Generation(keepWeekly, time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100
+                        + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)),
+                new Generation(keepMonthly, YearMonth::from));
+        boolean generational = keepLast > 0 || generations.stream().anyMatch(generation -> generation.count() > 0);
+
+        int[] remaining = generations.stream().mapToInt(Generation::count).toArray();
+        Object[] lastPeriods = new Object[generations.size()];
+        boolean[] keep = new boolean[artifacts.size()];
+        boolean needed = false;
+        boolean limitReached = false;
+        int count = 0;
+        long size = 0;
+
+        for (int i = 0; i < artifacts.size(); i++) {
+            BackupCatalog.Artifact artifact = artifacts.get(i);
+            keep[i] = !generational || i < keepLast || needed;
+
+            for (int g = 0; g < generations.size(); g++) {
+                Object period = generations.get(g).period().apply(artifact.time());
+                if (remaining[g] > 0 && !period.equals(lastPeriods[g])) {
+                    keep[i] = true;
+                    remaining[g]--;
+                    lastPeriods[g] = period;
+                }
+            }
+
+            // The newest backup is kept even if it exceeds the limits
+            if (keep[i] && !limitReached) {
+                count++;
+                size += artifact.size();
+                limitReached = i > 0 && (maxCount > 0 && count > maxCount || maxSize > 0 && size > maxSize);
+            }
+            keep[i] = i == 0 || keep[i] && !limitReached;
+
+            // A kept incremental backup needs all previous backups up to its full backup
+            needed = keep[i] && artifact.incremental();
+        }
+
+        // Incremental backups can't be restored without their full backup
+        List<BackupCatalog.Artifact> deleted = new ArrayList<>();
+        boolean restorable = false;
+        for (int i = artifacts.size() - 1; i >= 0; i--) {
+            BackupCatalog.Artifact artifact = artifacts.get(i);
+            if (!artifact.incremental())
+                restorable = keep[i];
+            else if (!restorable && i > 0)
+                keep[i] = false;
+
+            if (!keep[i])
+                deleted.add(artifact);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,141 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Frozen view of the included server files, which is archived while the server writes its files again.
+ * The snapshot keeps the paths of the files relative to the server directory,
+ * so it is archived with the same included and excluded files.
+ */
+class Snapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    /**
+     * Extensions of the files the server writes into instead of replacing them, which are never linked.
+     */
+    private static final Set<String> WRITTEN_IN_PLACE = Set.of("mca", "mcr", "mcc");
+
+    private final File directory;
+    private final SnapshotMode snapshotMode;
+    private boolean linkSupported;
+    private int linkedFiles;
+    private int copiedFiles;
+
+    /**
+     * Prepare the snapshot, no files are linked or copied until it is created.
+     * @param directory the directory of the snapshot, which is deleted before and after the backup
+     * @param snapshotMode how the files are frozen
+     */
+    Snapshot(File directory, SnapshotMode snapshotMode) {
+        this.directory = directory;
+        this.snapshotMode = snapshotMode;
+    }
+
+    /**
+     * Get the directory of the snapshot.
+     * @return the directory, which is used instead of the server directory
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Link or copy all found files into the snapshot directory.
+     * A snapshot left by a failed backup is deleted first.
+     * @param fileSearch the search of the included server files
+     * @param progress the progress of the backup, which may cancel the snapshot
+     * @throws IOException file exceptions
+     */
+    void create(FileSearch fileSearch, Progress progress) throws IOException {
+        delete();
+        Path snapshotPath = directory.toPath();
+        Files.createDirectories(snapshotPath);
+        linkSupported = snapshotMode == SnapshotMode.LINK;
+
+        fileSearch.walk((file, name) -> {
+            progress.checkCancelled();
+            Path target = snapshotPath.resolve(name);
+            Files.createDirectories(target.getParent());
+
+            if (!isWrittenInPlace(name) && link(file.toPath(), target)) {
+                linkedFiles++;
+            } else {
+                Files.copy(file.toPath(), target, StandardCopyOption.COPY_ATTRIBUTES);
+                copiedFiles++;
+            }
+        });
+        LOGGER.debug("Created snapshot with {} linked and {} copied files.", linkedFiles, copiedFiles);
+    }
+
+    /**
+     * Check if the server writes into a file, so a hard link wouldn't freeze it.
+     * @param name the path of the file relative to the server directory
+     * @return true, if the file is a region file
+     */
+    private static boolean isWrittenInPlace(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && WRITTEN_IN_PLACE.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Hard link a file, until the first link failed.
+     * @param file the server file
+     * @param target the file in the snapshot
+     * @return true, if the file was linked
+     */
+    private boolean link(Path file, Path target) {
+        if (!linkSupported)
+            return false;
+
+        try {
+            Files.createLink(target, file);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            LOGGER.debug("Couldn't link {} into the snapshot, copying the files instead.", file, e);
+            linkSupported = false;
+            return false;
+        }
+    }
+
+    /**
+     * Delete the snapshot directory. Deleting a link doesn't change the server file.
+     * @throws IOException file exceptions
+     */
+    void delete() throws IOException {
+        if (!directory.exists())
+            return;
+
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * Get the number of files linked into the snapshot.
+     * @return the number of linked files
+     */
+    int getLinkedFiles() {
+        return linkedFiles;
+    }
+
+    /**
+     * Get the number of files copied into the snapshot.
+     * @return the number of copied files
+     */
+    int getCopiedFiles() {
+        return copiedFiles;
+    }
+}
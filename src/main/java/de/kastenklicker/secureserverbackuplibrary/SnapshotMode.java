@@ -0,0 +1,23 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+/**
+ * How the included server files are frozen before they are archived, see {@link Backup#setSnapshotMode(SnapshotMode)}.
+ */
+public enum SnapshotMode {
+
+    /**
+     * Hard link the files into the snapshot, which takes no time and no space, but copy the region files.
+     * A hard link shares the content with the server file, so it is only frozen for files,
+     * which the server replaces instead of writing into them, like level.dat and the player data.
+     * Minecraft writes into region files (.mca, .mcr and .mcc), so they are always copied.
+     * Files, which can't be linked, for example on another file system, are copied.
+     */
+    LINK,
+
+    /**
+     * Copy the files into the snapshot. The copy runs in the kernel,
+     * which clones the content instead of copying it on file systems with reflinks, like Btrfs and XFS.
+     * Big files of a copied snapshot are memory mapped while they are zipped.
+     */
+    COPY
+}
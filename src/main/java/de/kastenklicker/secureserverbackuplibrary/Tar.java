@@ -0,0 +1,330 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Class for writing the server files into a compressed tar archive.
+ * The whole archive is compressed as one stream, which compresses better and faster than zip,
+ * but the archive can only be read sequentially.
+ * Names longer than the tar header allows and files bigger than 8 GiB are written with PAX headers.
+ */
+public class Tar implements Archive {
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+    private final FileSearch fileSearch;
+    private final ArchiveFormat archiveFormat;
+    private final OutputStream rawOutputStream;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private OutputStream outputStream;
+    private int compressionThreads = 1;
+    private int compressionLevel = DEFAULT_ZSTD_LEVEL;
+    private BiPredicate<File, String> filter = (file, name) -> true;
+    private LoadThrottle loadThrottle;
+    private Progress progress = new Progress(progress -> {});
+
+    /**
+     * The constructor for the backup tar file.
+     * @param backupFile The tar file.
+     * @param serverDirectory The directory where the server.jar is located.
+     * @param includeFiles List of files which should be included.
+     * @param excludeFiles List of files which should be excluded.
+     * @param archiveFormat The tar format of the archive.
+     * @throws ZipException Thrown if file is a directory or can't be accessed/created.
+     */
+    public Tar(File backupFile, File serverDirectory, List<String> includeFiles, List<String> excludeFiles,
+               ArchiveFormat archiveFormat) {
+        this(openFile(backupFile), serverDirectory, includeFiles, excludeFiles, archiveFormat);
+    }
+
+    /**
+     * The constructor for a backup tar, which is written to a stream.
+     * @param outputStream The stream the archive is written to, it is closed by {@link #finish()}.
+     * @param serverDirectory The directory where the server.jar is located.
+     * @param includeFiles List of files which should be included.
+     * @param excludeFiles List of files which should be excluded.
+     * @param archiveFormat The tar format of the archive.
+     */
+    public Tar(OutputStream outputStream, File serverDirectory, List<String> includeFiles, List<String> excludeFiles,
+               ArchiveFormat archiveFormat) {
+        if (archiveFormat == ArchiveFormat.ZIP)
+            throw new IllegalArgumentException("Use Zip for zip archives.");
+
+        this.fileSearch = new FileSearch(serverDirectory, includeFiles, excludeFiles);
+        this.archiveFormat = archiveFormat;
+        this.rawOutputStream = outputStream;
+    }
+
+    /**
+     * Set the number of threads compressing the archive, only used by Zstandard.
+     * Must be called before the first file is added.
+     * @param compressionThreads number of compression threads
+     */
+    @Override
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1)
+            throw new IllegalArgumentException("At least one compression thread is required.");
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Set the compression level, only used by Zstandard. The default level is 3.
+     * Must be called before the first file is added.
+     * @param compressionLevel the Zstandard level
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void setFilter(BiPredicate<File, String> filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public void setFileIndex(Collection<String> fileIndex) {
+        fileSearch.setIndex(fileIndex);
+    }
+
+    /**
+     * Slow down archiving while the server is under load.
+     * The throttle reduces the read rate and pauses between files,
+     * the number of Zstandard threads can't be changed while compressing.
+     * @param loadThrottle the throttle, or null to archive at full speed
+     */
+    @Override
+    public void setLoadThrottle(LoadThrottle loadThrottle) {
+        this.loadThrottle = loadThrottle;
+    }
+
+    @Override
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    @Override
+    public void addIncludedFiles() {
+        try {
+            fileSearch.walk((child, name) -> {
+                addFiltered(child, name);
+                progress.fileDone();
+            });
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+
+    /**
+     * Add files and directories recursive.
+     * @param file file to add
+     * @throws ZipException Wrapped IOException
+     */
+    public void add(File file) {
+        try {
+            fileSearch.walk(file, (child, name) -> {
+                addFiltered(child, name);
+                progress.fileDone();
+            });
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+
+    @Override
+    public void add(String name, byte[] data) {
+        try {
+            addEntry(name, data.length, System.currentTimeMillis(), new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            getOutputStream().write(new byte[BLOCK_SIZE * 2]);
+            outputStream.close();
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+
+    @Override
+    public void abort() {
+        try {
+            if (outputStream != null)
+                outputStream.close();
+            else
+                rawOutputStream.close();
+        } catch (IOException e) {
+            // The archive is discarded
+        }
+    }
+
+    private void addFiltered(File file, String name) throws IOException {
+        progress.scanFile(file.length());
+        if (!filter.test(file, name))
+            return;
+
+        if (loadThrottle != null) {
+            try {
+                loadThrottle.awaitFile();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ZipException(e);
+            }
+        }
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            addEntry(name, file.length(), file.lastModified(), inputStream);
+        }
+        progress.archiveFile();
+    }
+
+    /**
+     * Write an entry. Exactly the given size is written, a file which shrunk is padded with zeros.
+     * @param name the entry name
+     * @param size the size of the entry
+     * @param lastModified last modification time in milliseconds
+     * @param inputStream the content of the entry
+     * @throws IOException stream exceptions
+     */
+    private void addEntry(String name, long size, long lastModified, InputStream inputStream) throws IOException {
+        OutputStream outputStream = getOutputStream();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+
+        // Values, which don't fit into the header, are written into a PAX header before the entry
+        StringBuilder paxRecords = new StringBuilder();
+        if (nameBytes.length > NAME_LENGTH)
+            paxRecords.append(paxRecord("path", name));
+        if (size > MAX_OCTAL_SIZE)
+            paxRecords.append(paxRecord("size", Long.toString(size)));
+        if (!paxRecords.isEmpty()) {
+            byte[] pax = paxRecords.toString().getBytes(StandardCharsets.UTF_8);
+            outputStream.write(header(Arrays.copyOf(nameBytes, Math.min(nameBytes.length, NAME_LENGTH)),
+                    pax.length, lastModified, (byte) 'x'));
+            outputStream.write(pax);
+            pad(outputStream, pax.length);
+        }
+
+        outputStream.write(header(Arrays.copyOf(nameBytes, Math.min(nameBytes.length, NAME_LENGTH)),
+                Math.min(size, MAX_OCTAL_SIZE), lastModified, (byte) '0'));
+
+        long remaining = size;
+        while (remaining > 0) {
+            progress.checkCancelled();
+            if (loadThrottle != null) {
+                try {
+                    loadThrottle.acquire((int) Math.min(buffer.length, remaining));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled.");
+                }
+            }
+            int len = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (len < 0) {
+                Arrays.fill(buffer, (byte) 0);
+                len = (int) Math.min(buffer.length, remaining);
+            }
+            outputStream.write(buffer, 0, len);
+            remaining -= len;
+            progress.archiveBytes(len);
+        }
+        pad(outputStream, size);
+    }
+
+    /**
+     * Create the compressing stream on first use, so the compression can be configured after construction.
+     * @return the stream
+     * @throws IOException stream exceptions
+     */
+    private OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new BufferedOutputStream(archiveFormat.compress(
+                    new BufferedOutputStream(rawOutputStream, 64 * 1024), compressionLevel, compressionThreads),
+                    64 * 1024);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Create a ustar header.
+     * @param name the name, at most 100 bytes
+     * @param size the size, at most {@link #MAX_OCTAL_SIZE}
+     * @param lastModified last modification time in milliseconds
+     * @param type the entry type
+     * @return the header
+     */
+    private static byte[] header(byte[] name, long size, long lastModified, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, Math.max(0, lastModified / 1000));
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // The checksum is calculated with spaces in the checksum field
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xFF;
+        octal(header, 148, 7, checksum);
+
+        return header;
+    }
+
+    /**
+     * Write a number as zero padded octal string terminated by a null byte.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        String padded = "0".repeat(length - 1 - octal.length()) + octal;
+        System.arraycopy(padded.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * Create a PAX record, which starts with its own length.
+     */
+    private static String paxRecord(String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits)
+            digits++;
+        return (length + digits) + " " + key + "=" + value + "\n";
+    }
+
+    private static void pad(OutputStream outputStream, long size) throws IOException {
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        outputStream.write(new byte[padding]);
+    }
+
+    private static OutputStream openFile(File backupFile) {
+        try {
+            return new FileOutputStream(backupFile);
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
+}
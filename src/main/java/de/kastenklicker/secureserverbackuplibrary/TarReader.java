@@ -0,0 +1,163 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sequential reader for the tar archives written by {@link Tar}.
+ * Supports ustar headers and the path, size and mtime records of PAX headers.
+ */
+class TarReader {
+
+    /**
+     * Regular file of the archive.
+     * @param name the entry name
+     * @param size the size in bytes
+     * @param lastModified last modification time in milliseconds
+     */
+    record Entry(String name, long size, long lastModified) {}
+
+    private final InputStream inputStream;
+    private final byte[] header = new byte[Tar.BLOCK_SIZE];
+    private long remaining;
+    private long padding;
+
+    /**
+     * Creates the reader.
+     * @param inputStream the decompressed archive, which isn't closed
+     */
+    TarReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Skip to the next regular file.
+     * @return the entry, or null at the end of the archive
+     * @throws IOException stream exceptions or invalid archive
+     */
+    Entry next() throws IOException {
+        skip(remaining + padding);
+        remaining = 0;
+        padding = 0;
+        String paxPath = null;
+        long paxSize = -1;
+        long paxTime = -1;
+
+        while (true) {
+            if (inputStream.readNBytes(header, 0, header.length) < header.length || isZero(header))
+                return null;
+
+            String name = string(0, 100);
+            String prefix = string(345, 155);
+            if (!prefix.isEmpty())
+                name = prefix + "/" + name;
+            long size = octal(124, 12);
+            long lastModified = octal(136, 12) * 1000;
+            byte type = header[156];
+            long entryPadding = (Tar.BLOCK_SIZE - size % Tar.BLOCK_SIZE) % Tar.BLOCK_SIZE;
+
+            if (type == 'x') {
+                String records = new String(readExactly(size), StandardCharsets.UTF_8);
+                skip(entryPadding);
+                for (String record : records.split("\n")) {
+                    int space = record.indexOf(' ');
+                    int equals = record.indexOf('=');
+                    if (space < 0 || equals < space)
+                        continue;
+                    String key = record.substring(space + 1, equals);
+                    String value = record.substring(equals + 1);
+                    switch (key) {
+                        case "path" -> paxPath = value;
+                        case "size" -> paxSize = Long.parseLong(value);
+                        case "mtime" -> paxTime = (long) (Double.parseDouble(value) * 1000);
+                        default -> { }
+                    }
+                }
+                continue;
+            }
+
+            if (paxSize >= 0) {
+                size = paxSize;
+                entryPadding = (Tar.BLOCK_SIZE - size % Tar.BLOCK_SIZE) % Tar.BLOCK_SIZE;
+            }
+            remaining = size;
+            padding = entryPadding;
+
+            // Only regular files are restored, all other entries are skipped
+            if (type != '0' && type != 0) {
+                skip(remaining + padding);
+                remaining = 0;
+                padding = 0;
+                paxPath = null;
+                paxSize = -1;
+                paxTime = -1;
+                continue;
+            }
+
+            return new Entry(paxPath != null ? paxPath : name, size, paxTime >= 0 ? paxTime : lastModified);
+        }
+    }
+
+    /**
+     * Get the content of the current entry.
+     * @return stream ending at the end of the entry, which mustn't be used after {@link #next()}
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0)
+                    return -1;
+                int read = inputStream.read(b, off, (int) Math.min(len, remaining));
+                if (read < 0)
+                    throw new IOException("Unexpected end of tar archive.");
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+
+    private byte[] readExactly(long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Tar header is too big.");
+        byte[] data = inputStream.readNBytes((int) size);
+        if (data.length < size)
+            throw new IOException("Unexpected end of tar archive.");
+        return data;
+    }
+
+    private void skip(long bytes) throws IOException {
+        inputStream.skipNBytes(bytes);
+    }
+
+    private String string(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+            end++;
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private long octal(int offset, int length) throws IOException {
+        String value = string(offset, length).trim();
+        try {
+            return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid tar header.", e);
+        }
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stream writing the same data to several streams.
+ * A failing required stream fails the whole stream. A failing optional stream is dropped,
+ * so the other streams still receive all data. A dropped upload is aborted, so it isn't completed
+ * with the data written so far.
+ */
+class TeeOutputStream extends OutputStream {
+
+    private final List<OutputStream> requiredStreams = new ArrayList<>();
+    private final List<OutputStream> optionalStreams = new ArrayList<>();
+    private final Map<OutputStream, IOException> failures = new HashMap<>();
+
+    /**
+     * Add a stream, whose exceptions are thrown.
+     * @param outputStream the stream
+     */
+    void addRequired(OutputStream outputStream) {
+        requiredStreams.add(outputStream);
+    }
+
+    /**
+     * Add a stream, which is dropped if it fails.
+     * @param outputStream the stream
+     */
+    void addOptional(OutputStream outputStream) {
+        optionalStreams.add(outputStream);
+    }
+
+    /**
+     * Get the number of optional streams, which weren't dropped yet.
+     * @return number of optional streams
+     */
+    int getOptionalCount() {
+        return optionalStreams.size();
+    }
+
+    /**
+     * Get the exception of a dropped optional stream.
+     * @param outputStream the optional stream
+     * @return the exception, or null if the stream didn't fail
+     */
+    IOException getFailure(OutputStream outputStream) {
+        return failures.get(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (OutputStream outputStream : requiredStreams)
+            outputStream.write(b, off, len);
+
+        Iterator<OutputStream> iterator = optionalStreams.iterator();
+        while (iterator.hasNext()) {
+            OutputStream outputStream = iterator.next();
+            try {
+                outputStream.write(b, off, len);
+            } catch (IOException e) {
+                iterator.remove();
+                drop(outputStream, e);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputStream outputStream : requiredStreams)
+            outputStream.flush();
+
+        Iterator<OutputStream> iterator = optionalStreams.iterator();
+        while (iterator.hasNext()) {
+            OutputStream outputStream = iterator.next();
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                iterator.remove();
+                drop(outputStream, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (OutputStream outputStream : optionalStreams) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                failures.put(outputStream, e);
+            }
+        }
+        optionalStreams.clear();
+
+        IOException exception = null;
+        for (OutputStream outputStream : requiredStreams) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                if (exception == null)
+                    exception = e;
+                else
+                    exception.addSuppressed(e);
+            }
+        }
+        requiredStreams.clear();
+
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * Close all streams after the data couldn't be written completely.
+     * Uploads are aborted instead of completed, exceptions are ignored.
+     */
+    void abort() {
+        for (OutputStream outputStream : optionalStreams) {
+            try {
+                if (outputStream instanceof UploadOutputStream uploadOutputStream)
+                    uploadOutputStream.abort();
+                else
+                    outputStream.close();
+            } catch (IOException e) {
+                failures.put(outputStream, e);
+            }
+        }
+        optionalStreams.clear();
+
+        for (OutputStream outputStream : requiredStreams) {
+            try {
+                outputStream.close();
+            } catch (IOException ignore) {}
+        }
+        requiredStreams.clear();
+    }
+
+    private void drop(OutputStream outputStream, IOException exception) {
+        try {
+            if (outputStream instanceof UploadOutputStream uploadOutputStream)
+                uploadOutputStream.abort();
+            else
+                outputStream.close();
+        } catch (IOException e) {
+            exception.addSuppressed(e);
+        }
+        failures.put(outputStream, exception);
+    }
+}
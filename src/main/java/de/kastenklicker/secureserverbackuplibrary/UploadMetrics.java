@@ -0,0 +1,32 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.time.Duration;
+
+/**
+ * Metrics of uploading a backup with one upload client.
+ * @param hostname the hostname of the upload client
+ * @param bytes the uploaded bytes
+ * @param duration how long the upload took, including failed attempts
+ * @param retries how often the upload was retried
+ * @param successful if the upload was successful
+ */
+public record UploadMetrics(String hostname, long bytes, Duration duration, int retries, boolean successful) {
+
+    /**
+     * Get the average upload rate.
+     * @return the rate in MiB/s, 0 if nothing was uploaded
+     */
+    public double getMegabytesPerSecond() {
+        return rate(bytes / (1024.0 * 1024.0), duration);
+    }
+
+    /**
+     * Divide an amount by a duration.
+     * @param amount the amount
+     * @param duration the duration
+     * @return the amount per second, 0 for an empty duration
+     */
+    static double rate(double amount, Duration duration) {
+        return duration.isZero() ? 0 : amount * 1e9 / duration.toNanos();
+    }
+}
@@ -0,0 +1,163 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import de.kastenklicker.secureserverbackuplibrary.upload.FileDigest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Stream splitting a backup into volumes of a fixed size, which are handed over as soon as they are closed.
+ * The volumes are named like the backup, followed by their number starting at .001,
+ * so joining them in order, for example with {@code cat backup.zip.* > backup.zip}, gives the backup archive.
+ */
+class VolumeOutputStream extends OutputStream {
+
+    /**
+     * Listener for closed volumes.
+     */
+    interface VolumeListener {
+        /**
+         * Called on the writing thread after a volume was closed.
+         * @param volume the closed volume
+         * @param digest the checksums of the volume, or null if they aren't computed
+         * @throws IOException to stop writing the backup
+         */
+        void closed(File volume, FileDigest digest) throws IOException;
+    }
+
+    private final File backupFile;
+    private final long volumeSize;
+    private final boolean checksums;
+    private final VolumeListener volumeListener;
+    private final List<File> volumes = new ArrayList<>();
+    private OutputStream outputStream;
+    private ChecksumOutputStream checksumOutputStream;
+    private long written;
+    private boolean closed;
+
+    /**
+     * Creates the stream, the first volume is created by the first write.
+     * @param backupFile the backup, which is written as volumes
+     * @param volumeSize the size of every volume except the last one
+     * @param checksums if the checksums of every volume are computed
+     * @param volumeListener the listener for closed volumes
+     */
+    VolumeOutputStream(File backupFile, long volumeSize, boolean checksums, VolumeListener volumeListener) {
+        if (volumeSize <= 0)
+            throw new IllegalArgumentException("The volume size must be positive.");
+        this.backupFile = backupFile;
+        this.volumeSize = volumeSize;
+        this.checksums = checksums;
+        this.volumeListener = volumeListener;
+    }
+
+    /**
+     * Get the existing volumes of a backup.
+     * @param backupFile the backup
+     * @return the volumes, ordered by their number
+     */
+    static List<File> list(File backupFile) {
+        Pattern volumePattern = Pattern.compile(Pattern.quote(backupFile.getName()) + "\\.\\d{3,}");
+        File[] files = backupFile.getAbsoluteFile().getParentFile()
+                .listFiles(file -> volumePattern.matcher(file.getName()).matches());
+        if (files == null)
+            return List.of();
+
+        return Arrays.stream(files)
+                .sorted(Comparator.comparingInt(file -> getNumber(backupFile, file)))
+                .toList();
+    }
+
+    /**
+     * Get the number of a volume.
+     * @param backupFile the backup
+     * @param volume the volume of the backup
+     * @return the number, starting at 1
+     */
+    static int getNumber(File backupFile, File volume) {
+        return Integer.parseInt(volume.getName().substring(backupFile.getName().length() + 1));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (outputStream == null)
+                openVolume();
+
+            int length = (int) Math.min(len, volumeSize - written);
+            outputStream.write(b, off, length);
+            written += length;
+            off += length;
+            len -= length;
+
+            if (written == volumeSize)
+                closeVolume();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (outputStream != null)
+            outputStream.flush();
+    }
+
+    /**
+     * Close the last volume. An empty backup still gets one volume.
+     * @throws IOException file exceptions, or the exception of the volume listener
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        if (volumes.isEmpty())
+            openVolume();
+        if (outputStream != null)
+            closeVolume();
+    }
+
+    /**
+     * Get the volumes written so far.
+     * @return the volumes, which may have been deleted after their upload
+     */
+    List<File> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * Create the next volume.
+     * @throws IOException file exceptions
+     */
+    private void openVolume() throws IOException {
+        File volume = new File(backupFile.getParentFile(),
+                backupFile.getName() + String.format(".%03d", volumes.size() + 1));
+        outputStream = new FileOutputStream(volume);
+        if (checksums)
+            outputStream = checksumOutputStream = new ChecksumOutputStream(outputStream);
+        volumes.add(volume);
+        written = 0;
+    }
+
+    /**
+     * Close the current volume and hand it to the listener.
+     * @throws IOException file exceptions, or the exception of the volume listener
+     */
+    private void closeVolume() throws IOException {
+        outputStream.close();
+        outputStream = null;
+        volumeListener.closed(volumes.getLast(), checksums ? checksumOutputStream.getDigest() : null);
+    }
+}
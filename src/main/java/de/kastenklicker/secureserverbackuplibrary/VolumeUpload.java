@@ -0,0 +1,148 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import de.kastenklicker.secureserverbackuplibrary.upload.FileDigest;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadClient;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads the volumes of a split backup to all upload clients, while the next volumes are written.
+ * Every upload client uploads the volumes one after another on its own virtual thread.
+ * An upload client skips the remaining volumes after a failed upload.
+ * If uploaded volumes are deleted, writing waits while {@value #MAX_PENDING_VOLUMES} volumes aren't uploaded yet,
+ * so the backup needs at most the space of a few volumes in the backup directory.
+ */
+class VolumeUpload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+    private static final int MAX_PENDING_VOLUMES = 2;
+
+    private final List<UploadClient> uploadClients;
+    private final Progress progress;
+    private final boolean deleteUploaded;
+    private final List<ExecutorService> executorServices = new ArrayList<>();
+    private final UploadException[] exceptions;
+    private final long[] bytes;
+    private final Semaphore pendingVolumes = new Semaphore(MAX_PENDING_VOLUMES);
+    private volatile boolean aborted;
+
+    /**
+     * Start the uploads, which wait for the first volume.
+     * @param uploadClients the upload clients
+     * @param progress the progress of the backup, which counts the uploaded bytes
+     * @param deleteUploaded if a volume is deleted after all upload clients uploaded it
+     */
+    VolumeUpload(List<UploadClient> uploadClients, Progress progress, boolean deleteUploaded) {
+        this.uploadClients = uploadClients;
+        this.progress = progress;
+        this.deleteUploaded = deleteUploaded;
+        this.exceptions = new UploadException[uploadClients.size()];
+        this.bytes = new long[uploadClients.size()];
+        for (int i = 0; i < uploadClients.size(); i++)
+            executorServices.add(Executors.newSingleThreadExecutor(Thread.ofVirtual().factory()));
+    }
+
+    /**
+     * Queue the upload of a file with all upload clients.
+     * @param file the volume, or another file of the backup
+     * @param digest the checksums of the file, which are verified after its upload, or null
+     * @param deletable if the file is deleted after its upload, if uploaded volumes are deleted
+     * @throws InterruptedIOException Thrown if the thread was interrupted while waiting for the uploads
+     */
+    void add(File file, FileDigest digest, boolean deletable) throws InterruptedIOException {
+        if (aborted)
+            return;
+
+        if (deleteUploaded) {
+            try {
+                pendingVolumes.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the upload of the volumes.");
+            }
+        }
+
+        long length = file.length();
+        AtomicInteger remaining = new AtomicInteger(uploadClients.size());
+        AtomicBoolean uploaded = new AtomicBoolean(true);
+        if (uploadClients.isEmpty())
+            uploaded(file, deletable, false);
+
+        for (int i = 0; i < uploadClients.size(); i++) {
+            int index = i;
+            UploadClient uploadClient = uploadClients.get(i);
+            executorServices.get(i).execute(() -> {
+                try {
+                    if (exceptions[index] == null && !aborted) {
+                        uploadClient.upload(file, digest);
+                        bytes[index] += length;
+                        progress.uploadBytes(length);
+                    }
+                } catch (UploadException e) {
+                    exceptions[index] = e;
+                } finally {
+                    if (exceptions[index] != null || aborted)
+                        uploaded.set(false);
+                    if (remaining.decrementAndGet() == 0)
+                        uploaded(file, deletable, uploaded.get());
+                }
+            });
+        }
+    }
+
+    /**
+     * Release a file after all upload clients tried to upload it.
+     * @param file the file
+     * @param deletable if the file may be deleted
+     * @param uploaded if all upload clients uploaded the file
+     */
+    private void uploaded(File file, boolean deletable, boolean uploaded) {
+        if (!deleteUploaded)
+            return;
+
+        // Volumes, which weren't uploaded everywhere, are kept as local copy
+        if (deletable && uploaded && !file.delete())
+            LOGGER.warn("Couldn't delete uploaded volume {}.", file.getName());
+        pendingVolumes.release();
+    }
+
+    /**
+     * Wait until all queued files are uploaded.
+     * @return the exception of every upload client, null if all its uploads succeeded
+     */
+    List<UploadException> finish() {
+        executorServices.forEach(ExecutorService::close);
+        return Arrays.asList(exceptions);
+    }
+
+    /**
+     * Stop the uploads of a backup, which couldn't be finished.
+     * Running uploads are interrupted and queued uploads are skipped.
+     */
+    void abort() {
+        aborted = true;
+        executorServices.forEach(ExecutorService::shutdownNow);
+        executorServices.forEach(ExecutorService::close);
+    }
+
+    /**
+     * Get the bytes uploaded by an upload client.
+     * @param index the index of the upload client
+     * @return the uploaded bytes
+     */
+    long getBytes(int index) {
+        return bytes[index];
+    }
+}
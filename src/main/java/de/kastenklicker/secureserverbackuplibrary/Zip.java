@@ -1,27 +1,87 @@
 package de.kastenklicker.secureserverbackuplibrary;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Class for zipping the server files.
+ * Files are split into blocks, which are deflated either on the calling thread
+ * or on a pool of compression threads. The blocks are always written in the order the files were added,
+ * so the resulting archive is the same for any number of threads.
+ * A {@link CompressionPolicy} can decide to store files uncompressed or to use another deflate level.
+ * The files are read with a {@link FileChannel} into buffers, which are reused once their block was written,
+ * and big files can be memory mapped, so the deflater reads them without copying them first.
  */
-public class Zip {
+public class Zip implements Archive {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final ZipWriter zipWriter;
+    private final FileSearch fileSearch;
+    private final Deque<Block> pendingBlocks = new ArrayDeque<>();
+    private final Deque<ByteBuffer> inputBuffers = new ArrayDeque<>();
+    private final Deque<byte[]> outputBuffers = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer dictionaryBuffer;
 
-    private final ZipOutputStream zipOutputStream;
-    private final FileOutputStream fileOutputStream;
-    private final Set<File> includedFiles;
-    private final Set<File> excludeFiles;
-    private final File serverDirectory;
+    private int compressionThreads = 1;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private long memoryMapThreshold = 0;
+    private ExecutorService executorService;
+    private BiPredicate<File, String> filter = (file, name) -> true;
+    private CompressionPolicy compressionPolicy;
+    private Consumer<CompressionResult> compressionListener = result -> {};
+    private LoadThrottle loadThrottle;
+    private Progress progress = new Progress(progress -> {});
+    private long storedFiles;
+    private long compressedFiles;
+    private long savedBytes;
+
+    /**
+     * Block of a file, which is compressed independently of the other blocks.
+     * @param entry the zip entry the block belongs to
+     * @param level the deflate level of the entry, {@link CompressionPolicy#STORED} if it isn't compressed
+     * @param input the uncompressed data, a pooled or memory mapped buffer, or null if it isn't a file
+     * @param data the future compressed data
+     * @param first if this is the first block of the entry
+     * @param last if this is the last block of the entry
+     */
+    private record Block(ZipWriter.Entry entry, int level, ByteBuffer input, Future<Data> data,
+                         boolean first, boolean last) {}
+
+    /**
+     * Data written to the zip.
+     * @param array the array containing the data, a pooled buffer unless the data didn't fit into it
+     * @param length the length of the data
+     */
+    private record Data(byte[] array, int length) {}
 
     /**
      * The constructor for the backup zip file.
@@ -31,27 +91,118 @@ public class Zip {
      * @throws ZipException Thrown if file is a directory or can't be accessed/created.
      */
     public Zip(File backupFile, File serverDirectory, List<String> includeFiles, List<String> excludeFiles) {
-        this.serverDirectory = serverDirectory;
-        
-        // Get all files which should be included
-        this.includedFiles = getFilesByRegex(includeFiles);
-        
-        // Get all files which shouldn't be included
-        this.excludeFiles = getFilesByRegex(excludeFiles);
+        this(openFile(backupFile), serverDirectory, includeFiles, excludeFiles);
+    }
+
+    /**
+     * The constructor for a backup zip, which is written to a stream.
+     * The zip is written strictly sequential, so the stream can be a network stream.
+     * @param outputStream The stream the zip is written to, it is closed by {@link #finish()}.
+     * @param serverDirectory The directory where the server.jar is located.
+     * @param excludeFiles List of files which should be excluded.
+     */
+    public Zip(OutputStream outputStream, File serverDirectory, List<String> includeFiles, List<String> excludeFiles) {
+        this.fileSearch = new FileSearch(serverDirectory, includeFiles, excludeFiles);
 
         // Create Zip OutputStream
-        try {
-            fileOutputStream = new FileOutputStream(backupFile);
+        zipWriter = new ZipWriter(new BufferedOutputStream(outputStream, 64 * 1024));
+    }
 
-            zipOutputStream = new ZipOutputStream(fileOutputStream);
-            zipOutputStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+    /**
+     * Get the files and directories matching the included files.
+     * The server directory is searched on every call, use {@link #addIncludedFiles()} to zip them.
+     * @return the included files, which aren't excluded
+     * @throws ZipException Wrapped IOException
+     */
+    public Set<File> getIncludedFiles() {
+        try {
+            return fileSearch.getIncludedFiles();
         } catch (IOException e) {
             throw new ZipException(e);
         }
     }
 
-    public Set<File> getIncludedFiles() {
-        return includedFiles;
+    /**
+     * Set the number of threads compressing the files.
+     * With one thread, which is the default, all files are compressed on the calling thread.
+     * Must be called before the first file is zipped.
+     * @param compressionThreads number of compression threads
+     */
+    @Override
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1)
+            throw new IllegalArgumentException("At least one compression thread is required.");
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Set the size of the blocks big files are split into, so they can be compressed in parallel.
+     * Must be called before the first file is zipped.
+     * @param blockSize block size in bytes
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < DICTIONARY_SIZE)
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes.");
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Memory map files, which are compressed and at least this big, instead of reading them into buffers.
+     * The deflater reads mapped files directly from the page cache, but the JVM crashes if a mapped file
+     * is truncated while it is zipped, so only files no other process writes to should be mapped,
+     * like the files of a copied snapshot.
+     * @param memoryMapThreshold the minimum file size in bytes, 0 disables memory mapping, which is the default
+     */
+    public void setMemoryMapThreshold(long memoryMapThreshold) {
+        this.memoryMapThreshold = memoryMapThreshold;
+    }
+
+    /**
+     * Set a filter deciding which of the not excluded files are zipped.
+     * The filter is called with every file and its entry name, before the file is zipped.
+     * @param filter the filter
+     */
+    @Override
+    public void setFilter(BiPredicate<File, String> filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public void setFileIndex(Collection<String> fileIndex) {
+        fileSearch.setIndex(fileIndex);
+    }
+
+    /**
+     * Set the policy deciding how every file is compressed.
+     * Without a policy, which is the default, all files are deflated with the default level.
+     * @param compressionPolicy the policy, or null to deflate all files
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Set a listener, which is called after every file was written with how it was compressed.
+     * @param compressionListener the listener
+     */
+    public void setCompressionListener(Consumer<CompressionResult> compressionListener) {
+        this.compressionListener = compressionListener;
+    }
+
+    /**
+     * Slow down zipping while the server is under load.
+     * The throttle reduces the read rate and the number of blocks compressed at the same time,
+     * and pauses between files.
+     * @param loadThrottle the throttle, or null to zip at full speed
+     */
+    @Override
+    public void setLoadThrottle(LoadThrottle loadThrottle) {
+        this.loadThrottle = loadThrottle;
+    }
+
+    @Override
+    public void setProgress(Progress progress) {
+        this.progress = progress;
     }
 
     /**
@@ -62,39 +213,53 @@ public class Zip {
     public void zip(File file) throws ZipException {
 
         try {
-            // Check if file should be excluded from the backup
-            if (excludeFiles.contains(file))
-                return;
-
-            // If file is a directory, add all of its child files, if there are any
-            if (file.isDirectory()) {
-                Optional<File[]> optionalFiles = Optional.ofNullable(file.listFiles());
-                if (optionalFiles.isPresent()) {
-                    for (File child : optionalFiles.get()) {
-                        zip(child);
-                    }
-                }
-            } else {
-
-                // File is a real file, so add it
-                // Add Entry
-                ZipEntry zipEntry = new ZipEntry(file.getAbsolutePath()
-                        .replace(serverDirectory.getAbsolutePath(), "").substring(1));
-
-                zipOutputStream.putNextEntry(zipEntry);
+            fileSearch.walk(file, (child, name) -> {
+                progress.scanFile(child.length());
+                if (filter.test(child, name))
+                    addFile(child, name);
+                progress.fileDone();
+            });
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
 
-                // Write file to zip
-                byte[] buf = new byte['?'];
+    /**
+     * Zip all included files, while the server directory is searched.
+     * @throws ZipException Wrapped IOException
+     */
+    @Override
+    public void addIncludedFiles() {
+        try {
+            fileSearch.walk((file, name) -> {
+                progress.scanFile(file.length());
+                if (filter.test(file, name))
+                    addFile(file, name);
+                progress.fileDone();
+            });
+        } catch (IOException e) {
+            throw new ZipException(e);
+        }
+    }
 
-                FileInputStream fileInputStream = new FileInputStream(file);
-                int len;
-                while ((len = fileInputStream.read(buf)) > 0) {
-                    zipOutputStream.write(buf, 0, len);
-                }
+    /**
+     * Add an entry, which isn't a file of the server directory.
+     * @param name the entry name
+     * @param data the content of the entry
+     * @throws ZipException Wrapped IOException
+     */
+    @Override
+    public void add(String name, byte[] data) {
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, ZipWriter.DEFLATED, System.currentTimeMillis(),
+                false, data.length);
+        crc.reset();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        entry.setSize(data.length);
 
-                zipOutputStream.closeEntry();
-                fileInputStream.close();
-            }
+        try {
+            queueBlock(new Block(entry, Deflater.DEFAULT_COMPRESSION, null,
+                    compress(ByteBuffer.wrap(data), null, true, Deflater.DEFAULT_COMPRESSION, false), true, true));
         } catch (IOException e) {
             throw new ZipException(e);
         }
@@ -104,60 +269,322 @@ public class Zip {
      * Finish up the zip file
      * @throws ZipException OutputStream Exceptions.
      */
+    @Override
     public void finish() {
         try {
-            zipOutputStream.flush();
-            zipOutputStream.close();
-            fileOutputStream.close();
+            while (!pendingBlocks.isEmpty())
+                writeBlock();
+            zipWriter.finish();
+            LOGGER.debug("Compressed {} files and stored {} files uncompressed, saving {} bytes.",
+                    compressedFiles, storedFiles, savedBytes);
         } catch (IOException e) {
             throw new ZipException(e);
+        } finally {
+            if (executorService != null)
+                executorService.shutdownNow();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (executorService != null)
+            executorService.shutdownNow();
+        pendingBlocks.clear();
+        inputBuffers.clear();
+        outputBuffers.clear();
+        try {
+            zipWriter.close();
+        } catch (IOException e) {
+            LOGGER.debug("Couldn't close aborted zip.", e);
         }
     }
 
     /**
-     * Get Files by its regex path.
-     * @param filePaths regex paths
-     * @return Set of files found matching at least one regex
+     * Open the zip file.
+     * @param backupFile The zip file.
+     * @return stream to the zip file
+     * @throws ZipException Thrown if file is a directory or can't be accessed/created.
      */
-    private Set<File> getFilesByRegex(List<String> filePaths) {
-
-        Set<PathMatcher> regexMatchers = new HashSet<>();
-        
-        // Create Path Matchers from regex
-        for (String filePath : filePaths) {
-            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filePath);
-            regexMatchers.add(matcher);
+    private static OutputStream openFile(File backupFile) {
+        try {
+            return new FileOutputStream(backupFile);
+        } catch (IOException e) {
+            throw new ZipException(e);
         }
-        
-        return searchFile(this.serverDirectory, new HashSet<>(), regexMatchers);
     }
 
     /**
-     * Find file by matching regex.
+     * Split a file into blocks and queue them for compression.
+     * The file is read up to the size it had when it was added.
+     * Files stored uncompressed are written from the buffer they are read into,
+     * so their blocks don't need a compression thread.
+     * Streaming unzippers can't find the end of stored data with a data descriptor, so files with several blocks,
+     * which shouldn't be compressed, are deflated without compression instead, adding 5 bytes per 64 KiB.
      * @param file the file
-     * @param foundFiles already found files
-     * @param matchers the path matchers
-     * @return Found files, including already found files
+     * @param name the entry name
+     * @throws IOException file and stream exceptions
      */
-    private Set<File> searchFile(File file, Set<File> foundFiles, final Set<PathMatcher> matchers) {
+    private void addFile(File file, String name) throws IOException {
+        long size = file.length();
+        int level = compressionPolicy == null ?
+                Deflater.DEFAULT_COMPRESSION : compressionPolicy.getLevel(file, name);
+        boolean dataDescriptor = size > blockSize;
+        boolean stored = level == CompressionPolicy.STORED && !dataDescriptor;
+        int method = stored ? ZipWriter.STORED : ZipWriter.DEFLATED;
+        boolean mapped = memoryMapThreshold > 0 && size >= memoryMapThreshold && !stored;
+        throttle(-1);
 
-        for (File childFile : file.listFiles()) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ZipWriter.Entry entry = new ZipWriter.Entry(name, method, file.lastModified(), dataDescriptor, size);
+            crc.reset();
 
-            // Check if file matches one Path Matcher
-            for (PathMatcher matcher : matchers) {
-                if (matcher.matches(serverDirectory.toPath().relativize(childFile.toPath()))) {
-                    // A Matching was found, add to foundFiles Set
-                    foundFiles.add(childFile);
-                    break;
+            long read = 0;
+            ByteBuffer previous = null;
+            ByteBuffer window = null;
+            long windowStart = 0;
+            boolean first = true;
+            boolean last;
+
+            do {
+                progress.checkCancelled();
+                int length = (int) Math.min(blockSize, size - read);
+                throttle(length);
+
+                ByteBuffer data;
+                if (mapped) {
+                    // Map a window of several blocks, so not every block needs its own mapping
+                    length = (int) Math.max(0, Math.min(length, fileChannel.size() - read));
+                    if (window == null || read + length > windowStart + window.capacity()) {
+                        windowStart = read;
+                        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, read,
+                                Math.min(Math.max(MAP_WINDOW_SIZE, blockSize), fileChannel.size() - read));
+                    }
+                    data = window.slice((int) (read - windowStart), length);
+                } else {
+                    data = acquireInputBuffer();
+                    data.limit(length);
+                    while (data.hasRemaining() && fileChannel.read(data) >= 0);
+                    data.flip();
                 }
-            }
 
-            // If file is directory, check if one of its children matches a Path
-            if (childFile.isDirectory()) {                
-                searchFile(childFile, foundFiles, matchers);
+                read += data.remaining();
+                progress.archiveBytes(data.remaining());
+                last = read >= size || data.remaining() < length || data.remaining() == 0;
+                crc.update(data);
+                data.rewind();
+
+                if (last) {
+                    entry.setCrc(crc.getValue());
+                    entry.setSize(read);
+                }
+
+                queueBlock(new Block(entry, level, data, compress(data, previous, last, level, stored), first, last));
+                previous = data;
+                first = false;
+            } while (!last);
+        }
+        progress.archiveFile();
+    }
+
+    /**
+     * Get a buffer for a block from the pool, or allocate one if all buffers are in use.
+     * @return the empty buffer with the capacity of a block
+     */
+    private ByteBuffer acquireInputBuffer() {
+        ByteBuffer buffer = inputBuffers.pollFirst();
+        if (buffer == null || buffer.capacity() != blockSize)
+            buffer = ByteBuffer.allocate(blockSize);
+        return buffer.clear();
+    }
+
+    /**
+     * Get the size of the buffers deflated blocks are written into, which fits a block in almost every case.
+     * @return the size in bytes
+     */
+    private int getOutputBufferSize() {
+        return blockSize + blockSize / 8 + 64;
+    }
+    /**
+     * Wait for the load throttle before a file or block is read.
+     * @param bytes the size of the block, or -1 before a file
+     * @throws ZipException Thrown if interrupted while waiting
+     */
+    private void throttle(int bytes) {
+        if (loadThrottle == null)
+            return;
+        try {
+            if (bytes < 0)
+                loadThrottle.awaitFile();
+            else
+                loadThrottle.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZipException(e);
+        }
+    }
+
+    /**
+     * Compress a block on the compression threads, or right away if there is just one thread.
+     * The buffers of the data and the dictionary must not change until the block was written.
+     * @param data uncompressed data, a heap buffer if it isn't compressed
+     * @param dictionary the previous block of the same file, if there is one
+     * @param last if the deflate stream should be finished with this block
+     * @param level the deflate level, {@link CompressionPolicy#STORED} deflates without compression
+     * @param stored if the data is returned as it is, for an entry stored uncompressed
+     * @return the future compressed data
+     */
+    private Future<Data> compress(ByteBuffer data, ByteBuffer dictionary, boolean last, int level, boolean stored) {
+        if (stored)
+            return CompletableFuture.completedFuture(new Data(data.array(), data.limit()));
+
+        byte[] output = outputBuffers.pollFirst();
+        if (output == null)
+            output = new byte[getOutputBufferSize()];
+
+        // The dictionary is sliced here, because the compression thread of the previous block moves its position
+        ByteBuffer dictionarySlice = null;
+        if (dictionary != null) {
+            int length = Math.min(dictionary.limit(), DICTIONARY_SIZE);
+            dictionarySlice = dictionary.slice(dictionary.limit() - length, length);
+        }
+
+        if (compressionThreads == 1)
+            return CompletableFuture.completedFuture(deflate(data, dictionarySlice, last, level, output));
+
+        if (executorService == null)
+            executorService = Executors.newFixedThreadPool(compressionThreads);
+
+        ByteBuffer finalDictionary = dictionarySlice;
+        byte[] finalOutput = output;
+        return executorService.submit(() -> deflate(data, finalDictionary, last, level, finalOutput));
+    }
+
+    /**
+     * Deflate a block into an output buffer, which is replaced by a bigger buffer if the data doesn't fit.
+     * Blocks which aren't the last one end with a sync flush, so the blocks of a file
+     * can be concatenated to a single deflate stream.
+     * The end of the previous block is used as dictionary to keep the compression ratio.
+     * @param data uncompressed data
+     * @param dictionary the end of the previous block of the same file, if there is one
+     * @param last if the deflate stream should be finished with this block
+     * @param level the deflate level
+     * @param output the buffer the compressed data is written to
+     * @return the compressed data
+     */
+    private static Data deflate(ByteBuffer data, ByteBuffer dictionary, boolean last, int level, byte[] output) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+
+        deflater.setInput(data);
+        int length = 0;
+
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+                length += deflater.deflate(output, length, output.length - length);
+            }
+        } else {
+            // The first call after a level change only changes the level and may not consume any input
+            while (true) {
+                length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                if (length < output.length && deflater.needsInput())
+                    break;
+                if (length == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
             }
         }
-        
-        return foundFiles;
+
+        return new Data(output, length);
+    }
+
+    /**
+     * Queue a block and write finished blocks, so only a few blocks per thread are held in memory.
+     * @param block the block
+     * @throws IOException stream exceptions
+     */
+    private void queueBlock(Block block) throws IOException {
+        pendingBlocks.addLast(block);
+
+        int parallelism = loadThrottle == null ? compressionThreads : loadThrottle.getParallelism(compressionThreads);
+        int maxPendingBlocks = parallelism == 1 ? 0 : parallelism * 2;
+        while (pendingBlocks.size() > maxPendingBlocks)
+            writeBlock();
+    }
+
+    /**
+     * Wait for the oldest block to be compressed and write it to the zip file.
+     * @throws IOException stream exceptions
+     */
+    private void writeBlock() throws IOException {
+        Block block = pendingBlocks.removeFirst();
+        Data data;
+        try {
+            data = block.data().get();
+        } catch (ExecutionException e) {
+            throw new ZipException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZipException(e);
+        }
+
+        ZipWriter.Entry entry = block.entry();
+        if (block.first()) {
+            if (block.last())
+                entry.setCompressedSize(data.length());
+            zipWriter.putEntry(entry);
+        }
+
+        zipWriter.write(data.array(), 0, data.length());
+        recycle(block, data);
+
+        if (block.last()) {
+            zipWriter.closeEntry();
+            report(new CompressionResult(entry.getName(), block.level(), entry.getSize(), entry.getCompressedSize()));
+        }
+    }
+
+    /**
+     * Return the buffers of a written block to the pools.
+     * The input of a block is the dictionary of the next block of the file, so it is returned after that block.
+     * @param block the written block
+     * @param data the written data
+     */
+    private void recycle(Block block, Data data) {
+        // Stored blocks are written from their input buffer, which has the size of a block
+        if (data.array().length == getOutputBufferSize())
+            outputBuffers.addFirst(data.array());
+
+        if (dictionaryBuffer != null) {
+            inputBuffers.addFirst(dictionaryBuffer);
+            dictionaryBuffer = null;
+        }
+
+        // Memory mapped buffers are unmapped by the garbage collector
+        ByteBuffer input = block.input();
+        if (input == null || input.isDirect())
+            return;
+        if (block.last())
+            inputBuffers.addFirst(input);
+        else
+            dictionaryBuffer = input;
+    }
+
+    /**
+     * Count how a file was compressed and pass it to the listener.
+     * @param compressionResult how the file was compressed
+     */
+    private void report(CompressionResult compressionResult) {
+        if (compressionResult.isStored())
+            storedFiles++;
+        else
+            compressedFiles++;
+        savedBytes += compressionResult.getSavedBytes();
+        compressionListener.accept(compressionResult);
     }
 }
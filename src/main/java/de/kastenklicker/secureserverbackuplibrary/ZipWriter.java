@@ -0,0 +1,340 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequential writer for the zip file format, which accepts already compressed entry data.
+ * Entries bigger than 4 GiB and archives with more than 65535 entries are written in the ZIP64 format.
+ */
+class ZipWriter {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /**
+     * Entries whose expected size reaches this limit announce ZIP64 sizes in their local header.
+     * The headroom covers the worst case expansion of deflate.
+     */
+    private static final long ZIP64_THRESHOLD = 0xF0000000L;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream outputStream;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] buffer = new byte[8];
+    private long written;
+    private Entry currentEntry;
+
+    /**
+     * Entry of the zip file.
+     */
+    static class Entry {
+        private final byte[] name;
+        private final int method;
+        private final long dosTime;
+        private final boolean dataDescriptor;
+        private final boolean zip64;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+
+        /**
+         * Creates an entry.
+         * @param name relative path of the entry, separated by slashes
+         * @param method {@link #STORED} or {@link #DEFLATED}
+         * @param lastModified last modification time in milliseconds
+         * @param dataDescriptor if the crc and sizes are written after the data
+         * @param expectedSize the expected uncompressed size, decides if ZIP64 sizes are announced
+         */
+        Entry(String name, int method, long lastModified, boolean dataDescriptor, long expectedSize) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.dosTime = toDosTime(lastModified);
+            this.dataDescriptor = dataDescriptor;
+            this.zip64 = expectedSize >= ZIP64_THRESHOLD;
+        }
+
+        void setCrc(long crc) {
+            this.crc = crc;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        void setCompressedSize(long compressedSize) {
+            this.compressedSize = compressedSize;
+        }
+
+        String getName() {
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    /**
+     * Creates the writer.
+     * @param outputStream stream the archive is written to, should be buffered
+     */
+    ZipWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Get the number of bytes written to the archive so far.
+     * @return written bytes
+     */
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Write the local header of an entry.
+     * If the entry doesn't use a data descriptor, crc and sizes must already be set.
+     * @param entry the entry
+     * @throws IOException stream exceptions
+     */
+    void putEntry(Entry entry) throws IOException {
+        if (currentEntry != null)
+            throw new IllegalStateException("Previous entry wasn't closed.");
+
+        currentEntry = entry;
+        entry.offset = written;
+        long writtenSize = entry.size;
+        long writtenCompressedSize = entry.compressedSize;
+
+        boolean zip64 = entry.zip64 || (!entry.dataDescriptor
+                && (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC));
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(flags(entry));
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        if (entry.dataDescriptor) {
+            writeInt(0);
+            writtenSize = 0;
+            writtenCompressedSize = 0;
+        } else {
+            writeInt(entry.crc);
+        }
+        if (zip64) {
+            writeInt(ZIP64_MAGIC);
+            writeInt(ZIP64_MAGIC);
+        } else {
+            writeInt(writtenCompressedSize);
+            writeInt(writtenSize);
+        }
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(writtenSize);
+            writeLong(writtenCompressedSize);
+        }
+
+        if (entry.dataDescriptor)
+            entry.compressedSize = 0;
+    }
+
+    /**
+     * Write compressed data of the current entry.
+     * @param data compressed data
+     * @param offset start offset in the data
+     * @param length number of bytes to write
+     * @throws IOException stream exceptions
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        writeBytes(data, offset, length);
+        if (currentEntry.dataDescriptor)
+            currentEntry.compressedSize += length;
+    }
+
+    /**
+     * Close the current entry.
+     * If the entry uses a data descriptor, crc and uncompressed size must be set now.
+     * @throws IOException stream exceptions
+     */
+    void closeEntry() throws IOException {
+        Entry entry = currentEntry;
+        if (entry.dataDescriptor) {
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(entry.crc);
+            if (entry.zip64) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            } else {
+                if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)
+                    throw new IOException("Entry exceeded its announced size.");
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+        }
+        entries.add(entry);
+        currentEntry = null;
+    }
+
+    /**
+     * Write the central directory and close the stream.
+     * @throws IOException stream exceptions
+     */
+    void finish() throws IOException {
+        long centralDirectoryOffset = written;
+
+        for (Entry entry : entries)
+            writeCentralHeader(entry);
+
+        long centralDirectorySize = written - centralDirectoryOffset;
+        int count = entries.size();
+
+        if (count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectorySize >= ZIP64_MAGIC) {
+            long zip64EndOffset = written;
+
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+        writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        writeShort(0);
+
+        outputStream.flush();
+        outputStream.close();
+    }
+
+    /**
+     * Close the stream without finishing the zip.
+     * @throws IOException stream exceptions
+     */
+    void close() throws IOException {
+        outputStream.close();
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean zip64Size = entry.size >= ZIP64_MAGIC;
+        boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+        boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+        int version = zip64 || entry.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        writeInt(CENTRAL_HEADER_SIGNATURE);
+        writeShort(version);
+        writeShort(version);
+        writeShort(flags(entry));
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(zip64Size ? ZIP64_MAGIC : entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0);  // Comment length
+        writeShort(0);  // Disk number
+        writeShort(0);  // Internal attributes
+        writeInt(0);    // External attributes
+        writeInt(zip64Offset ? ZIP64_MAGIC : entry.offset);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraLength);
+            if (zip64Size)
+                writeLong(entry.size);
+            if (zip64CompressedSize)
+                writeLong(entry.compressedSize);
+            if (zip64Offset)
+                writeLong(entry.offset);
+        }
+    }
+
+    private static int flags(Entry entry) {
+        return FLAG_UTF8 | (entry.dataDescriptor ? FLAG_DATA_DESCRIPTOR : 0);
+    }
+
+    private static long toDosTime(long time) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (dateTime.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((long) (dateTime.getYear() - 1980) << 25)
+                | ((long) dateTime.getMonthValue() << 21)
+                | ((long) dateTime.getDayOfMonth() << 16)
+                | ((long) dateTime.getHour() << 11)
+                | ((long) dateTime.getMinute() << 5)
+                | ((long) dateTime.getSecond() >> 1);
+    }
+
+    private void writeShort(int value) throws IOException {
+        buffer[0] = (byte) value;
+        buffer[1] = (byte) (value >>> 8);
+        writeBytes(buffer, 0, 2);
+    }
+
+    private void writeInt(long value) throws IOException {
+        buffer[0] = (byte) value;
+        buffer[1] = (byte) (value >>> 8);
+        buffer[2] = (byte) (value >>> 16);
+        buffer[3] = (byte) (value >>> 24);
+        writeBytes(buffer, 0, 4);
+    }
+
+    private void writeLong(long value) throws IOException {
+        for (int i = 0; i < 8; i++)
+            buffer[i] = (byte) (value >>> (8 * i));
+        writeBytes(buffer, 0, 8);
+    }
+
+    private void writeBytes(byte[] data, int offset, int length) throws IOException {
+        outputStream.write(data, offset, length);
+        written += length;
+    }
+}
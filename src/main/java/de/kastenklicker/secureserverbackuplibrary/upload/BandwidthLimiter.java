@@ -0,0 +1,209 @@
+package de.kastenklicker.secureserverbackuplibrary.upload;
+
+import javax.net.SocketFactory;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token bucket limiting the bandwidth of uploads.
+ * One limiter can be shared by several upload clients to limit their total bandwidth.
+ * The limit is applied to the sockets of the upload clients, so it includes the protocol and encryption overhead.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * Limit of a time window without a bandwidth limit.
+     */
+    public static final long UNLIMITED = 0;
+
+    private static final long SCHEDULE_CHECK_INTERVAL = Duration.ofSeconds(1).toNanos();
+    private static final int MAX_WRITE_SIZE = 16 * 1024;
+
+    /**
+     * Limit during a time of the day.
+     * @param start the start of the window
+     * @param end the end of the window, before the start if the window spans midnight
+     * @param bytesPerSecond the limit during the window
+     */
+    private record Window(LocalTime start, LocalTime end, long bytesPerSecond) {
+
+        boolean contains(LocalTime time) {
+            if (start.isBefore(end))
+                return !time.isBefore(start) && time.isBefore(end);
+            return !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+
+    private final long bytesPerSecond;
+    private final List<Window> schedule = new ArrayList<>();
+    private long currentLimit;
+    private long nextScheduleCheck;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates the limiter.
+     * @param bytesPerSecond the limit outside the scheduled time windows, {@link #UNLIMITED} for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.currentLimit = bytesPerSecond;
+    }
+
+    /**
+     * Use a different limit during a time of the day, for example no limit during the night.
+     * If windows overlap, the first added window applies.
+     * @param start the start of the window
+     * @param end the end of the window, before the start if the window spans midnight
+     * @param bytesPerSecond the limit during the window, {@link #UNLIMITED} for no limit
+     */
+    public synchronized void addSchedule(LocalTime start, LocalTime end, long bytesPerSecond) {
+        schedule.add(new Window(start, end, bytesPerSecond));
+        nextScheduleCheck = System.nanoTime();
+    }
+
+    /**
+     * Take bytes from the bucket and wait until they are available.
+     * Callers may overdraw the bucket, the following callers wait until the debt is paid off.
+     * @param bytes the number of bytes
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - nextScheduleCheck >= 0) {
+                currentLimit = getLimit(LocalTime.now());
+                nextScheduleCheck = now + SCHEDULE_CHECK_INTERVAL;
+            }
+            if (currentLimit == UNLIMITED) {
+                tokens = 0;
+                lastRefill = now;
+                return;
+            }
+
+            // A full bucket allows bursts of 100 milliseconds
+            tokens = Math.min(currentLimit / 10.0, tokens + (now - lastRefill) * currentLimit / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / currentLimit) : 0;
+        }
+
+        if (waitNanos > 0)
+            Thread.sleep(Duration.ofNanos(waitNanos));
+    }
+
+    /**
+     * Get the limit at a time of the day.
+     * @param time the time
+     * @return the limit in bytes per second, {@link #UNLIMITED} for no limit
+     */
+    synchronized long getLimit(LocalTime time) {
+        for (Window window : schedule) {
+            if (window.contains(time))
+                return window.bytesPerSecond();
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Limit the bandwidth of a stream.
+     * @param outputStream the stream, usually of a socket
+     * @return the limited stream
+     */
+    OutputStream limit(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // Big writes are split, so the bytes are sent evenly
+                while (len > 0) {
+                    int size = Math.min(len, MAX_WRITE_SIZE);
+                    try {
+                        acquire(size);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+                    }
+                    out.write(b, off, size);
+                    off += size;
+                    len -= size;
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a factory of sockets, whose output is limited by this limiter.
+     * @return the socket factory
+     */
+    SocketFactory getSocketFactory() {
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                return new LimitedSocket();
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                Socket socket = createSocket();
+                socket.connect(new InetSocketAddress(host, port));
+                return socket;
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                Socket socket = createSocket();
+                socket.bind(new InetSocketAddress(localHost, localPort));
+                socket.connect(new InetSocketAddress(host, port));
+                return socket;
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                Socket socket = createSocket();
+                socket.connect(new InetSocketAddress(host, port));
+                return socket;
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                    throws IOException {
+                Socket socket = createSocket();
+                socket.bind(new InetSocketAddress(localAddress, localPort));
+                socket.connect(new InetSocketAddress(address, port));
+                return socket;
+            }
+        };
+    }
+
+    /**
+     * Socket whose output is limited, also if it is wrapped by a TLS socket.
+     */
+    private class LimitedSocket extends Socket {
+
+        private OutputStream outputStream;
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (outputStream == null)
+                outputStream = limit(super.getOutputStream());
+            return outputStream;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package de.kastenklicker.secureserverbackuplibrary.upload;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.util.TrustManagerUtils;
 import org.bouncycastle.jsse.BCExtendedSSLSession;
 import org.bouncycastle.jsse.BCSSLSocket;
@@ -12,8 +14,14 @@ import javax.net.ssl.TrustManager;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Class for uploading backup with FTPS.
@@ -39,7 +47,259 @@ public class FTPSClient extends UploadClient {
      */
     @Override
     protected void internalUpload(File file) throws IOException {
+        ReuseableFTPSClient ftpsClient = connect();
+
+        try {
+            changeWorkingDirectory(ftpsClient);
+            String partFile = file.getName() + PART_SUFFIX;
+            long offset = getResumeOffset(ftpsClient, file, partFile);
+
+            // Upload file, a matching partial upload is continued with APPE
+            LOGGER.debug("Uploading {} to FTPS server.", file.getName());
+            try (InputStream inputStream = offset > 0 ?
+                    new FileInputStream(file) : digestSent(new FileInputStream(file))) {
+                inputStream.skipNBytes(offset);
+                boolean stored = offset > 0 ?
+                        ftpsClient.appendFile(partFile, inputStream) : ftpsClient.storeFile(partFile, inputStream);
+                if (!stored)
+                    throw new IOException("FTPS server refused the upload: " + ftpsClient.getReplyString());
+            }
+
+            long size = getSize(ftpsClient, partFile);
+            if (size != file.length())
+                throw new IOException("Uploaded " + size + " of " + file.length() + " bytes of " + file.getName() + ".");
+
+            rename(ftpsClient, partFile, file.getName());
+        } finally {
+            // Finish upload
+            disconnect(ftpsClient);
+        }
+    }
+
+    /**
+     * Get the size of the partial upload of a previous attempt, if its end matches the file.
+     * @param ftpsClient connected client
+     * @param file the file to upload
+     * @param partFile the name of the partial upload
+     * @return the offset the upload is continued at, 0 to upload the whole file
+     * @throws IOException FTPS exceptions
+     */
+    private long getResumeOffset(ReuseableFTPSClient ftpsClient, File file, String partFile) throws IOException {
+        long partSize = getSize(ftpsClient, partFile);
+        if (partSize <= 0 || partSize > file.length())
+            return 0;
+
+        long offset = Math.max(0, partSize - RESUME_CHECK_SIZE);
+        ftpsClient.setRestartOffset(offset);
+        boolean matches;
+        try (InputStream inputStream = ftpsClient.retrieveFileStream(partFile)) {
+            if (inputStream == null)
+                return 0;
+            matches = isSameContent(inputStream, file, offset, (int) (partSize - offset));
+        } finally {
+            ftpsClient.setRestartOffset(0);
+        }
+        if (!ftpsClient.completePendingCommand())
+            return 0;
+
+        if (!matches) {
+            LOGGER.warn("Partial upload of {} to {} doesn't match the file, uploading it again.",
+                    file.getName(), hostname);
+            return 0;
+        }
+        LOGGER.info("Resuming upload of {} to {} after {} bytes.", file.getName(), hostname, partSize);
+        return partSize;
+    }
+
+    /**
+     * Rename the part file to the name of the file, replacing an existing file.
+     * @param ftpsClient connected client
+     * @param partFile the name of the part file
+     * @param remoteFile the name of the remote file
+     * @throws IOException FTPS exceptions
+     */
+    private static void rename(ReuseableFTPSClient ftpsClient, String partFile, String remoteFile)
+            throws IOException {
+        // Not every FTP server replaces existing files while renaming
+        ftpsClient.deleteFile(remoteFile);
+        if (!ftpsClient.rename(partFile, remoteFile))
+            throw new IOException("FTPS server couldn't rename the upload: " + ftpsClient.getReplyString());
+    }
+
+    /**
+     * Get the size of a remote file with the SIZE command.
+     * @param ftpsClient connected client
+     * @param remoteFile the name of the remote file
+     * @return the size, or -1 if the file doesn't exist
+     * @throws IOException FTPS exceptions
+     */
+    private static long getSize(ReuseableFTPSClient ftpsClient, String remoteFile) throws IOException {
+        String size = ftpsClient.getSize(remoteFile);
+        try {
+            return size == null ? -1 : Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid SIZE reply: " + size, e);
+        }
+    }
+
+    /**
+     * Internal method for streaming a file with FTPS.
+     * The file is streamed into its part file, which is renamed after the server completed the upload.
+     * @param fileName name of the remote file
+     * @return stream writing to the remote file
+     * @throws IOException FTPS exceptions
+     */
+    @Override
+    protected OutputStream internalUploadStream(String fileName) throws IOException {
+        ReuseableFTPSClient ftpsClient = connect();
+
+        try {
+            LOGGER.debug("Streaming {} to FTPS server.", fileName);
+            changeWorkingDirectory(ftpsClient);
+            String partFile = fileName + PART_SUFFIX;
+            OutputStream outputStream = ftpsClient.storeFileStream(partFile);
+            if (outputStream == null)
+                throw new IOException("FTPS server refused the upload: " + ftpsClient.getReplyString());
+
+            return new UploadOutputStream(outputStream, () -> {
+                try {
+                    if (!ftpsClient.completePendingCommand())
+                        throw new IOException("FTPS server didn't complete the upload: " + ftpsClient.getReplyString());
+                    rename(ftpsClient, partFile, fileName);
+                } finally {
+                    disconnect(ftpsClient);
+                }
+            }, () -> {
+                try {
+                    ftpsClient.completePendingCommand();
+                    ftpsClient.deleteFile(partFile);
+                } finally {
+                    disconnect(ftpsClient);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            try {
+                disconnect(ftpsClient);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Internal method for verifying an uploaded file with the checksum commands of the FTPS server.
+     * The SHA-256 digest is requested with HASH or XSHA256, and the CRC-32 checksum with XCRC,
+     * if the server supports neither.
+     * @param fileName name of the remote file
+     * @param digest checksums of the local file
+     * @return true, if the checksum matches, false if the server doesn't support the commands
+     * @throws IOException FTPS exceptions or the checksum doesn't match
+     */
+    @Override
+    protected boolean internalVerify(String fileName, FileDigest digest) throws IOException {
+        ReuseableFTPSClient ftpsClient = connect();
+
+        try {
+            changeWorkingDirectory(ftpsClient);
+            String sha256 = null;
+            if (FTPReply.isPositiveCompletion(ftpsClient.sendCommand("OPTS", "HASH SHA-256"))
+                    && FTPReply.isPositiveCompletion(ftpsClient.sendCommand("HASH", fileName)))
+                sha256 = findChecksum(ftpsClient.getReplyString(), "[0-9a-fA-F]{64}");
+            if (sha256 == null && FTPReply.isPositiveCompletion(ftpsClient.sendCommand("XSHA256", fileName)))
+                sha256 = findChecksum(ftpsClient.getReplyString(), "[0-9a-fA-F]{64}");
+
+            if (sha256 != null) {
+                if (!sha256.equalsIgnoreCase(digest.sha256()))
+                    throw new IOException("Uploaded " + fileName + " with SHA-256 " + sha256 + " instead of "
+                            + digest.sha256() + ".");
+                return true;
+            }
+
+            String crc32 = null;
+            if (FTPReply.isPositiveCompletion(ftpsClient.sendCommand("XCRC", fileName)))
+                crc32 = findChecksum(ftpsClient.getReplyString(), "[0-9a-fA-F]{1,8}");
+            if (crc32 == null)
+                return false;
+            if (Long.parseLong(crc32, 16) != digest.crc32())
+                throw new IOException("Uploaded " + fileName + " with CRC-32 " + crc32 + " instead of "
+                        + Long.toHexString(digest.crc32()) + ".");
+            return true;
+        } finally {
+            disconnect(ftpsClient);
+        }
+    }
+
+    /**
+     * Find the checksum in the reply of a checksum command.
+     * @param reply the reply, starting with the reply code
+     * @param pattern the pattern of the checksum
+     * @return the checksum, or null if the reply doesn't contain it
+     */
+    private static String findChecksum(String reply, String pattern) {
+        String[] parts = reply.trim().split("\\s+");
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].matches(pattern))
+                return parts[i];
+        }
+        return null;
+    }
+
+    /**
+     * Internal method for listing the files of the remote directory with FTPS.
+     * @return the files of the remote directory
+     * @throws IOException FTPS exceptions
+     */
+    @Override
+    protected List<RemoteFile> internalList() throws IOException {
+        ReuseableFTPSClient ftpsClient = connect();
+
+        try {
+            changeWorkingDirectory(ftpsClient);
+            return Arrays.stream(ftpsClient.listFiles())
+                    .filter(Objects::nonNull)
+                    .filter(FTPFile::isFile)
+                    .map(ftpFile -> new RemoteFile(ftpFile.getName(), ftpFile.getSize()))
+                    .toList();
+        } finally {
+            disconnect(ftpsClient);
+        }
+    }
+
+    /**
+     * Internal method for deleting files of the remote directory over one FTPS connection.
+     * @param fileNames the names of the files to delete
+     * @return the names of the deleted files
+     * @throws IOException FTPS exceptions
+     */
+    @Override
+    protected List<String> internalDelete(List<String> fileNames) throws IOException {
+        ReuseableFTPSClient ftpsClient = connect();
+
+        try {
+            changeWorkingDirectory(ftpsClient);
+            List<String> deleted = new ArrayList<>();
+            for (String fileName : fileNames) {
+                LOGGER.debug("Deleting {} from FTPS server.", fileName);
+                if (!ftpsClient.deleteFile(fileName))
+                    throw new IOException("FTPS server couldn't delete " + fileName + ": " + ftpsClient.getReplyString());
+                deleted.add(fileName);
+            }
+            return deleted;
+        } finally {
+            disconnect(ftpsClient);
+        }
+    }
+
+    /**
+     * Connect and log into the FTPS server.
+     * @return connected client
+     * @throws IOException FTPS exceptions
+     */
+    private ReuseableFTPSClient connect() throws IOException {
         ReuseableFTPSClient ftpsClient = new ReuseableFTPSClient();
+        if (bandwidthLimiter != null)
+            ftpsClient.setSocketFactory(bandwidthLimiter.getSocketFactory());
         LOGGER.debug("Connect to {}:{} via ftps.", hostname, port);
         ftpsClient.connect(hostname, port);
         
@@ -53,15 +313,25 @@ public class FTPSClient extends UploadClient {
         ftpsClient.login(username, authentication);
         ftpsClient.setFileType(FTP.LOCAL_FILE_TYPE);
         ftpsClient.enterLocalPassiveMode();
-        
-        // Upload file
-        LOGGER.debug("Uploading {} to FTPS server.", file.getName());
-        FileInputStream fileInputStream = new FileInputStream(file);
-        ftpsClient.changeWorkingDirectory(remoteDirectory);
-        ftpsClient.storeFile(file.getName(), fileInputStream);
-        fileInputStream.close();
-        
-        // Finish upload
+        return ftpsClient;
+    }
+
+    /**
+     * Change into the remote directory.
+     * @param ftpsClient connected client
+     * @throws IOException FTPS exceptions or the remote directory can't be opened
+     */
+    private void changeWorkingDirectory(ReuseableFTPSClient ftpsClient) throws IOException {
+        if (!ftpsClient.changeWorkingDirectory(remoteDirectory))
+            throw new IOException("FTPS server couldn't open " + remoteDirectory + ": " + ftpsClient.getReplyString());
+    }
+
+    /**
+     * Log out and disconnect from the FTPS server.
+     * @param ftpsClient connected client
+     * @throws IOException FTPS exceptions
+     */
+    private static void disconnect(ReuseableFTPSClient ftpsClient) throws IOException {
         try {
             ftpsClient.logout();
         } catch (FTPConnectionClosedException ignore) {} 
@@ -0,0 +1,39 @@
+package de.kastenklicker.secureserverbackuplibrary.upload;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of a whole file, which are compared with the checksums the server computes of the uploaded file.
+ * @param sha256 the SHA-256 digest as lowercase hex string
+ * @param crc32 the CRC-32 checksum, for servers only computing CRC-32
+ * @param size the size of the file in bytes
+ */
+public record FileDigest(String sha256, long crc32, long size) {
+
+    /**
+     * Suffix of the sidecar file, which contains the SHA-256 digest of a file in the format of sha256sum.
+     */
+    public static final String SIDECAR_SUFFIX = ".sha256";
+
+    /**
+     * Get the content of the sidecar file, which can be checked with {@code sha256sum -c}.
+     * @param fileName the name of the file
+     * @return the line with the digest and the name of the file
+     */
+    public String toSidecar(String fileName) {
+        return sha256 + "  " + fileName + "\n";
+    }
+
+    /**
+     * Create a SHA-256 message digest.
+     * @return the message digest
+     */
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM supports SHA-256.", e);
+        }
+    }
+}
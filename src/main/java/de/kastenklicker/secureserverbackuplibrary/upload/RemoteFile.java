@@ -0,0 +1,8 @@
+package de.kastenklicker.secureserverbackuplibrary.upload;
+
+/**
+ * File in the remote directory of an upload client.
+ * @param name the name of the file
+ * @param size the size of the file in bytes
+ */
+public record RemoteFile(String name, long size) {}
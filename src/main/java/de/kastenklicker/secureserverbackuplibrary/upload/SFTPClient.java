@@ -4,19 +4,53 @@ import com.jcraft.jsch.*;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
 import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class for uploading backup with SFTP.
+ * The host key and private key are loaded once per client.
+ * With a session pool, authenticated sessions are kept open between uploads and reused.
  */
 public class SFTPClient extends UploadClient{
-    
+
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
     private final File publicHostKeyFile;
     private final int timeout;
+    private final Deque<Session> idleSessions = new ArrayDeque<>();
+    private JSch jsch;
+    private int maxSessions = 0;
+    private int openSessions = 0;
+    private int keepAliveInterval = 60000;
+    private int segments = 1;
+    private String checksumCommand;
+    private boolean closed = false;
+
+    /**
+     * Sftp channel and the session it was opened on.
+     * @param session the session
+     * @param channelSftp the connected channel
+     */
+    private record Connection(Session session, ChannelSftp channelSftp) {}
 
     /**
      * Creates the SFTP Client.
@@ -37,6 +71,66 @@ public class SFTPClient extends UploadClient{
         this.timeout = timeout;
     }
 
+    /**
+     * Keep sessions open between uploads, so following uploads don't need a new handshake.
+     * Broken sessions are replaced by new sessions, the sessions are closed by {@link #close()}.
+     * @param maxSessions the maximum number of sessions to the server, 0 opens a new session for every upload
+     */
+    public void setSessionPool(int maxSessions) {
+        if (maxSessions < 0)
+            throw new IllegalArgumentException("The number of sessions can't be negative.");
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Set the interval of the keepalive messages of pooled sessions, so idle sessions aren't closed by the server.
+     * @param keepAliveInterval interval in milliseconds, 60 seconds by default, 0 disables keepalive messages
+     */
+    public void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * Upload files in segments over several sftp channels at the same time,
+     * which is faster on connections with a high latency.
+     * The segments are written into a .part file, which is renamed after all segments are written.
+     * Segmented uploads aren't resumed, a retry uploads all segments again.
+     * Streamed uploads and files smaller than 1 MiB per segment are uploaded over a single channel.
+     * @param segments the number of segments, 1 by default
+     */
+    public void setSegments(int segments) {
+        if (segments < 1)
+            throw new IllegalArgumentException("At least one segment is required.");
+        this.segments = segments;
+    }
+
+    /**
+     * Verify uploads with a command run on the server, like {@code sha256sum}.
+     * The command is called with the path of the remote file and must print its SHA-256 digest first.
+     * Servers only allowing SFTP can't run commands, so their uploads are verified with the sent bytes.
+     * @param checksumCommand the command, or null to not run commands, which is the default
+     */
+    public void setChecksumCommand(String checksumCommand) {
+        this.checksumCommand = checksumCommand;
+    }
+
+    /**
+     * Disconnect the pooled sessions. Sessions in use are disconnected when their upload finished.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Session session : idleSessions) {
+                session.disconnect();
+                openSessions--;
+            }
+            idleSessions.clear();
+            notifyAll();
+        }
+        LOGGER.debug("Closed SFTP session pool of {}.", hostname);
+    }
+
     /**
      * Internal method to upload file to sftp server
      * @param backupFile file to upload
@@ -45,6 +139,512 @@ public class SFTPClient extends UploadClient{
      */
     protected void internalUpload(File backupFile)
             throws JSchException, SftpException, IOException {
+        Connection connection = openConnection();
+        boolean successful = false;
+
+        // Upload
+        try {
+            int segmentCount = (int) Math.min(segments, backupFile.length() / MIN_SEGMENT_SIZE);
+            if (segmentCount > 1) {
+                LOGGER.debug("Uploading {} in {} segments to SFTP server.", backupFile.getName(), segmentCount);
+                uploadSegments(connection, backupFile, segmentCount);
+            } else {
+                LOGGER.debug("Uploading {} to SFTP server.", backupFile.getName());
+                uploadResumable(connection.channelSftp(), backupFile);
+            }
+            successful = true;
+        } finally {
+            closeConnection(connection, successful);
+        }
+    }
+
+    /**
+     * Upload the segments of a file over their own channels of the session at the same time.
+     * In {@link ChannelSftp#RESUME} mode, JSch writes at the offset relative to the end of the remote file
+     * when it is opened. All segments are opened while the part file is still empty, so their offsets are absolute.
+     * The remote file is only renamed to its name after all segments were acknowledged by the server.
+     * @param connection the connection, whose channel creates and renames the remote file
+     * @param backupFile file to upload
+     * @param segmentCount the number of segments
+     * @throws JSchException Some exceptions
+     * @throws SftpException Some exceptions
+     * @throws IOException File exceptions
+     */
+    private void uploadSegments(Connection connection, File backupFile, int segmentCount)
+            throws JSchException, SftpException, IOException {
+        ChannelSftp channelSftp = connection.channelSftp();
+        String remoteFile = remoteDirectory + "/" + backupFile.getName();
+        String partFile = remoteFile + PART_SUFFIX;
+        long size = backupFile.length();
+        long segmentSize = (size + segmentCount - 1) / segmentCount;
+
+        // Create the empty part file, the segments are written into it without truncating it
+        channelSftp.put(partFile, ChannelSftp.OVERWRITE).close();
+
+        List<ChannelSftp> segmentChannels = new ArrayList<>();
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<OutputStream> outputStreams = new ArrayList<>();
+            for (int i = 0; i < segmentCount; i++) {
+                ChannelSftp segmentChannel = (ChannelSftp) connection.session().openChannel("sftp");
+                segmentChannels.add(segmentChannel);
+                segmentChannel.connect(timeout);
+                outputStreams.add(segmentChannel.put(partFile, null, ChannelSftp.RESUME, i * segmentSize));
+            }
+            long partSize = getSize(channelSftp, partFile);
+            if (partSize != 0)
+                throw new IOException(partFile + " was changed to " + partSize + " bytes, while it was opened.");
+
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < segmentCount; i++) {
+                long offset = i * segmentSize;
+                long length = Math.min(segmentSize, size - offset);
+                OutputStream outputStream = outputStreams.get(i);
+                futures.add(executorService.submit(() -> {
+                    uploadSegment(outputStream, backupFile, offset, length);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            segmentChannels.forEach(ChannelSftp::exit);
+        }
+
+        complete(channelSftp, backupFile, partFile, remoteFile);
+    }
+
+    /**
+     * Upload a file into its part file, resuming a previous upload if the end of the part file matches the file.
+     * @param channelSftp the channel
+     * @param backupFile file to upload
+     * @throws SftpException Some exceptions
+     * @throws IOException File exceptions or incomplete upload
+     */
+    private void uploadResumable(ChannelSftp channelSftp, File backupFile) throws SftpException, IOException {
+        String remoteFile = remoteDirectory + "/" + backupFile.getName();
+        String partFile = remoteFile + PART_SUFFIX;
+        long partSize = getSize(channelSftp, partFile);
+        int mode = ChannelSftp.OVERWRITE;
+
+        if (partSize > 0 && partSize <= backupFile.length()) {
+            long offset = Math.max(0, partSize - RESUME_CHECK_SIZE);
+            boolean matches;
+            try (InputStream inputStream = channelSftp.get(partFile, null, offset)) {
+                matches = isSameContent(inputStream, backupFile, offset, (int) (partSize - offset));
+            }
+
+            if (matches) {
+                LOGGER.info("Resuming upload of {} to {} after {} bytes.", backupFile.getName(), hostname, partSize);
+                mode = ChannelSftp.RESUME;
+            } else {
+                LOGGER.warn("Partial upload of {} to {} doesn't match the file, uploading it again.",
+                        backupFile.getName(), hostname);
+            }
+        }
+
+        if (mode == ChannelSftp.RESUME) {
+            channelSftp.put(backupFile.getPath(), partFile, mode);
+        } else {
+            try (InputStream inputStream = digestSent(new FileInputStream(backupFile))) {
+                channelSftp.put(inputStream, partFile, mode);
+            }
+        }
+        complete(channelSftp, backupFile, partFile, remoteFile);
+    }
+
+    /**
+     * Check the size of the part file and rename it to the name of the file.
+     * @param channelSftp the channel
+     * @param backupFile the uploaded file
+     * @param partFile the part file
+     * @param remoteFile the name of the remote file
+     * @throws SftpException Some exceptions
+     * @throws IOException Incomplete upload
+     */
+    private static void complete(ChannelSftp channelSftp, File backupFile, String partFile, String remoteFile)
+            throws SftpException, IOException {
+        long size = getSize(channelSftp, partFile);
+        if (size != backupFile.length())
+            throw new IOException("Uploaded " + size + " of " + backupFile.length() + " bytes of "
+                    + backupFile.getName() + ".");
+        rename(channelSftp, partFile, remoteFile);
+    }
+
+    /**
+     * Rename the part file to the name of the file, replacing an existing file.
+     * @param channelSftp the channel
+     * @param partFile the part file
+     * @param remoteFile the name of the remote file
+     * @throws SftpException Some exceptions
+     */
+    private static void rename(ChannelSftp channelSftp, String partFile, String remoteFile) throws SftpException {
+        // SFTP servers don't need to replace existing files while renaming
+        try {
+            channelSftp.rm(remoteFile);
+        } catch (SftpException e) {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                throw e;
+        }
+        channelSftp.rename(partFile, remoteFile);
+    }
+
+    /**
+     * Get the size of a remote file.
+     * @param channelSftp the channel
+     * @param remoteFile the remote file
+     * @return the size, or -1 if the file doesn't exist
+     * @throws SftpException Some exceptions
+     */
+    private static long getSize(ChannelSftp channelSftp, String remoteFile) throws SftpException {
+        try {
+            return channelSftp.stat(remoteFile).getSize();
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                return -1;
+            throw e;
+        }
+    }
+
+    /**
+     * Upload a segment of a file into the remote stream opened at the offset of the segment.
+     * Closing the remote stream waits until all writes are acknowledged.
+     * @param remoteStream the stream of the segment, which is closed
+     * @param backupFile file to upload
+     * @param offset the offset of the segment
+     * @param length the length of the segment
+     * @throws IOException File exceptions
+     */
+    private static void uploadSegment(OutputStream remoteStream, File backupFile, long offset, long length)
+            throws IOException {
+        try (InputStream inputStream = new FileInputStream(backupFile);
+             OutputStream outputStream = remoteStream) {
+            inputStream.skipNBytes(offset);
+            byte[] buffer = new byte[32 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int len = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len < 0)
+                    throw new IOException(backupFile.getName() + " shrunk while it was uploaded.");
+                outputStream.write(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+    }
+
+    /**
+     * Internal method to verify an uploaded file with the checksum command.
+     * @param fileName name of the remote file
+     * @param digest checksums of the local file
+     * @return true, if the checksum matches, false if there is no checksum command or the server didn't run it
+     * @throws JSchException Some exceptions
+     * @throws IOException Checksum doesn't match, host key file and stream exceptions
+     */
+    @Override
+    protected boolean internalVerify(String fileName, FileDigest digest) throws JSchException, IOException {
+        if (checksumCommand == null)
+            return false;
+
+        Connection connection = openConnection();
+        boolean successful = false;
+        try {
+            String remoteFile = remoteDirectory + "/" + fileName;
+            ChannelExec channelExec = (ChannelExec) connection.session().openChannel("exec");
+            channelExec.setCommand(checksumCommand + " -- '" + remoteFile.replace("'", "'\\''") + "'");
+            String output;
+            try (InputStream inputStream = channelExec.getInputStream()) {
+                channelExec.connect(timeout);
+                output = new String(inputStream.readAllBytes()).trim();
+            } finally {
+                channelExec.disconnect();
+            }
+            successful = true;
+
+            String[] parts = output.split("\\s+");
+            if (!parts[0].matches("[0-9a-fA-F]{64}")) {
+                LOGGER.debug("{} couldn't run the checksum command: {}", hostname, output);
+                return false;
+            }
+            if (!parts[0].equalsIgnoreCase(digest.sha256()))
+                throw new IOException("Uploaded " + fileName + " with SHA-256 " + parts[0] + " instead of "
+                        + digest.sha256() + ".");
+            return true;
+        } finally {
+            closeConnection(connection, successful);
+        }
+    }
+
+    /**
+     * Internal method to stream a file to the sftp server.
+     * The file is streamed into its part file, which is renamed after the stream was closed successfully.
+     * @param fileName name of the remote file
+     * @return stream writing to the remote file
+     * @throws JSchException Some exceptions
+     * @throws SftpException Some exceptions
+     */
+    @Override
+    protected OutputStream internalUploadStream(String fileName)
+            throws JSchException, SftpException, IOException {
+        Connection connection = openConnection();
+
+        try {
+            LOGGER.debug("Streaming {} to SFTP server.", fileName);
+            String remoteFile = remoteDirectory + "/" + fileName;
+            String partFile = remoteFile + PART_SUFFIX;
+            OutputStream outputStream = connection.channelSftp().put(partFile);
+
+            // Only a session whose stream was closed successfully is reused
+            boolean[] written = new boolean[1];
+            return new UploadOutputStream(new FilterOutputStream(outputStream) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                    written[0] = true;
+                }
+            }, () -> {
+                boolean renamed = false;
+                try {
+                    if (written[0]) {
+                        rename(connection.channelSftp(), partFile, remoteFile);
+                        renamed = true;
+                    }
+                } finally {
+                    closeConnection(connection, renamed);
+                }
+            }, () -> {
+                try {
+                    connection.channelSftp().rm(partFile);
+                } finally {
+                    closeConnection(connection, false);
+                }
+            });
+        } catch (SftpException | RuntimeException e) {
+            closeConnection(connection, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Internal method to list the files of the remote directory.
+     * @return the regular files of the remote directory
+     * @throws JSchException Some exceptions
+     * @throws SftpException Some exceptions
+     * @throws IOException Host key file exceptions
+     */
+    @Override
+    protected List<RemoteFile> internalList() throws JSchException, SftpException, IOException {
+        Connection connection = openConnection();
+        boolean successful = false;
+
+        try {
+            Vector<ChannelSftp.LsEntry> entries = connection.channelSftp().ls(remoteDirectory);
+            List<RemoteFile> remoteFiles = entries.stream()
+                    .filter(entry -> entry.getAttrs().isReg())
+                    .map(entry -> new RemoteFile(entry.getFilename(), entry.getAttrs().getSize()))
+                    .toList();
+            successful = true;
+            return remoteFiles;
+        } finally {
+            closeConnection(connection, successful);
+        }
+    }
+
+    /**
+     * Internal method to delete files of the remote directory over one sftp channel.
+     * @param fileNames the names of the files to delete
+     * @return the names of the deleted files
+     * @throws JSchException Some exceptions
+     * @throws SftpException Some exceptions
+     * @throws IOException Host key file exceptions
+     */
+    @Override
+    protected List<String> internalDelete(List<String> fileNames) throws JSchException, SftpException, IOException {
+        Connection connection = openConnection();
+        boolean successful = false;
+
+        try {
+            ChannelSftp channelSftp = connection.channelSftp();
+            List<String> deleted = new ArrayList<>();
+            for (String fileName : fileNames) {
+                LOGGER.debug("Deleting {} from SFTP server.", fileName);
+                try {
+                    channelSftp.rm(remoteDirectory + "/" + fileName);
+                    deleted.add(fileName);
+                } catch (SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                        throw e;
+                }
+            }
+            successful = true;
+            return deleted;
+        } finally {
+            closeConnection(connection, successful);
+        }
+    }
+
+    /**
+     * Open an sftp channel on a new or pooled session.
+     * A pooled session may have been closed by the server, so it is replaced once by a new session.
+     * @return the connection
+     * @throws JSchException Some exceptions
+     * @throws IOException Host key file exceptions
+     */
+    private Connection openConnection() throws JSchException, IOException {
+        for (int attempt = 1; ; attempt++) {
+            Session session = acquireSession();
+            try {
+                ChannelSftp channelSftp = (ChannelSftp) session.openChannel("sftp");
+                channelSftp.connect(timeout);
+                return new Connection(session, channelSftp);
+            } catch (JSchException | RuntimeException e) {
+                releaseSession(session, false);
+                if (maxSessions == 0 || attempt == 2)
+                    throw e;
+                LOGGER.debug("Couldn't open channel on pooled session to {}, reconnecting.", hostname);
+            }
+        }
+    }
+
+    /**
+     * Close the channel and disconnect or return the session to the pool.
+     * @param connection the connection
+     * @param reusable if the session can be used for the next upload
+     */
+    private void closeConnection(Connection connection, boolean reusable) {
+        connection.channelSftp().exit();
+        releaseSession(connection.session(), reusable);
+    }
+
+    /**
+     * Get an idle pooled session, connect a new session or wait until a session is returned.
+     * Idle sessions are checked with a keepalive message and replaced if they are broken.
+     * @return connected session
+     * @throws JSchException Some exceptions
+     * @throws IOException Host key file exceptions or interrupted while waiting
+     */
+    private Session acquireSession() throws JSchException, IOException {
+        if (maxSessions == 0)
+            return connect();
+
+        while (true) {
+            Session session;
+            synchronized (this) {
+                while (!closed && idleSessions.isEmpty() && openSessions >= maxSessions) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for an SFTP session.", e);
+                    }
+                }
+                if (closed)
+                    throw new IllegalStateException("SFTP client is closed.");
+
+                session = idleSessions.pollFirst();
+                if (session == null)
+                    openSessions++;
+            }
+
+            if (session == null) {
+                try {
+                    return connect();
+                } catch (JSchException | IOException | RuntimeException e) {
+                    releaseSession(null, false);
+                    throw e;
+                }
+            }
+
+            if (isHealthy(session))
+                return session;
+            LOGGER.debug("Pooled session to {} is broken, reconnecting.", hostname);
+            releaseSession(session, false);
+        }
+    }
+
+    /**
+     * Return a session to the pool or disconnect it.
+     * @param session the session, or null if connecting failed
+     * @param reusable if the session can be used for the next upload
+     */
+    private void releaseSession(Session session, boolean reusable) {
+        if (maxSessions == 0) {
+            session.disconnect();
+            LOGGER.debug("Disconnected from {}.", hostname);
+            return;
+        }
+
+        synchronized (this) {
+            if (reusable && !closed && session.isConnected()) {
+                idleSessions.addFirst(session);
+            } else {
+                if (session != null)
+                    session.disconnect();
+                openSessions--;
+            }
+            notifyAll();
+        }
+    }
+
+    private static boolean isHealthy(Session session) {
+        if (!session.isConnected())
+            return false;
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Connect a new session to the sftp server.
+     * @return connected session
+     * @throws JSchException Some exceptions
+     * @throws IOException Host key file exceptions
+     */
+    private Session connect() throws JSchException, IOException {
+        JSch jsch = getJSch();
+
+        LOGGER.debug("Setting up SFTP session.");
+        Session session = jsch.getSession(username, hostname, port);
+
+        // If string is path, then use key authentication, else use password authentication
+        if (!new File(authentication).exists()) {
+            LOGGER.debug("Using password key for SFTP authentication.");
+            session.setPassword(authentication);
+        }
+
+        if (maxSessions > 0 && keepAliveInterval > 0)
+            session.setServerAliveInterval(keepAliveInterval);
+        if (bandwidthLimiter != null)
+            session.setSocketFactory(new LimitedSocketFactory(bandwidthLimiter, timeout));
+
+        LOGGER.debug("Connecting to SFTP server with a timeout of {} milliseconds.", timeout);
+        session.connect(timeout);
+        return session;
+    }
+
+    /**
+     * Set up the known host key and the private key once.
+     * @return the configured JSch
+     * @throws JSchException Some exceptions
+     * @throws IOException Host key file exceptions
+     */
+    private synchronized JSch getJSch() throws JSchException, IOException {
+        if (jsch != null)
+            return jsch;
         JSch jsch = new JSch();
         
         // Scan for Host Key if file doesn't exist
@@ -99,32 +699,38 @@ public class SFTPClient extends UploadClient{
             jsch.setKnownHosts(publicHostKeyFile.getPath());
             LOGGER.debug("Added known hosts to HostKeyRepository.");
         }
-            
-        LOGGER.debug("Setting up SFTP session.");
-        Session session = jsch.getSession(username, hostname, port);
-        
-        // If string is path, then use key authentication, else use password authentication
+
         if (new File(authentication).exists()) {
             jsch.addIdentity(authentication);
             LOGGER.debug("Using private key for SFTP authentication.");
-        } else {
-            LOGGER.debug("Using password key for SFTP authentication.");
-            session.setPassword(authentication);
         }
 
-        LOGGER.debug("Connecting to SFTP server with a timeout of {} milliseconds.", timeout);
-        session.connect(timeout);
-        ChannelSftp channelSftp = (ChannelSftp) session.openChannel("sftp");
+        this.jsch = jsch;
+        return jsch;
+    }
 
-        // Upload
-        channelSftp.connect(timeout);
-        LOGGER.debug("Uploading {} to SFTP server.", backupFile.getName());
-        channelSftp.put(backupFile.getPath(), remoteDirectory);
+    /**
+     * JSch socket factory limiting the bandwidth of the session.
+     * @param bandwidthLimiter the limiter
+     * @param timeout the connect timeout in milliseconds
+     */
+    private record LimitedSocketFactory(BandwidthLimiter bandwidthLimiter, int timeout) implements SocketFactory {
 
-        // Disconnect
-        channelSftp.exit();
-        session.disconnect();
-        LOGGER.debug("Disconnected from {}.", hostname);
-    }
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            return socket;
+        }
+
+        @Override
+        public InputStream getInputStream(Socket socket) throws IOException {
+            return socket.getInputStream();
+        }
 
+        @Override
+        public OutputStream getOutputStream(Socket socket) throws IOException {
+            return bandwidthLimiter.limit(socket.getOutputStream());
+        }
+    }
 }
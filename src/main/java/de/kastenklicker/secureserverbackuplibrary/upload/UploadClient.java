@@ -3,17 +3,43 @@ package de.kastenklicker.secureserverbackuplibrary.upload;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Abstract class for uploading to a server.
  */
-public abstract class UploadClient {
+public abstract class UploadClient implements AutoCloseable {
 
     /**
      * SLF4J Logger
      */
     protected static final Logger LOGGER = LoggerFactory.getLogger("de.kastenklicker.secureserverlibrary");
+
+    /**
+     * Suffix of a remote file, while it is uploaded or streamed. The file is renamed after the upload is complete,
+     * so a remote file with the name of a backup is always complete.
+     */
+    protected static final String PART_SUFFIX = ".part";
+
+    /**
+     * Size of the end of a partial upload, which is compared with the local file before the upload is resumed.
+     */
+    protected static final int RESUME_CHECK_SIZE = 64 * 1024;
     
     /**
      * Hostname of remote server.
@@ -35,6 +61,23 @@ public abstract class UploadClient {
      * Directory for the backups of the remote server.
      */
     protected final String remoteDirectory;
+    /**
+     * Limiter of the upload bandwidth, or null if the bandwidth isn't limited.
+     */
+    protected BandwidthLimiter bandwidthLimiter;
+
+    private int retries = 0;
+    private Duration retryDelay = Duration.ofSeconds(30);
+    private final AtomicInteger retryCount = new AtomicInteger();
+    private final ThreadLocal<SentDigest> sentDigest = new ThreadLocal<>();
+
+    /**
+     * Digest of the bytes of a file sent by an upload.
+     */
+    private static class SentDigest {
+        private final MessageDigest messageDigest = FileDigest.newSha256();
+        private long bytes;
+    }
 
     /**
      * Constructor of UploadClient class.
@@ -52,25 +95,329 @@ public abstract class UploadClient {
         this.remoteDirectory = remoteDirectory;
     }
 
+    /**
+     * Get the hostname of the remote server.
+     * @return Hostname/Domain/IP Address of remote server.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Retry failed uploads. Uploads of files are resumed where they stopped.
+     * @param retries how often a failed upload is retried, 0 by default
+     * @param retryDelay the time to wait before retrying
+     */
+    public void setRetries(int retries, Duration retryDelay) {
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Get how often uploads of this client were retried, since the client was created.
+     * @return the number of retries
+     */
+    public int getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Limit the bandwidth of the uploads.
+     * Share the limiter with other upload clients to limit their total bandwidth.
+     * @param bandwidthLimiter the limiter, or null for no limit
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
     /**
      * Internal method for uploading.
+     * The file should be uploaded into a {@link #PART_SUFFIX} file first, which is resumed by the next upload
+     * if the upload fails, and renamed to the name of the file after the upload is complete.
      * @param file File to upload.
      * @throws Exception Any sort of upload exception.
      */
     protected abstract void internalUpload(File file) throws Exception;
 
+    /**
+     * Internal method for uploading a stream.
+     * Like a file, the stream should be uploaded into a {@link #PART_SUFFIX} file first,
+     * which is only renamed to the name of the file after the stream was closed successfully.
+     * The default implementation buffers the stream in a temporary file with the name of the remote file
+     * and uploads it with {@link #internalUpload(File)} when the stream is closed.
+     * Return an {@link UploadOutputStream} to remove the partial remote file, if the upload is aborted.
+     * @param fileName Name of the remote file.
+     * @return Stream uploading everything written to it, closing it completes the upload.
+     * @throws Exception Any sort of upload exception.
+     */
+    protected OutputStream internalUploadStream(String fileName) throws Exception {
+        File temporaryDirectory = Files.createTempDirectory("secureserverbackup").toFile();
+        File temporaryFile = new File(temporaryDirectory, fileName);
+
+        Runnable delete = () -> {
+            if (!temporaryFile.delete() || !temporaryDirectory.delete())
+                LOGGER.warn("Couldn't delete temporary upload file {}.", temporaryFile);
+        };
+        return new UploadOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)), () -> {
+            try {
+                internalUpload(temporaryFile);
+            } finally {
+                delete.run();
+            }
+        }, delete::run);
+    }
+
+    /**
+     * Internal method for verifying an uploaded file without downloading it.
+     * The server should compute a checksum of the remote file, which is compared with the digest.
+     * The default implementation returns false, because the server can't compute checksums.
+     * @param fileName Name of the remote file.
+     * @param digest The checksums of the local file.
+     * @return true, if the server computed a checksum, which matches the digest,
+     * false if the server can't compute checksums
+     * @throws Exception Any sort of exception, an {@link IOException} if the checksum doesn't match.
+     */
+    protected boolean internalVerify(String fileName, FileDigest digest) throws Exception {
+        return false;
+    }
+
+    /**
+     * Wrap the stream of the local file, which is uploaded by {@link #internalUpload(File)},
+     * so the sent bytes can be compared with the digest, if the server can't compute checksums.
+     * Only the stream of an upload, which sends the whole file, should be wrapped.
+     * @param inputStream the stream of the local file
+     * @return the stream digesting the read bytes, or the stream if the upload isn't verified
+     */
+    protected InputStream digestSent(InputStream inputStream) {
+        SentDigest digest = sentDigest.get();
+        if (digest == null)
+            return inputStream;
+
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    digest.messageDigest.update((byte) b);
+                    digest.bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    digest.messageDigest.update(b, off, read);
+                    digest.bytes += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // Skipped bytes aren't digested, so the sent bytes can't verify the upload anymore
+                digest.bytes = Long.MIN_VALUE;
+                return in.skip(n);
+            }
+        };
+    }
+
     /**
      * Abstract method for uploading.
      * @param file File to upload.
      * @throws UploadException Any sort of upload exception.
      */
     public void upload(File file) throws UploadException {
+        upload(file, null);
+    }
+
+    /**
+     * Upload a file and verify the upload.
+     * The uploaded file is verified with a checksum computed by the server, or else with the digest
+     * of the bytes sent by the upload. A resumed or segmented upload can only be verified by the server.
+     * A mismatching upload is retried like a failed upload.
+     * @param file File to upload.
+     * @param digest The checksums of the file, or null to upload it without verifying it.
+     * @throws UploadException Any sort of upload exception, or if the uploaded file doesn't match the digest.
+     */
+    public void upload(File file, FileDigest digest) throws UploadException {
         LOGGER.info("Start upload to {}", hostname);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (digest == null) {
+                    internalUpload(file);
+                } else {
+                    SentDigest sent = new SentDigest();
+                    sentDigest.set(sent);
+                    try {
+                        internalUpload(file);
+                    } finally {
+                        sentDigest.remove();
+                    }
+                    verify(file.getName(), digest, sent);
+                }
+                break;
+            } catch (Exception e) {
+                if (attempt >= retries || !file.exists() || Thread.currentThread().isInterrupted())
+                    throw new UploadException(e);
+                LOGGER.warn("Upload to {} failed, resuming it in {} seconds.", hostname, retryDelay.toSeconds(), e);
+                retryCount.incrementAndGet();
+            }
+
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UploadException(e);
+            }
+        }
+        LOGGER.info("Finished uploading to {}", hostname);
+    }
+
+    /**
+     * Verify an uploaded file with a checksum computed by the server, without downloading it.
+     * Use it for streamed uploads, whose digest is only known after the stream was closed.
+     * @param fileName Name of the remote file.
+     * @param digest The checksums of the local file.
+     * @return true, if the file was verified, false if the server can't compute checksums
+     * @throws UploadException Any sort of exception, or if the uploaded file doesn't match the digest.
+     */
+    public boolean verify(String fileName, FileDigest digest) throws UploadException {
         try {
-            internalUpload(file);
+            return verify(fileName, digest, null);
         } catch (Exception e) {
             throw new UploadException(e);
         }
-        LOGGER.info("Finished uploading to {}", hostname);
+    }
+
+    /**
+     * Verify an uploaded file by the server, or else with the digest of the sent bytes.
+     * @param fileName Name of the remote file.
+     * @param digest The checksums of the local file.
+     * @param sent The digest of the sent bytes, or null
+     * @return true, if the file was verified
+     * @throws Exception Any sort of exception, an {@link IOException} if the checksum doesn't match.
+     */
+    private boolean verify(String fileName, FileDigest digest, SentDigest sent) throws Exception {
+        if (internalVerify(fileName, digest)) {
+            LOGGER.debug("{} verified {}.", hostname, fileName);
+            return true;
+        }
+
+        if (sent == null || sent.bytes != digest.size()) {
+            LOGGER.debug("{} can't verify {}.", hostname, fileName);
+            return false;
+        }
+        String sentSha256 = HexFormat.of().formatHex(sent.messageDigest.digest());
+        if (!sentSha256.equals(digest.sha256()))
+            throw new IOException("Sent " + fileName + " with SHA-256 " + sentSha256 + " instead of "
+                    + digest.sha256() + ".");
+        LOGGER.debug("Verified the bytes of {} sent to {}.", fileName, hostname);
+        return true;
+    }
+
+    /**
+     * Upload a file while it is written, instead of uploading an existing file.
+     * @param fileName Name of the remote file.
+     * @return Stream uploading everything written to it, closing it completes the upload
+     * and {@link UploadOutputStream#abort()} discards it.
+     * @throws UploadException Any sort of upload exception.
+     */
+    public UploadOutputStream uploadStream(String fileName) throws UploadException {
+        LOGGER.info("Start streaming upload to {}", hostname);
+        OutputStream outputStream;
+        try {
+            outputStream = internalUploadStream(fileName);
+        } catch (Exception e) {
+            throw new UploadException(e);
+        }
+        return new UploadOutputStream(outputStream,
+                () -> LOGGER.info("Finished uploading to {}", hostname),
+                () -> LOGGER.info("Aborted upload to {}", hostname));
+    }
+
+    /**
+     * Internal method for listing the files of the remote directory.
+     * The default implementation throws an {@link UnsupportedOperationException}.
+     * @return the files of the remote directory, without its directories
+     * @throws Exception Any sort of listing exception.
+     */
+    protected List<RemoteFile> internalList() throws Exception {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't list remote files.");
+    }
+
+    /**
+     * Internal method for deleting files of the remote directory over one connection.
+     * The default implementation throws an {@link UnsupportedOperationException}.
+     * @param fileNames the names of the files to delete
+     * @return the names of the deleted files, without the files which didn't exist anymore
+     * @throws Exception Any sort of deleting exception.
+     */
+    protected List<String> internalDelete(List<String> fileNames) throws Exception {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't delete remote files.");
+    }
+
+    /**
+     * List the files of the remote directory.
+     * @return the files of the remote directory, without its directories
+     * @throws UnsupportedOperationException if the upload client can't list remote files
+     * @throws UploadException Any sort of listing exception.
+     */
+    public List<RemoteFile> list() throws UploadException {
+        try {
+            return internalList();
+        } catch (UnsupportedOperationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UploadException(e);
+        }
+    }
+
+    /**
+     * List the files of the remote directory and delete the selected files, for example the old backups.
+     * @param selector selects the names of the files to delete from the files of the remote directory
+     * @return the names of the deleted files
+     * @throws UploadException Any sort of listing or deleting exception.
+     */
+    public List<String> prune(Function<List<RemoteFile>, List<String>> selector) throws UploadException {
+        List<String> deleted;
+        try {
+            List<String> selected = selector.apply(internalList());
+            deleted = selected.isEmpty() ? List.of() : internalDelete(selected);
+        } catch (Exception e) {
+            throw new UploadException(e);
+        }
+        if (!deleted.isEmpty())
+            LOGGER.info("Deleted {} old files from {}", deleted.size(), hostname);
+        return deleted;
+    }
+
+    /**
+     * Check if the end of a partial upload matches the local file, so the upload can be resumed.
+     * @param remoteInputStream the content of the partial upload, starting at the offset
+     * @param file the local file
+     * @param offset the offset of the compared content
+     * @param length the length of the compared content
+     * @return true, if the content is the same
+     * @throws IOException stream and file exceptions
+     */
+    protected static boolean isSameContent(InputStream remoteInputStream, File file, long offset, int length)
+            throws IOException {
+        byte[] remoteContent = remoteInputStream.readNBytes(length);
+        byte[] localContent = new byte[length];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(localContent);
+        }
+        return Arrays.equals(remoteContent, localContent);
+    }
+
+    /**
+     * Release the connections kept open between uploads.
+     * The default implementation does nothing, because every upload opens its own connection.
+     */
+    @Override
+    public void close() {
     }
 }
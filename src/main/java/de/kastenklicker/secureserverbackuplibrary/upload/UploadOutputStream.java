@@ -0,0 +1,82 @@
+package de.kastenklicker.secureserverbackuplibrary.upload;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream uploading everything written to it. Closing the stream completes the upload,
+ * aborting it discards the upload instead.
+ */
+public class UploadOutputStream extends FilterOutputStream {
+
+    private final Completion completion;
+    private final Completion cleanup;
+    private boolean closed;
+
+    /**
+     * Action completing or cleaning up an upload, after the stream was closed.
+     */
+    interface Completion {
+        void complete() throws Exception;
+    }
+
+    /**
+     * Creates the stream.
+     * @param outputStream the stream to the remote file
+     * @param completion action run after the stream was closed, even if closing failed
+     * @param cleanup action run after the stream was aborted, which should remove the partial remote file
+     */
+    UploadOutputStream(OutputStream outputStream, Completion completion, Completion cleanup) {
+        super(outputStream);
+        this.completion = completion;
+        this.cleanup = cleanup;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            out.close();
+        } finally {
+            run(completion);
+        }
+    }
+
+    /**
+     * Stop the upload without completing it, for example because the backup was cancelled.
+     * @throws IOException stream exceptions and exceptions of the cleanup
+     */
+    public void abort() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            if (out instanceof UploadOutputStream uploadOutputStream)
+                uploadOutputStream.abort();
+            else
+                out.close();
+        } finally {
+            run(cleanup);
+        }
+    }
+
+    private static void run(Completion completion) throws IOException {
+        try {
+            completion.complete();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
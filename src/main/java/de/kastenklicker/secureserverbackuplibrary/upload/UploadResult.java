@@ -0,0 +1,20 @@
+package de.kastenklicker.secureserverbackuplibrary.upload;
+
+import java.time.Duration;
+
+/**
+ * Result of uploading a backup with one upload client.
+ * @param uploadClient the upload client
+ * @param duration how long the upload took, including failed attempts
+ * @param exception the exception, if the upload failed, else null
+ */
+public record UploadResult(UploadClient uploadClient, Duration duration, UploadException exception) {
+
+    /**
+     * Check if the upload was successful.
+     * @return true, if the upload didn't throw an exception
+     */
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+}
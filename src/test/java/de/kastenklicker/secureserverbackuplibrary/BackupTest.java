@@ -1,18 +1,43 @@
 package de.kastenklicker.secureserverbackuplibrary;
 
+import de.kastenklicker.secureserverbackuplibrary.upload.FileDigest;
+import de.kastenklicker.secureserverbackuplibrary.upload.RemoteFile;
 import de.kastenklicker.secureserverbackuplibrary.upload.SFTPClient;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadClient;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadException;
+import de.kastenklicker.secureserverbackuplibrary.upload.UploadResult;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.utility.MountableFile;
 
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -96,20 +121,296 @@ public class BackupTest {
     }
 
     @Test
-    public void testBackupMaxDirSizeReached() throws Exception {
+    public void testBackupStreaming() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/streamUpload");
+        assertTrue(uploadDirectory.mkdirs());
+
+        // Upload client using the default stream implementation
+        UploadClient uploadClient = localUploadClient(uploadDirectory);
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(uploadClient),
+                1024 * 1024);
+        backup.setStreaming(true);
+        File backupFile = backup.backup();
 
-        // Create RandomAccessFile in backupDir
-        RandomAccessFile randomAccessFile = new RandomAccessFile(
-                "./src/test/resources/zipTest/backups/temporaryTestFile","rw");
+        // Check if file was transferred correctly
+        File backupUpload = new File(uploadDirectory, backupFile.getName());
+        try {
+            assertTrue(backupFile.exists());
+            assertEquals(-1L, Files.mismatch(backupFile.toPath(), backupUpload.toPath()));
+        } finally {
+            backupUpload.delete();
+            uploadDirectory.delete();
+        }
+    }
 
-        //randomAccessFile.setLength(1024*1024*1024); // KB -> MB -> GB
-        randomAccessFile.setLength(1024*1024*1024); // KB -> MB -> GB
+    @Test
+    public void testBackupFailedUploadDoesNotStopOthers() {
 
-        // Write RandomAccessFile into backups directory
-        randomAccessFile.close();
+        File uploadDirectory = new File("./src/test/resources/upload");
+        assertTrue(uploadDirectory.mkdirs());
+
+        UploadClient failingClient = localUploadClient(new File(uploadDirectory, "missing"));
+        UploadClient workingClient = localUploadClient(uploadDirectory);
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(failingClient, workingClient),
+                1024 * 1024);
+
+        try {
+            assertThrows(UploadException.class, backup::backup);
+
+            List<UploadResult> uploadResults = backup.getUploadResults();
+            assertEquals(2, uploadResults.size());
+            assertFalse(uploadResults.get(0).isSuccessful());
+            assertTrue(uploadResults.get(1).isSuccessful());
+            assertEquals(1, uploadDirectory.listFiles().length);
+        } finally {
+            for (File file : uploadDirectory.listFiles())
+                file.delete();
+            uploadDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupAsyncProgress() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/upload");
+        assertTrue(uploadDirectory.mkdirs());
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(localUploadClient(uploadDirectory)),
+                1024 * 1024);
+        List<BackupProgress> progresses = Collections.synchronizedList(new ArrayList<>());
+        backup.setProgressListener(progresses::add);
+
+        try {
+            File backupFile = backup.backupAsync().get(1, TimeUnit.MINUTES);
+            assertTrue(backupFile.exists());
+
+            BackupProgress progress = progresses.getLast();
+            assertTrue(progress.filesScanned() > 0);
+            assertEquals(progress.filesScanned(), progress.filesArchived());
+            assertEquals(progress.bytesScanned(), progress.bytesArchived());
+            assertEquals(backupFile.length(), progress.bytesUploaded());
+        } finally {
+            for (File file : uploadDirectory.listFiles())
+                file.delete();
+            uploadDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupMetrics() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/upload");
+        assertTrue(uploadDirectory.mkdirs());
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(localUploadClient(uploadDirectory)),
+                1024 * 1024);
+        BackupStats backupStats = new BackupStats();
+        ObjectName objectName = backupStats.register("test");
+        backup.setMetricsListener(backupStats);
+
+        try {
+            File backupFile = backup.backup();
+
+            BackupMetrics backupMetrics = backupStats.getLastMetrics();
+            assertTrue(backupMetrics.successful());
+            assertTrue(backupMetrics.files() > 0);
+            assertEquals(backupFile.length(), backupMetrics.bytesOut());
+            assertEquals((double) backupMetrics.bytesOut() / backupMetrics.bytesIn(), backupMetrics.getCompressionRatio());
+            assertTrue(backupMetrics.phases().containsKey(Phase.ARCHIVE));
+            assertTrue(backupMetrics.phases().containsKey(Phase.UPLOAD));
+
+            UploadMetrics uploadMetrics = backupMetrics.uploads().getFirst();
+            assertEquals("localhost", uploadMetrics.hostname());
+            assertEquals(backupFile.length(), uploadMetrics.bytes());
+            assertEquals(0, uploadMetrics.retries());
+
+            // The statistics are readable with JMX
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Backups"));
+        } finally {
+            backupStats.unregister();
+            for (File file : uploadDirectory.listFiles())
+                file.delete();
+            uploadDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupAsyncCancel() throws Exception {
+
+        // Upload client, which hangs until it is interrupted
+        CountDownLatch uploadStarted = new CountDownLatch(1);
+        AtomicBoolean uploadInterrupted = new AtomicBoolean();
+        UploadClient hangingClient = new UploadClient("localhost", 0, "", "", "") {
+            @Override
+            protected void internalUpload(File file) throws Exception {
+                uploadStarted.countDown();
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    uploadInterrupted.set(true);
+                    throw e;
+                }
+            }
+        };
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(hangingClient),
+                1024 * 1024);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        CompletableFuture<File> future = backup.backupAsync(executorService);
+        assertTrue(uploadStarted.await(1, TimeUnit.MINUTES));
+        assertTrue(future.cancel(true));
+
+        // Wait for the backup to stop
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertTrue(uploadInterrupted.get());
+        assertThrows(CancellationException.class, future::join);
+        assertEquals(0, backupsDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testBackupIncremental() throws Exception {
+
+        File serverDirectory = Files.createTempDirectory("incrementalServer").toFile();
+        File changedFile = new File(serverDirectory, "changed.txt");
+        File unchangedFile = new File(serverDirectory, "unchanged.txt");
+        File deletedFile = new File(serverDirectory, "deleted.txt");
+        Files.writeString(changedFile.toPath(), "old");
+        Files.writeString(unchangedFile.toPath(), "unchanged");
+        Files.writeString(deletedFile.toPath(), "deleted");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                1024 * 1024);
+        backup.setIncremental(10);
+
+        try {
+            File fullBackup = backup.backup();
+            Thread.sleep(1000);
+
+            Files.writeString(changedFile.toPath(), "changed");
+            Files.writeString(new File(serverDirectory, "new.txt").toPath(), "new");
+            assertTrue(deletedFile.delete());
+
+            File incrementalBackup = backup.backup();
+            assertNotEquals(fullBackup, incrementalBackup);
+
+            try (ZipFile zipFile = new ZipFile(incrementalBackup)) {
+                assertNotNull(zipFile.getEntry("changed.txt"));
+                assertNotNull(zipFile.getEntry("new.txt"));
+                assertNull(zipFile.getEntry("unchanged.txt"));
+                assertNull(zipFile.getEntry("deleted.txt"));
+                assertEquals("deleted.txt\n", new String(zipFile.getInputStream(
+                        zipFile.getEntry(".secureserverbackup/deleted")).readAllBytes()));
+            }
+        } finally {
+            for (File file : serverDirectory.listFiles())
+                file.delete();
+            serverDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupStreamingSFTP() throws Exception {
+
+        // Generate Test RSA Keys
+        KeyPairGenerator keyPairGenerator = new KeyPairGenerator();
+        keyPairGenerator.generate();
+        File publicHostKey = keyPairGenerator.getPublicKeyFile();
+        File privateHostKey = keyPairGenerator.getPrivateKeyFile();
+
+        // Create & start Docker Container
+        GenericContainer<?> sftpContainer = new GenericContainer<>("atmoz/sftp:alpine")
+                .withCopyFileToContainer(
+                        MountableFile.forHostPath(privateHostKey.getAbsolutePath()),
+                        "/etc/ssh/ssh_host_rsa_key"
+                )
+                .withExposedPorts(22)
+                .withCommand("foo:pass:::upload");
+
+        sftpContainer.start();
+
+        SFTPClient uploadClient = new SFTPClient(
+                sftpContainer.getHost(),
+                sftpContainer.getMappedPort(22),
+                "foo",
+                "pass",
+                publicHostKey,
+                20000,
+                "/upload");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(uploadClient),
+                1024 * 1024);
+        backup.setStreaming(true);
+        File backupFile = backup.backup();
+
+        assertTrue(backupFile.exists());
+
+        // Clean up
+        publicHostKey.delete();
+        privateHostKey.delete();
+
+        // Check if file was transferred correctly
+        File backupUpload = new File("./src/test/resources/" + backupFile.getName());
+        sftpContainer.copyFileFromContainer("/home/foo/upload/" + backupFile.getName(), backupUpload.getPath());
+        assertEquals(-1L, Files.mismatch(backupFile.toPath(), backupUpload.toPath()));
+        assertTrue(backupUpload.delete());
+    }
+
+    @Test
+    public void testBackupMaxDirSizeReached() throws Exception {
+
+        // Create an old backup in the backup directory, named like backups of version 1
+        File oldBackup = new File(backupsDirectory, "backup-2024-01-01-10-00.zip");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(oldBackup, "rw")) {
+            randomAccessFile.setLength(1024*1024*1024); // KB -> MB -> GB
+        }
+
+        // Files, which aren't backups, don't count and aren't deleted
+        File otherFile = new File(backupsDirectory, "temporaryTestFile");
+        Files.writeString(otherFile.toPath(), "not a backup");
 
         // Check if it was created
-        assertTrue(new File("./src/test/resources/zipTest/backups/temporaryTestFile").exists());
+        assertTrue(oldBackup.exists());
 
         assertTrue(new Backup(
                 List.of("."),
@@ -120,8 +421,276 @@ public class BackupTest {
                 1)
                 .backup().exists());
 
-        // Check if RandomAccessFile still exist - it shouldn't
-        assertFalse(new File("./src/test/resources/zipTest/backups/temporaryTestFile").exists());
+        // Check if the old backup still exist - it shouldn't
+        assertFalse(oldBackup.exists());
+        assertTrue(otherFile.exists());
+    }
+
+    @Test
+    public void testBackupSnapshot() throws Exception {
+
+        File serverDirectory = new File("./src/test/resources/zipTest");
+        File savedFile = new File(serverDirectory, "snapshot.txt");
+        File temporaryFile = new File(serverDirectory, "snapshot.txt.tmp");
+        File regionFile = new File(serverDirectory, "r.0.0.mca");
+
+        try {
+            for (SnapshotMode snapshotMode : SnapshotMode.values()) {
+                Files.writeString(savedFile.toPath(), "before");
+                Files.writeString(regionFile.toPath(), "before");
+                Backup backup = new Backup(
+                        List.of("*.txt", "*.mca"),
+                        new ArrayList<>(),
+                        backupsDirectory,
+                        serverDirectory,
+                        new ArrayList<>(),
+                        0);
+                backup.setSnapshotMode(snapshotMode);
+
+                // The server saves again as soon as the snapshot was created, replacing its file like Minecraft
+                backup.setSnapshotListener(() -> {
+                    try {
+                        Files.writeString(temporaryFile.toPath(), "after");
+                        Files.move(temporaryFile.toPath(), savedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                        // Region files are written in place
+                        Files.writeString(regionFile.toPath(), "after");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                List<BackupMetrics> metrics = new ArrayList<>();
+                backup.setMetricsListener(metrics::add);
+                File backupFile = backup.backup();
+
+                try (ZipFile zipFile = new ZipFile(backupFile)) {
+                    assertEquals("before", new String(zipFile.getInputStream(zipFile.getEntry("snapshot.txt"))
+                            .readAllBytes()), snapshotMode + " snapshot isn't frozen.");
+                    assertEquals("before", new String(zipFile.getInputStream(zipFile.getEntry("r.0.0.mca"))
+                            .readAllBytes()), snapshotMode + " snapshot didn't copy the region file.");
+                    assertNotNull(zipFile.getEntry("test.txt"));
+                }
+                assertEquals("after", Files.readString(savedFile.toPath()));
+                assertFalse(new File(backupsDirectory, ".snapshot").exists());
+                assertTrue(metrics.getFirst().phases().containsKey(Phase.SNAPSHOT));
+                assertTrue(backupFile.delete());
+            }
+        } finally {
+            assertTrue(savedFile.delete());
+            assertTrue(regionFile.delete());
+        }
+    }
+
+    @Test
+    public void testBackupRemoteRetention() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/upload");
+        assertTrue(uploadDirectory.mkdirs());
+
+        // Old remote backups, a partial upload and a file of someone else
+        for (String name : List.of("backup-2024-01-01-10-00.zip", "backup-2024-01-02-10-00-00.zip",
+                "backup-2024-01-03-10-00-00.zip.part", "notes.txt"))
+            Files.writeString(new File(uploadDirectory, name).toPath(), name);
+
+        List<Integer> listings = new ArrayList<>();
+        UploadClient uploadClient = new UploadClient("localhost", 0, "", "", uploadDirectory.getPath()) {
+            @Override
+            protected void internalUpload(File file) throws Exception {
+                Files.copy(file.toPath(), new File(remoteDirectory, file.getName()).toPath());
+            }
+
+            @Override
+            protected List<RemoteFile> internalList() {
+                File[] files = new File(remoteDirectory).listFiles();
+                listings.add(files.length);
+                return Arrays.stream(files).map(file -> new RemoteFile(file.getName(), file.length())).toList();
+            }
+
+            @Override
+            protected List<String> internalDelete(List<String> fileNames) {
+                for (String name : fileNames)
+                    assertTrue(new File(remoteDirectory, name).delete());
+                return fileNames;
+            }
+        };
+
+        RetentionPolicy retentionPolicy = new RetentionPolicy();
+        retentionPolicy.setMaxCount(2);
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(uploadClient),
+                0);
+        backup.setRetentionPolicy(retentionPolicy);
+        backup.setRemoteRetention(true);
+
+        try {
+            File backupFile = backup.backup();
+
+            // The remote directory is listed once and only the oldest backup is deleted
+            assertEquals(List.of(5), listings);
+            List<String> names = Arrays.stream(uploadDirectory.list()).sorted().toList();
+            assertEquals(List.of("backup-2024-01-02-10-00-00.zip", "backup-2024-01-03-10-00-00.zip.part",
+                    backupFile.getName(), "notes.txt"), names);
+        } finally {
+            for (File file : uploadDirectory.listFiles())
+                file.delete();
+            uploadDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupChecksums() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/upload");
+        File sentDirectory = new File(uploadDirectory, "sent");
+        File corruptedDirectory = new File(uploadDirectory, "corrupted");
+        assertTrue(sentDirectory.mkdirs());
+        assertTrue(corruptedDirectory.mkdirs());
+
+        // Verified with the digest of the sent bytes
+        UploadClient sentClient = new UploadClient("localhost", 0, "", "", sentDirectory.getPath()) {
+            @Override
+            protected void internalUpload(File file) throws Exception {
+                try (InputStream inputStream = digestSent(Files.newInputStream(file.toPath()))) {
+                    Files.copy(inputStream, new File(remoteDirectory, file.getName()).toPath());
+                }
+            }
+        };
+
+        // Verified with the checksum computed by the server, which stores a corrupted backup
+        UploadClient corruptedClient = new UploadClient("localhost", 0, "", "", corruptedDirectory.getPath()) {
+            @Override
+            protected void internalUpload(File file) throws Exception {
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                bytes[bytes.length / 2] ^= 1;
+                Files.write(new File(remoteDirectory, file.getName()).toPath(), bytes);
+            }
+
+            @Override
+            protected boolean internalVerify(String fileName, FileDigest digest) throws Exception {
+                String sha256 = sha256(new File(remoteDirectory, fileName));
+                if (!sha256.equals(digest.sha256()))
+                    throw new IOException("Checksum mismatch.");
+                return true;
+            }
+        };
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(sentClient, corruptedClient),
+                0);
+        backup.setChecksums(true);
+
+        try {
+            assertThrows(UploadException.class, backup::backup);
+
+            List<UploadResult> uploadResults = backup.getUploadResults();
+            assertTrue(uploadResults.get(0).isSuccessful());
+            assertFalse(uploadResults.get(1).isSuccessful());
+
+            // The sidecar file contains the digest of the backup, which was computed while it was written
+            File[] sidecars = backupsDirectory.listFiles((dir, name) -> name.endsWith(FileDigest.SIDECAR_SUFFIX));
+            assertEquals(1, sidecars.length);
+            String backupName = sidecars[0].getName().replace(FileDigest.SIDECAR_SUFFIX, "");
+            assertEquals(sha256(new File(backupsDirectory, backupName)) + "  " + backupName + "\n",
+                    Files.readString(sidecars[0].toPath()));
+
+            // The sidecar file is only uploaded after the verified backup
+            assertEquals(List.of(backupName, sidecars[0].getName()),
+                    Arrays.stream(sentDirectory.list()).sorted().toList());
+            assertEquals(Files.readString(sidecars[0].toPath()),
+                    Files.readString(new File(sentDirectory, sidecars[0].getName()).toPath()));
+        } finally {
+            for (File directory : List.of(sentDirectory, corruptedDirectory)) {
+                for (File file : directory.listFiles())
+                    file.delete();
+                directory.delete();
+            }
+            uploadDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testBackupVolumes() throws Exception {
+
+        File uploadDirectory = new File("./src/test/resources/upload");
+        File restoreDirectory = new File("./src/test/resources/restoreVolumes");
+        assertTrue(uploadDirectory.mkdirs());
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                new File("./src/test/resources/zipTest"),
+                List.of(localUploadClient(uploadDirectory)),
+                0);
+        backup.setVolumeSize(256);
+        backup.setDeleteUploadedVolumes(true);
+        backup.setChecksums(true);
+
+        try {
+            File backupFile = backup.backup();
+
+            // Only the sidecar file is left in the backup directory
+            assertFalse(backupFile.exists());
+            assertTrue(VolumeOutputStream.list(backupFile).isEmpty());
+            List<String> sidecarLines = Files.readAllLines(
+                    new File(backupsDirectory, backupFile.getName() + FileDigest.SIDECAR_SUFFIX).toPath());
+
+            // Every volume was uploaded, followed by the sidecar file
+            List<File> volumes = VolumeOutputStream.list(new File(uploadDirectory, backupFile.getName()));
+            assertTrue(volumes.size() > 1);
+            assertEquals(volumes.size(), sidecarLines.size());
+            for (int i = 0; i < volumes.size(); i++) {
+                assertTrue(volumes.get(i).length() <= 256);
+                assertEquals(sha256(volumes.get(i)) + "  " + volumes.get(i).getName(), sidecarLines.get(i));
+            }
+            assertTrue(new File(uploadDirectory, backupFile.getName() + FileDigest.SIDECAR_SUFFIX).exists());
+
+            // The volumes are joined again by the restore
+            new Restore(uploadDirectory).restore(new File(uploadDirectory, backupFile.getName()), restoreDirectory);
+            assertEquals(Files.readString(new File("./src/test/resources/zipTest/test.txt").toPath()),
+                    Files.readString(new File(restoreDirectory, "test.txt").toPath()));
+            assertEquals(volumes.size() + 1, uploadDirectory.list().length);
+        } finally {
+            for (File file : uploadDirectory.listFiles())
+                file.delete();
+            uploadDirectory.delete();
+            try (Stream<Path> paths = Files.walk(restoreDirectory.toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                    Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Compute the SHA-256 digest of a file.
+     * @param file the file
+     * @return the digest as lowercase hex string
+     */
+    private static String sha256(File file) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Create an upload client, which copies the files into a local directory.
+     * @param uploadDirectory the directory
+     * @return the upload client
+     */
+    private static UploadClient localUploadClient(File uploadDirectory) {
+        return new UploadClient("localhost", 0, "", "", uploadDirectory.getPath()) {
+            @Override
+            protected void internalUpload(File file) throws Exception {
+                Files.copy(file.toPath(), new File(remoteDirectory, file.getName()).toPath());
+            }
+        };
     }
 
     @AfterEach
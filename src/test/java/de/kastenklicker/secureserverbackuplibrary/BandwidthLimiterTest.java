@@ -0,0 +1,52 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import de.kastenklicker.secureserverbackuplibrary.upload.BandwidthLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testLimitSharedByThreads() throws InterruptedException {
+
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(1024 * 1024);
+        long start = System.nanoTime();
+
+        // Two uploads at the same time share the limit
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            threads.add(Thread.startVirtualThread(() -> {
+                try {
+                    for (int written = 0; written < 1024 * 1024; written += 16 * 1024)
+                        bandwidthLimiter.acquire(16 * 1024);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(millis >= 1800, "2 MiB took only " + millis + " ms");
+        assertTrue(millis < 4000, "2 MiB took " + millis + " ms");
+    }
+
+    @Test
+    public void testSchedule() throws InterruptedException {
+
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(1024);
+        LocalTime now = LocalTime.now();
+        bandwidthLimiter.addSchedule(now.minusHours(1), now.plusHours(1), BandwidthLimiter.UNLIMITED);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++)
+            bandwidthLimiter.acquire(1024 * 1024);
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+}
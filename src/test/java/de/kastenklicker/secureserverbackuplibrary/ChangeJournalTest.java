@@ -0,0 +1,218 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeJournalTest {
+
+    private File serverDirectory;
+    private File backupsDirectory;
+    private File journalFile;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverDirectory = Files.createTempDirectory("journalServer").toFile();
+        backupsDirectory = Files.createTempDirectory("journalBackups").toFile();
+        journalFile = new File(backupsDirectory, ".journal");
+
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "old");
+        assertTrue(new File(serverDirectory, "dir").mkdir());
+        Files.writeString(new File(serverDirectory, "dir/unchanged.txt").toPath(), "unchanged");
+    }
+
+    @Test
+    public void testJournalIncrementalBackup() throws Exception {
+
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile)) {
+            changeJournal.start();
+            changeJournal.reconcile();
+
+            ChangeJournal.Changes changes = changeJournal.getChanges();
+            assertEquals(List.of("changed.txt", "dir/unchanged.txt"), changes.files());
+            assertEquals(2, changes.changedFiles().size());
+
+            Backup backup = new Backup(
+                    List.of("*"),
+                    new ArrayList<>(),
+                    backupsDirectory,
+                    serverDirectory,
+                    new ArrayList<>(),
+                    Long.MAX_VALUE);
+            backup.setIncremental(10);
+            backup.setChangeJournal(changeJournal);
+
+            backup.backup();
+            assertTrue(changeJournal.getChanges().changedFiles().isEmpty());
+            Thread.sleep(1000);
+
+            // The watch service records the changes without a scan
+            Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "new");
+            assertTrue(new File(serverDirectory, "dir/new").mkdir());
+            Files.writeString(new File(serverDirectory, "dir/new/new.txt").toPath(), "new");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!changeJournal.getChanges().files().contains("dir/new/new.txt")
+                    || !changeJournal.getChanges().changedFiles().contains("changed.txt")) {
+                assertTrue(System.currentTimeMillis() < deadline, "The watch service didn't record the changes.");
+                Thread.sleep(50);
+            }
+
+            File increment = backup.backup();
+            try (ZipFile zipFile = new ZipFile(increment)) {
+                List<String> names = Collections.list(zipFile.entries()).stream()
+                        .map(ZipEntry::getName)
+                        .filter(name -> !name.startsWith(".secureserverbackup/"))
+                        .sorted()
+                        .toList();
+                assertEquals(List.of("changed.txt", "dir/new/new.txt"), names);
+            }
+
+            File restoreDirectory = new File(backupsDirectory, "restore");
+            new Restore(backupsDirectory).restore(increment, restoreDirectory);
+            assertEquals("unchanged", Files.readString(new File(restoreDirectory, "dir/unchanged.txt").toPath()));
+            assertEquals("new", Files.readString(new File(restoreDirectory, "changed.txt").toPath()));
+        }
+    }
+
+    @Test
+    public void testJournalFullBackup() throws Exception {
+
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile)) {
+            changeJournal.start();
+            changeJournal.reconcile();
+
+            // A manifest of an earlier incremental backup would miss the forgotten changes
+            File manifestFile = new File(backupsDirectory, ".backup-manifest");
+            Files.writeString(manifestFile.toPath(), "");
+
+            Backup backup = new Backup(
+                    List.of("*"),
+                    new ArrayList<>(),
+                    backupsDirectory,
+                    serverDirectory,
+                    new ArrayList<>(),
+                    Long.MAX_VALUE);
+            backup.setChangeJournal(changeJournal);
+
+            // Backups without an incremental interval forget the changes as well
+            backup.backup();
+            assertTrue(changeJournal.getChanges().changedFiles().isEmpty());
+            assertFalse(manifestFile.exists());
+
+            // Deleting a directory keeps the journal complete
+            Thread.sleep(1000);
+            Files.delete(new File(serverDirectory, "dir/unchanged.txt").toPath());
+            Files.delete(new File(serverDirectory, "dir").toPath());
+            changeJournal.reconcile();
+            assertEquals(List.of("changed.txt"), changeJournal.getChanges().files());
+        }
+    }
+
+    @Test
+    public void testJournalReconcileAfterRestart() throws Exception {
+
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile)) {
+            changeJournal.start();
+            changeJournal.reconcile();
+            changeJournal.backedUp(changeJournal.getChanges());
+        }
+
+        // Changes while the journal doesn't run are found by the first scan
+        Thread.sleep(1000);
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "new");
+        assertTrue(new File(serverDirectory, "dir/unchanged.txt").delete());
+
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile)) {
+            changeJournal.start();
+            changeJournal.reconcile();
+
+            ChangeJournal.Changes changes = changeJournal.getChanges();
+            assertEquals(List.of("changed.txt"), changes.files());
+            assertEquals(List.of("changed.txt"), List.copyOf(changes.changedFiles()));
+        }
+    }
+
+    @Test
+    public void testJournalUnwatchableDirectory() throws Exception {
+
+        // Like a server with more directories than the operating system can watch
+        AtomicInteger failedRegistrations = new AtomicInteger();
+        Path unwatchable = serverDirectory.toPath().toAbsolutePath().normalize().resolve("dir");
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile) {
+            @Override
+            WatchKey register(Path directory) throws IOException {
+                if (directory.equals(unwatchable)) {
+                    failedRegistrations.incrementAndGet();
+                    throw new IOException("User limit of inotify watches reached");
+                }
+                return super.register(directory);
+            }
+        }) {
+            changeJournal.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (failedRegistrations.get() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "The first scan didn't run.");
+                Thread.sleep(50);
+            }
+
+            // The failed directory doesn't start more scans and isn't tried again
+            Thread.sleep(500);
+            changeJournal.reconcile();
+            assertEquals(1, failedRegistrations.get());
+            assertNull(changeJournal.getChanges());
+        }
+    }
+
+    @Test
+    public void testJournalExcludedBackupDirectory() throws Exception {
+
+        File backupDirectory = new File(serverDirectory, "backups");
+        assertTrue(backupDirectory.mkdir());
+        try (ChangeJournal changeJournal = new ChangeJournal(serverDirectory, journalFile)) {
+            changeJournal.start();
+            Backup backup = new Backup(
+                    List.of("*"),
+                    new ArrayList<>(),
+                    backupDirectory,
+                    serverDirectory,
+                    new ArrayList<>(),
+                    Long.MAX_VALUE);
+            backup.setChangeJournal(changeJournal);
+            changeJournal.reconcile();
+
+            // Neither the backups nor the snapshot are recorded
+            backup.setSnapshotMode(SnapshotMode.COPY);
+            backup.backup();
+            Thread.sleep(500);
+            changeJournal.reconcile();
+            ChangeJournal.Changes changes = changeJournal.getChanges();
+            assertEquals(List.of("changed.txt", "dir/unchanged.txt"), changes.files());
+            assertTrue(changes.changedFiles().isEmpty());
+        }
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        for (File directory : List.of(serverDirectory, backupsDirectory)) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
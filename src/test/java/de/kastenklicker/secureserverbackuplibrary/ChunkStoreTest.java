@@ -0,0 +1,163 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkStoreTest {
+
+    private File serverDirectory;
+    private File storeDirectory;
+    private File restoreDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverDirectory = Files.createTempDirectory("chunkServer").toFile();
+        storeDirectory = Files.createTempDirectory("chunkStore").toFile();
+        restoreDirectory = Files.createTempDirectory("chunkRestore").toFile();
+    }
+
+    @Test
+    public void testChunkerIsContentDefined() throws IOException {
+
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        // Insert a few bytes at the start, only the first chunks should differ
+        byte[] shifted = new byte[data.length + 3];
+        System.arraycopy(data, 0, shifted, 3, data.length);
+
+        List<String> chunks = split(data);
+        List<String> shiftedChunks = split(shifted);
+
+        assertTrue(chunks.size() > 20);
+        List<String> common = new ArrayList<>(chunks);
+        common.retainAll(shiftedChunks);
+        assertTrue(common.size() >= chunks.size() - 2);
+    }
+
+    @Test
+    public void testSnapshotDeduplication() throws IOException {
+
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(2).nextBytes(data);
+        File regionFile = new File(serverDirectory, "world/region/r.0.0.mca");
+        Files.createDirectories(regionFile.getParentFile().toPath());
+        Files.write(regionFile.toPath(), data);
+        Files.writeString(new File(serverDirectory, "server.properties").toPath(), "motd=test");
+
+        ChunkStore chunkStore = new ChunkStore(storeDirectory);
+        store(chunkStore, "backup-1");
+        long firstSize = storeSize();
+
+        // Change a small part of the region file
+        for (int i = 0; i < 100; i++)
+            data[1024 * 1024 + i]++;
+        Files.write(regionFile.toPath(), data);
+        regionFile.setLastModified(regionFile.lastModified() + 2000);
+
+        List<File> newFiles = store(chunkStore, "backup-2");
+        long secondSize = storeSize() - firstSize;
+
+        assertEquals(List.of("backup-1", "backup-2"), chunkStore.getSnapshots());
+        assertEquals(3, newFiles.size());
+        assertTrue(secondSize < 200 * 1024, "Second snapshot added " + secondSize + " bytes.");
+
+        new ChunkStore(storeDirectory).restore("backup-2", restoreDirectory);
+        assertArrayEquals(data, Files.readAllBytes(new File(restoreDirectory, "world/region/r.0.0.mca").toPath()));
+        assertEquals("motd=test", Files.readString(new File(restoreDirectory, "server.properties").toPath()));
+    }
+
+    @Test
+    public void testRestoreCorruptPack() throws IOException {
+
+        Files.writeString(new File(serverDirectory, "file.txt").toPath(), "content");
+        ChunkStore chunkStore = new ChunkStore(storeDirectory);
+        store(chunkStore, "backup-1");
+
+        File[] packs = storeDirectory.listFiles((dir, name) -> name.endsWith(ChunkStore.PACK_EXTENSION));
+        assertNotNull(packs);
+        Files.writeString(packs[0].toPath(), "garbage");
+
+        assertThrows(RestoreException.class, () -> new ChunkStore(storeDirectory).restore("backup-1", restoreDirectory));
+    }
+
+    @Test
+    public void testAbortSnapshot() throws IOException {
+
+        Files.writeString(new File(serverDirectory, "file.txt").toPath(), "content");
+        ChunkStore chunkStore = new ChunkStore(storeDirectory);
+        store(chunkStore, "backup-1");
+        List<String> storedFiles = storeFiles();
+
+        // The first pack file of the second snapshot is closed while the file is added, because it is full
+        byte[] data = new byte[40 * 1024 * 1024];
+        new Random(3).nextBytes(data);
+        File bigFile = new File(serverDirectory, "big.bin");
+        Files.write(bigFile.toPath(), data);
+        ChunkStore.SnapshotWriter snapshotWriter = chunkStore.createSnapshot("backup-2");
+        snapshotWriter.add(bigFile, "big.bin");
+        assertTrue(storeFiles().size() > storedFiles.size() + 1);
+
+        snapshotWriter.abort();
+        assertEquals(storedFiles, storeFiles());
+
+        List<String> uploadOrder = chunkStore.getFiles().stream().map(File::getName).toList();
+        assertEquals(3, uploadOrder.size());
+        assertTrue(uploadOrder.get(0).endsWith(ChunkStore.PACK_EXTENSION));
+        assertTrue(uploadOrder.get(1).endsWith(ChunkStore.INDEX_EXTENSION));
+        assertEquals("backup-1" + ChunkStore.SNAPSHOT_EXTENSION, uploadOrder.get(2));
+    }
+
+    private List<File> store(ChunkStore chunkStore, String snapshotName) throws IOException {
+        FileSearch fileSearch = new FileSearch(serverDirectory, List.of("*"), new ArrayList<>());
+        ChunkStore.SnapshotWriter snapshotWriter = chunkStore.createSnapshot(snapshotName);
+        fileSearch.walk(snapshotWriter::add);
+        return snapshotWriter.finish();
+    }
+
+    private List<String> storeFiles() {
+        String[] names = storeDirectory.list();
+        assertNotNull(names);
+        return Arrays.stream(names).sorted().toList();
+    }
+
+    private long storeSize() {
+        File[] files = storeDirectory.listFiles();
+        assertNotNull(files);
+        long size = 0;
+        for (File file : files)
+            size += file.length();
+        return size;
+    }
+
+    private static List<String> split(byte[] data) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        new Chunker().split(new ByteArrayInputStream(data),
+                (buf, off, len) -> chunks.add(Arrays.toString(Arrays.copyOfRange(buf, off, off + len))));
+        return chunks;
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        for (File directory : List.of(serverDirectory, storeDirectory, restoreDirectory)) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionPolicyTest {
+
+    private File randomFile;
+    private File textFile;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        byte[] random = new byte[128 * 1024];
+        new Random(7).nextBytes(random);
+        randomFile = File.createTempFile("random", ".dat");
+        Files.write(randomFile.toPath(), random);
+
+        textFile = File.createTempFile("text", ".dat");
+        Files.writeString(textFile.toPath(), "motd=A Minecraft Server\n".repeat(5000));
+    }
+
+    @Test
+    public void testExtensionRules() throws IOException {
+        CompressionPolicy compressionPolicy = new CompressionPolicy();
+
+        assertEquals(CompressionPolicy.STORED, compressionPolicy.getLevel(textFile, "world/region/r.0.0.mca"));
+        assertEquals(CompressionPolicy.STORED, compressionPolicy.getLevel(textFile, "plugins/Plugin.JAR"));
+
+        compressionPolicy.setLevel("mca", Deflater.BEST_SPEED);
+        assertEquals(Deflater.BEST_SPEED, compressionPolicy.getLevel(textFile, "world/region/r.0.0.mca"));
+
+        assertThrows(IllegalArgumentException.class, () -> compressionPolicy.setLevel("txt", 10));
+    }
+
+    @Test
+    public void testSampling() throws IOException {
+        CompressionPolicy compressionPolicy = new CompressionPolicy();
+
+        assertEquals(CompressionPolicy.STORED, compressionPolicy.getLevel(randomFile, "random.dat"));
+        assertEquals(Deflater.DEFAULT_COMPRESSION, compressionPolicy.getLevel(textFile, "server.properties"));
+
+        // Without sampling all files without a rule are compressed
+        compressionPolicy.setSampleSize(0);
+        assertEquals(Deflater.DEFAULT_COMPRESSION, compressionPolicy.getLevel(randomFile, "random.dat"));
+    }
+
+    @AfterEach
+    public void cleanUp() {
+        assertTrue(randomFile.delete());
+        assertTrue(textFile.delete());
+    }
+}
@@ -9,6 +9,8 @@ import org.testcontainers.utility.MountableFile;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -79,6 +81,39 @@ public class FTPSClientTest {
         assertTrue(testFileUpload.delete());
     }
 
+    /**
+     * Checks if a partial upload of a previous attempt is continued
+     * @throws Exception FTPS Exceptions
+     */
+    @Test
+    public void testUploadResume() throws Exception {
+
+        File resumedFile = new File("./src/test/resources/resumed.bin");
+        byte[] content = new byte[3 * 1024 * 1024];
+        new Random(11).nextBytes(content);
+        Files.write(resumedFile.toPath(), content);
+
+        // Partial upload of an interrupted previous attempt
+        File partFile = new File("./src/test/resources/resumed.bin.part");
+        Files.write(partFile.toPath(), Arrays.copyOf(content, 1024 * 1024 + 5));
+        ftpsContainer.copyFileToContainer(MountableFile.forHostPath(partFile.getAbsolutePath()),
+                REMOTE_DIRECTORY + "/resumed.bin.part");
+        ftpsContainer.execInContainer("chown", USERNAME, REMOTE_DIRECTORY + "/resumed.bin.part");
+
+        final FTPSClient ftpsClient = new FTPSClient(hostname, port, USERNAME,
+                AUTHENTICATION, REMOTE_DIRECTORY);
+        ftpsClient.upload(resumedFile);
+
+        File testFileUpload = new File("./src/test/resources/resumedUpload.bin");
+        ftpsContainer.copyFileFromContainer(REMOTE_DIRECTORY + "/resumed.bin", testFileUpload.getPath());
+        assertEquals(-1L,
+                Files.mismatch(resumedFile.toPath(), testFileUpload.toPath()),
+                "Uploaded and Download files are not the same");
+        assertTrue(testFileUpload.delete());
+        assertTrue(partFile.delete());
+        assertTrue(resumedFile.delete());
+    }
+
     @AfterAll
     public static void afterAll() {
 
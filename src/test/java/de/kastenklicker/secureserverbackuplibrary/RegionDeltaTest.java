@@ -0,0 +1,126 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionDeltaTest {
+
+    private File serverDirectory;
+    private File backupsDirectory;
+    private File restoreDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverDirectory = Files.createTempDirectory("regionServer").toFile();
+        backupsDirectory = Files.createTempDirectory("regionBackups").toFile();
+        restoreDirectory = Files.createTempDirectory("regionRestore").toFile();
+    }
+
+    @Test
+    public void testRegionDeltaRestore() throws Exception {
+
+        byte[][] chunks = new byte[RegionDelta.CHUNKS][];
+        int[] timestamps = new int[RegionDelta.CHUNKS];
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            chunks[i] = new byte[1000 + random.nextInt(10000)];
+            random.nextBytes(chunks[i]);
+            timestamps[i] = 1000;
+        }
+        File regionFile = new File(serverDirectory, "world/region/r.0.0.mca");
+        Files.createDirectories(regionFile.getParentFile().toPath());
+        writeRegion(regionFile, chunks, timestamps);
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                Long.MAX_VALUE);
+        backup.setIncremental(10);
+        backup.setRegionDeltas(true);
+        File fullBackup = backup.backup();
+        Thread.sleep(1000);
+
+        // A changed chunk grows, so the chunks behind it move
+        chunks[3] = new byte[20000];
+        random.nextBytes(chunks[3]);
+        timestamps[3] = 2000;
+        writeRegion(regionFile, chunks, timestamps);
+        File firstIncrement = backup.backup();
+        Thread.sleep(1000);
+
+        chunks[150] = new byte[500];
+        timestamps[150] = 3000;
+        chunks[300] = new byte[700];
+        timestamps[300] = 3000;
+        writeRegion(regionFile, chunks, timestamps);
+        File secondIncrement = backup.backup();
+
+        // The increments contain only the delta of the region file
+        for (File increment : List.of(firstIncrement, secondIncrement)) {
+            try (ZipFile zipFile = new ZipFile(increment)) {
+                assertNull(zipFile.getEntry("world/region/r.0.0.mca"));
+                assertNotNull(zipFile.getEntry(RegionDelta.ENTRY_PREFIX + "world/region/r.0.0.mca"));
+            }
+            assertTrue(increment.length() < fullBackup.length() / 10);
+        }
+
+        new Restore(backupsDirectory).restore(secondIncrement, restoreDirectory);
+        assertEquals(-1L, Files.mismatch(regionFile.toPath(),
+                new File(restoreDirectory, "world/region/r.0.0.mca").toPath()));
+    }
+
+    /**
+     * Write a region file with the chunks one after another.
+     */
+    private static void writeRegion(File file, byte[][] chunks, int[] timestamps) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8192);
+        List<byte[]> sectors = new ArrayList<>();
+        int offset = 2;
+
+        for (int i = 0; i < chunks.length; i++) {
+            header.putInt(4096 + i * 4, timestamps[i]);
+            if (chunks[i] == null)
+                continue;
+
+            int count = (chunks[i].length + 5 + 4095) / 4096;
+            header.putInt(i * 4, offset << 8 | count);
+            ByteBuffer chunk = ByteBuffer.allocate(count * 4096);
+            chunk.putInt(chunks[i].length + 1).put((byte) 2).put(chunks[i]);
+            sectors.add(chunk.array());
+            offset += count;
+        }
+
+        try (var outputStream = Files.newOutputStream(file.toPath())) {
+            outputStream.write(header.array());
+            for (byte[] sector : sectors)
+                outputStream.write(sector);
+        }
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        for (File directory : List.of(serverDirectory, backupsDirectory, restoreDirectory)) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RestoreTest {
+
+    private File serverDirectory;
+    private File backupsDirectory;
+    private File restoreDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverDirectory = Files.createTempDirectory("restoreServer").toFile();
+        backupsDirectory = Files.createTempDirectory("restoreBackups").toFile();
+        restoreDirectory = Files.createTempDirectory("restoreTarget").toFile();
+    }
+
+    @Test
+    public void testRestore() throws IOException {
+
+        File backupFile = new File(backupsDirectory, "backup.zip");
+        Zip zip = new Zip(backupFile, new File("./src/test/resources/zipTest"), List.of("*"), new ArrayList<>());
+        zip.zip(new File("./src/test/resources/zipTest/dir"));
+        zip.finish();
+
+        new Restore(backupsDirectory).restore(backupFile, restoreDirectory);
+
+        assertEquals(-1L, Files.mismatch(
+                new File("./src/test/resources/zipTest/dir/subDir/subDir.txt").toPath(),
+                new File(restoreDirectory, "dir/subDir/subDir.txt").toPath()));
+    }
+
+    @Test
+    public void testRestoreIncludedFiles() throws IOException {
+
+        File backupFile = new File(backupsDirectory, "backup.zip");
+        Zip zip = new Zip(backupFile, new File("./src/test/resources/zipTest"), List.of("*"), new ArrayList<>());
+        zip.zip(new File("./src/test/resources/zipTest/test.txt"));
+        zip.zip(new File("./src/test/resources/zipTest/dir"));
+        zip.finish();
+
+        Restore restore = new Restore(backupsDirectory);
+        restore.setIncludedFiles(List.of("dir/subDir"));
+        restore.setExtractionThreads(4);
+        restore.restore(backupFile, restoreDirectory);
+
+        assertEquals(-1L, Files.mismatch(
+                new File("./src/test/resources/zipTest/dir/subDir/subDir.txt").toPath(),
+                new File(restoreDirectory, "dir/subDir/subDir.txt").toPath()));
+        assertFalse(new File(restoreDirectory, "test.txt").exists());
+    }
+
+    @Test
+    public void testRestoreIncludedFilesTar() throws Exception {
+
+        Files.writeString(new File(serverDirectory, "selected.txt").toPath(), "old");
+        Files.writeString(new File(serverDirectory, "other.txt").toPath(), "other");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                Long.MAX_VALUE);
+        backup.setArchiveFormat(ArchiveFormat.TAR_LZ4);
+        backup.setIncremental(10);
+
+        backup.backup();
+        Thread.sleep(1000);
+        Files.writeString(new File(serverDirectory, "selected.txt").toPath(), "new");
+        File increment = backup.backup();
+
+        Restore restore = new Restore(backupsDirectory);
+        restore.setIncludedFiles(List.of("sel*.txt"));
+        restore.restore(increment, restoreDirectory);
+
+        assertEquals("new", Files.readString(new File(restoreDirectory, "selected.txt").toPath()));
+        assertFalse(new File(restoreDirectory, "other.txt").exists());
+    }
+
+    @Test
+    public void testRestoreIncrementalChain() throws Exception {
+
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "old");
+        Files.writeString(new File(serverDirectory, "unchanged.txt").toPath(), "unchanged");
+        Files.writeString(new File(serverDirectory, "deleted.txt").toPath(), "deleted");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                Long.MAX_VALUE);
+        backup.setIncremental(10);
+
+        File fullBackup = backup.backup();
+        Thread.sleep(1000);
+
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "changed");
+        Files.writeString(new File(serverDirectory, "new.txt").toPath(), "new");
+        assertTrue(new File(serverDirectory, "deleted.txt").delete());
+        File firstIncrement = backup.backup();
+        Thread.sleep(1000);
+
+        Files.writeString(new File(serverDirectory, "new.txt").toPath(), "newer");
+        File secondIncrement = backup.backup();
+
+        Restore restore = new Restore(backupsDirectory);
+        assertEquals(List.of(secondIncrement, firstIncrement, fullBackup), restore.getBackupChain(secondIncrement));
+
+        restore.restore(secondIncrement, restoreDirectory);
+
+        assertEquals("changed", Files.readString(new File(restoreDirectory, "changed.txt").toPath()));
+        assertEquals("unchanged", Files.readString(new File(restoreDirectory, "unchanged.txt").toPath()));
+        assertEquals("newer", Files.readString(new File(restoreDirectory, "new.txt").toPath()));
+        assertFalse(new File(restoreDirectory, "deleted.txt").exists());
+    }
+
+    @Test
+    public void testRestoreMissingFullBackup() throws Exception {
+
+        Files.writeString(new File(serverDirectory, "file.txt").toPath(), "content");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                Long.MAX_VALUE);
+        backup.setIncremental(10);
+
+        File fullBackup = backup.backup();
+        Thread.sleep(1000);
+        File increment = backup.backup();
+        assertTrue(fullBackup.delete());
+
+        assertThrows(RestoreException.class, () -> new Restore(backupsDirectory).restore(increment, restoreDirectory));
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        for (File directory : List.of(serverDirectory, backupsDirectory, restoreDirectory)) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionPolicyTest {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+
+    private File backupsDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        backupsDirectory = Files.createTempDirectory("retentionBackups").toFile();
+    }
+
+    @Test
+    public void testCatalogIgnoresOtherFiles() throws IOException {
+
+        createFile("backup-2024-01-01-10-00.zip", 10);
+        createFile("backup-2024-01-01-11-00-30-incremental.tar.zst", 10);
+        createFile(".backup-manifest", 10);
+        createFile("notes.txt", 10);
+        assertTrue(new File(backupsDirectory, "chunks").mkdir());
+
+        BackupCatalog backupCatalog = new BackupCatalog(backupsDirectory);
+        backupCatalog.refresh();
+        List<BackupCatalog.Artifact> artifacts = backupCatalog.getArtifacts();
+
+        assertEquals(2, artifacts.size());
+        assertEquals(LocalDateTime.of(2024, 1, 1, 11, 0, 30), artifacts.get(0).time());
+        assertTrue(artifacts.get(0).incremental());
+        assertEquals(LocalDateTime.of(2024, 1, 1, 10, 0), artifacts.get(1).time());
+        assertFalse(artifacts.get(1).incremental());
+
+        // Deleted backups are removed on refresh
+        assertTrue(backupCatalog.getFiles(artifacts.get(1)).getFirst().delete());
+        backupCatalog.refresh();
+        assertEquals(1, backupCatalog.getArtifacts().size());
+    }
+
+    @Test
+    public void testMaxSizeAndCount() throws IOException {
+
+        LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0);
+        for (int i = 0; i < 5; i++)
+            createBackup(time.plusHours(i), false, 100);
+
+        RetentionPolicy retentionPolicy = new RetentionPolicy();
+        retentionPolicy.setMaxSize(350);
+        assertEquals(List.of("backup-2024-01-01-00-00-00.zip", "backup-2024-01-01-01-00-00.zip"),
+                deletedNames(retentionPolicy));
+
+        retentionPolicy.setMaxCount(2);
+        assertEquals(3, deletedNames(retentionPolicy).size());
+
+        // The newest backup is kept, even if it is too big
+        retentionPolicy.setMaxSize(50);
+        assertEquals(4, deletedNames(retentionPolicy).size());
+    }
+
+    @Test
+    public void testGenerations() throws IOException {
+
+        // Backups every 6 hours for 60 days
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 3, 0);
+        for (int i = 0; i < 60 * 4; i++)
+            createBackup(start.plusHours(i * 6L), false, 1);
+
+        RetentionPolicy retentionPolicy = new RetentionPolicy();
+        retentionPolicy.setKeepLast(2);
+        retentionPolicy.setKeepDaily(7);
+        retentionPolicy.setKeepMonthly(3);
+
+        BackupCatalog backupCatalog = new BackupCatalog(backupsDirectory);
+        backupCatalog.refresh();
+        List<BackupCatalog.Artifact> deleted = retentionPolicy.select(backupCatalog.getArtifacts());
+        List<BackupCatalog.Artifact> kept = backupCatalog.getArtifacts().stream()
+                .filter(artifact -> !deleted.contains(artifact)).toList();
+
+        // 2 newest, the newest of the last 7 days, and the newest of January and February
+        assertEquals(List.of(
+                        LocalDateTime.of(2024, 2, 29, 21, 0),
+                        LocalDateTime.of(2024, 2, 29, 15, 0),
+                        LocalDateTime.of(2024, 2, 28, 21, 0),
+                        LocalDateTime.of(2024, 2, 27, 21, 0),
+                        LocalDateTime.of(2024, 2, 26, 21, 0),
+                        LocalDateTime.of(2024, 2, 25, 21, 0),
+                        LocalDateTime.of(2024, 2, 24, 21, 0),
+                        LocalDateTime.of(2024, 2, 23, 21, 0),
+                        LocalDateTime.of(2024, 1, 31, 21, 0)),
+                kept.stream().map(BackupCatalog.Artifact::time).toList());
+    }
+
+    @Test
+    public void testIncrementalChains() throws IOException {
+
+        LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0);
+        createBackup(time, false, 100);
+        createBackup(time.plusDays(1), true, 10);
+        createBackup(time.plusDays(2), true, 10);
+        createBackup(time.plusMonths(1), false, 100);
+        createBackup(time.plusMonths(1).plusDays(1), true, 10);
+
+        // The kept incremental backup of the first chain needs its whole chain
+        RetentionPolicy retentionPolicy = new RetentionPolicy();
+        retentionPolicy.setKeepLast(1);
+        retentionPolicy.setKeepMonthly(2);
+        assertEquals(List.of(), deletedNames(retentionPolicy));
+
+        // Without its full backup the rest of the first chain is deleted too
+        retentionPolicy = new RetentionPolicy();
+        retentionPolicy.setMaxSize(200);
+        assertEquals(List.of("backup-2024-01-01-00-00-00.zip",
+                        "backup-2024-01-02-00-00-00-incremental.zip",
+                        "backup-2024-01-03-00-00-00-incremental.zip"),
+                deletedNames(retentionPolicy));
+    }
+
+    private List<String> deletedNames(RetentionPolicy retentionPolicy) {
+        BackupCatalog backupCatalog = new BackupCatalog(backupsDirectory);
+        backupCatalog.refresh();
+        return retentionPolicy.select(backupCatalog.getArtifacts()).stream()
+                .map(BackupCatalog.Artifact::name).toList();
+    }
+
+    private void createBackup(LocalDateTime time, boolean incremental, int size) throws IOException {
+        createFile("backup-" + TIME_FORMAT.format(time) + (incremental ? "-incremental" : "") + ".zip", size);
+    }
+
+    private void createFile(String name, int size) throws IOException {
+        Files.write(new File(backupsDirectory, name).toPath(), new byte[size]);
+    }
+
+    @AfterEach
+    public void cleanUp() {
+        for (File file : backupsDirectory.listFiles())
+            file.delete();
+        backupsDirectory.delete();
+    }
+}
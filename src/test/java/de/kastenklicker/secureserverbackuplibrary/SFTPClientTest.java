@@ -1,7 +1,11 @@
 package de.kastenklicker.secureserverbackuplibrary;
 
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
+import de.kastenklicker.secureserverbackuplibrary.upload.RemoteFile;
 import de.kastenklicker.secureserverbackuplibrary.upload.SFTPClient;
 import de.kastenklicker.secureserverbackuplibrary.upload.UploadException;
 import org.junit.jupiter.api.AfterAll;
@@ -13,8 +17,14 @@ import org.testcontainers.utility.MountableFile;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -94,6 +104,142 @@ public class SFTPClientTest {
         assertTrue(testFileUpload.delete());
     }
 
+    @Test
+    public void testUploadSessionPool() throws IOException {
+
+        try (SFTPClient sftpClient = new SFTPClient(hostname, port, username,
+                authentication, publicHostKey, timeout, remoteDirectory)) {
+            sftpClient.setSessionPool(1);
+
+            // The second upload reuses the session, the third one replaces the session the server closed
+            sftpClient.upload(TESTFILE);
+            sftpClient.upload(TESTFILE);
+            sftpContainer.execInContainer("pkill", "-f", "sshd: foo");
+            sftpClient.upload(TESTFILE);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        File testFileUpload = new File("./src/test/resources/testUpload.txt");
+        sftpContainer.copyFileFromContainer("/home/foo/upload/test.txt", testFileUpload.getPath());
+        assertEquals(-1L,
+                Files.mismatch(TESTFILE.toPath(), testFileUpload.toPath()),
+                "Uploaded and Download files are not the same");
+        assertTrue(testFileUpload.delete());
+    }
+
+    @Test
+    public void testUploadSegments() throws IOException {
+
+        File segmentedFile = new File("./src/test/resources/segmented.bin");
+        byte[] content = new byte[5 * 1024 * 1024 + 3];
+        new Random(7).nextBytes(content);
+        Files.write(segmentedFile.toPath(), content);
+
+        final SFTPClient sftpClient = new SFTPClient(hostname, port, username,
+                authentication, publicHostKey, timeout, remoteDirectory);
+        sftpClient.setSegments(4);
+        sftpClient.upload(segmentedFile);
+
+        File testFileUpload = new File("./src/test/resources/segmentedUpload.bin");
+        sftpContainer.copyFileFromContainer("/home/foo/upload/segmented.bin", testFileUpload.getPath());
+        assertEquals(-1L,
+                Files.mismatch(segmentedFile.toPath(), testFileUpload.toPath()),
+                "Uploaded and Download files are not the same");
+        assertTrue(testFileUpload.delete());
+        assertTrue(segmentedFile.delete());
+    }
+
+    @Test
+    public void testSegmentsOutOfOrder() throws Exception {
+
+        // Segmented uploads rely on JSch writing RESUME streams relative to the size of the file when it was opened
+        JSch jsch = new JSch();
+        Session session = jsch.getSession(username, hostname, port);
+        session.setPassword(authentication);
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.connect(timeout);
+
+        try {
+            ChannelSftp firstChannel = (ChannelSftp) session.openChannel("sftp");
+            ChannelSftp secondChannel = (ChannelSftp) session.openChannel("sftp");
+            firstChannel.connect(timeout);
+            secondChannel.connect(timeout);
+
+            String remoteFile = remoteDirectory + "/outOfOrder.bin";
+            firstChannel.put(remoteFile, ChannelSftp.OVERWRITE).close();
+            OutputStream firstSegment = firstChannel.put(remoteFile, null, ChannelSftp.RESUME, 0);
+            OutputStream secondSegment = secondChannel.put(remoteFile, null, ChannelSftp.RESUME, 4);
+
+            secondSegment.write("5678".getBytes(StandardCharsets.UTF_8));
+            secondSegment.close();
+            firstSegment.write("1234".getBytes(StandardCharsets.UTF_8));
+            firstSegment.close();
+
+            try (InputStream inputStream = firstChannel.get(remoteFile)) {
+                assertEquals("12345678", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            firstChannel.exit();
+            secondChannel.exit();
+        } finally {
+            session.disconnect();
+        }
+    }
+
+    @Test
+    public void testUploadResume() throws Exception {
+
+        File resumedFile = new File("./src/test/resources/resumed.bin");
+        byte[] content = new byte[3 * 1024 * 1024];
+        new Random(11).nextBytes(content);
+        Files.write(resumedFile.toPath(), content);
+
+        // Partial upload of an interrupted previous attempt
+        File partFile = new File("./src/test/resources/resumed.bin.part");
+        Files.write(partFile.toPath(), Arrays.copyOf(content, 1024 * 1024 + 5));
+        sftpContainer.copyFileToContainer(MountableFile.forHostPath(partFile.getAbsolutePath()),
+                "/home/foo/upload/resumed.bin.part");
+        sftpContainer.execInContainer("chown", "foo", "/home/foo/upload/resumed.bin.part");
+
+        final SFTPClient sftpClient = new SFTPClient(hostname, port, username,
+                authentication, publicHostKey, timeout, remoteDirectory);
+        sftpClient.upload(resumedFile);
+
+        File testFileUpload = new File("./src/test/resources/resumedUpload.bin");
+        sftpContainer.copyFileFromContainer("/home/foo/upload/resumed.bin", testFileUpload.getPath());
+        assertEquals(-1L,
+                Files.mismatch(resumedFile.toPath(), testFileUpload.toPath()),
+                "Uploaded and Download files are not the same");
+        assertNotEquals(0, sftpContainer.execInContainer("test", "-e", "/home/foo/upload/resumed.bin.part")
+                .getExitCode());
+        assertTrue(testFileUpload.delete());
+        assertTrue(partFile.delete());
+        assertTrue(resumedFile.delete());
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+
+        for (String name : List.of("old.bin", "new.bin")) {
+            File file = new File("./src/test/resources/" + name);
+            Files.writeString(file.toPath(), name);
+            sftpContainer.copyFileToContainer(MountableFile.forHostPath(file.getAbsolutePath()),
+                    "/home/foo/upload/" + name);
+            assertTrue(file.delete());
+        }
+
+        final SFTPClient sftpClient = new SFTPClient(hostname, port, username,
+                authentication, publicHostKey, timeout, remoteDirectory);
+        List<String> deleted = sftpClient.prune(remoteFiles -> {
+            assertTrue(remoteFiles.contains(new RemoteFile("old.bin", 7)));
+            return List.of("old.bin");
+        });
+
+        assertEquals(List.of("old.bin"), deleted);
+        assertNotEquals(0, sftpContainer.execInContainer("test", "-e", "/home/foo/upload/old.bin").getExitCode());
+        assertEquals(0, sftpContainer.execInContainer("test", "-e", "/home/foo/upload/new.bin").getExitCode());
+    }
+
     @Test
     public void testUploadWrongDirectory() {
 
@@ -0,0 +1,102 @@
+package de.kastenklicker.secureserverbackuplibrary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TarTest {
+
+    private File serverDirectory;
+    private File backupsDirectory;
+    private File restoreDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverDirectory = Files.createTempDirectory("tarServer").toFile();
+        backupsDirectory = Files.createTempDirectory("tarBackups").toFile();
+        restoreDirectory = Files.createTempDirectory("tarRestore").toFile();
+    }
+
+    @Test
+    public void testTarRestore() throws IOException {
+
+        // Names longer than 100 bytes need a PAX header
+        File longFile = new File(serverDirectory, "a".repeat(80) + "/" + "b".repeat(80) + ".txt");
+        Files.createDirectories(longFile.getParentFile().toPath());
+        Files.writeString(longFile.toPath(), "long name");
+
+        byte[] content = new byte[100 * 1024 + 7];
+        new Random(3).nextBytes(content);
+        File regionFile = new File(serverDirectory, "world/region/r.0.0.mca");
+        Files.createDirectories(regionFile.getParentFile().toPath());
+        Files.write(regionFile.toPath(), content);
+
+        for (ArchiveFormat archiveFormat : List.of(ArchiveFormat.TAR_ZSTD, ArchiveFormat.TAR_LZ4)) {
+            File backupFile = new File(backupsDirectory, "backup" + archiveFormat.getExtension());
+            Tar tar = new Tar(backupFile, serverDirectory, List.of("*"), new ArrayList<>(), archiveFormat);
+            tar.addIncludedFiles();
+            tar.finish();
+
+            File targetDirectory = new File(restoreDirectory, archiveFormat.name());
+            new Restore(backupsDirectory).restore(backupFile, targetDirectory);
+
+            assertEquals("long name", Files.readString(
+                    targetDirectory.toPath().resolve(serverDirectory.toPath().relativize(longFile.toPath()))));
+            assertArrayEquals(content, Files.readAllBytes(new File(targetDirectory, "world/region/r.0.0.mca").toPath()));
+        }
+    }
+
+    @Test
+    public void testTarIncrementalBackup() throws Exception {
+
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "old");
+        Files.writeString(new File(serverDirectory, "deleted.txt").toPath(), "deleted");
+
+        Backup backup = new Backup(
+                List.of("*"),
+                new ArrayList<>(),
+                backupsDirectory,
+                serverDirectory,
+                new ArrayList<>(),
+                Long.MAX_VALUE);
+        backup.setIncremental(10);
+        backup.setArchiveFormat(ArchiveFormat.TAR_ZSTD);
+
+        File fullBackup = backup.backup();
+        assertTrue(fullBackup.getName().endsWith(".tar.zst"));
+        Thread.sleep(1000);
+
+        Files.writeString(new File(serverDirectory, "changed.txt").toPath(), "changed");
+        assertTrue(new File(serverDirectory, "deleted.txt").delete());
+        File increment = backup.backup();
+        assertTrue(increment.getName().endsWith("-incremental.tar.zst"));
+
+        Restore restore = new Restore(backupsDirectory);
+        assertEquals(List.of(increment, fullBackup), restore.getBackupChain(increment));
+        restore.restore(increment, restoreDirectory);
+
+        assertEquals("changed", Files.readString(new File(restoreDirectory, "changed.txt").toPath()));
+        assertFalse(new File(restoreDirectory, "deleted.txt").exists());
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        for (File directory : List.of(serverDirectory, backupsDirectory, restoreDirectory)) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -4,10 +4,21 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -109,6 +120,189 @@ public class ZipTest {
         assertTrue(testFile.length() > 1000);
     }
 
+    @Test
+    public void testZipIncludedFiles() throws IOException {
+
+        Zip zip = new Zip(
+                testFile,
+                mainDirectory,
+                List.of("dir", "*.txt"),
+                List.of("dir/subDir"));
+
+        // Pack into zip
+        zip.addIncludedFiles();
+        zip.finish();
+
+        try (ZipFile zipFile = new ZipFile(testFile)) {
+            List<String> names = Collections.list(zipFile.entries()).stream().map(ZipEntry::getName).sorted().toList();
+            assertEquals(List.of("dir/dirInclude.txt", "dir/dirInclude.yml", "test.txt", "testExclude.txt"), names);
+        }
+    }
+
+    @Test
+    public void testZipCompressionPolicy() throws IOException {
+
+        // Create an incompressible file, which is split into several blocks
+        File randomFile = new File(mainDirectory, "dir/random.bin");
+        byte[] content = new byte[100 * 1024];
+        new Random(42).nextBytes(content);
+        Files.write(randomFile.toPath(), content);
+
+        try {
+            List<CompressionResult> results = new ArrayList<>();
+            Zip zip = new Zip(testFile, mainDirectory, List.of("."), new ArrayList<>());
+            zip.setBlockSize(64 * 1024);
+            zip.setCompressionPolicy(new CompressionPolicy());
+            zip.setCompressionListener(results::add);
+            zip.zip(new File(mainDirectory, "dir"));
+            zip.finish();
+
+            assertEquals(5, results.size());
+            CompressionResult randomResult = results.stream()
+                    .filter(result -> result.name().equals("dir/random.bin")).findFirst().orElseThrow();
+            assertTrue(randomResult.isStored());
+            assertTrue(randomResult.getSavedBytes() <= 0 && randomResult.getSavedBytes() > -64);
+
+            // A file with several blocks is deflated without compression, so it can have a data descriptor
+            try (ZipFile zipFile = new ZipFile(testFile)) {
+                ZipEntry zipEntry = zipFile.getEntry("dir/random.bin");
+                assertEquals(ZipEntry.DEFLATED, zipEntry.getMethod());
+                assertArrayEquals(content, zipFile.getInputStream(zipEntry).readAllBytes());
+            }
+
+            // Streaming unzippers can read deflated entries with a data descriptor
+            try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(testFile))) {
+                ZipEntry zipEntry;
+                do {
+                    zipEntry = zipInputStream.getNextEntry();
+                } while (!zipEntry.getName().equals("dir/random.bin"));
+                assertEquals("dir/random.bin", zipEntry.getName());
+                assertArrayEquals(content, zipInputStream.readAllBytes());
+            }
+        } finally {
+            assertTrue(randomFile.delete());
+        }
+    }
+
+    @Test
+    public void testZipParallel() throws IOException {
+
+        // Create a file which is split into several blocks
+        File bigFile = new File(mainDirectory, "dir/big.bin");
+        byte[] content = new byte[300 * 1024];
+        Random random = new Random(42);
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + random.nextInt(8));
+        Files.write(bigFile.toPath(), content);
+
+        File serialFile = new File(mainDirectory, "serial.zip");
+
+        try {
+            Zip serialZip = new Zip(serialFile, mainDirectory, List.of("."), new ArrayList<>());
+            serialZip.setBlockSize(64 * 1024);
+            serialZip.zip(new File(mainDirectory, "dir"));
+            serialZip.finish();
+
+            Zip parallelZip = new Zip(testFile, mainDirectory, List.of("."), new ArrayList<>());
+            parallelZip.setCompressionThreads(4);
+            parallelZip.setBlockSize(64 * 1024);
+            parallelZip.zip(new File(mainDirectory, "dir"));
+            parallelZip.finish();
+
+            // The archive must not depend on the number of threads
+            assertEquals(-1L, Files.mismatch(serialFile.toPath(), testFile.toPath()));
+
+            try (ZipFile zipFile = new ZipFile(testFile)) {
+                assertEquals(5, zipFile.size());
+                for (ZipEntry zipEntry : Collections.list(zipFile.entries())) {
+                    byte[] expected = Files.readAllBytes(new File(mainDirectory, zipEntry.getName()).toPath());
+                    assertArrayEquals(expected, zipFile.getInputStream(zipEntry).readAllBytes(),
+                            zipEntry.getName() + " wasn't zipped correctly.");
+                }
+            }
+        } finally {
+            assertTrue(bigFile.delete());
+            assertTrue(serialFile.delete());
+        }
+    }
+
+    @Test
+    public void testZipMemoryMapped() throws IOException {
+
+        // Create a file, which is mapped and split into several blocks
+        File bigFile = new File(mainDirectory, "dir/big.bin");
+        byte[] content = new byte[1024 * 1024 + 123];
+        Random random = new Random(7);
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + random.nextInt(8));
+        Files.write(bigFile.toPath(), content);
+
+        File readFile = new File(mainDirectory, "read.zip");
+
+        try {
+            Zip readZip = new Zip(readFile, mainDirectory, List.of("."), new ArrayList<>());
+            readZip.setBlockSize(64 * 1024);
+            readZip.zip(new File(mainDirectory, "dir"));
+            readZip.finish();
+
+            Zip mappedZip = new Zip(testFile, mainDirectory, List.of("."), new ArrayList<>());
+            mappedZip.setCompressionThreads(4);
+            mappedZip.setBlockSize(64 * 1024);
+            mappedZip.setMemoryMapThreshold(512 * 1024);
+            mappedZip.zip(new File(mainDirectory, "dir"));
+            mappedZip.finish();
+
+            // Mapping the file must not change the archive
+            assertEquals(-1L, Files.mismatch(readFile.toPath(), testFile.toPath()));
+
+            try (ZipFile zipFile = new ZipFile(testFile)) {
+                assertArrayEquals(content, zipFile.getInputStream(zipFile.getEntry("dir/big.bin")).readAllBytes());
+            }
+        } finally {
+            assertTrue(bigFile.delete());
+            assertTrue(readFile.delete());
+        }
+    }
+
+    @Test
+    public void testZipLoadThrottle() throws IOException {
+
+        File bigFile = new File(mainDirectory, "dir/big.bin");
+        byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+        Files.write(bigFile.toPath(), content);
+
+        File unthrottledFile = new File(mainDirectory, "unthrottled.zip");
+
+        try {
+            Zip unthrottledZip = new Zip(unthrottledFile, mainDirectory, List.of("."), new ArrayList<>());
+            unthrottledZip.setCompressionThreads(4);
+            unthrottledZip.setBlockSize(64 * 1024);
+            unthrottledZip.zip(new File(mainDirectory, "dir"));
+            unthrottledZip.finish();
+
+            // The server is under load for the first checks
+            AtomicInteger checks = new AtomicInteger();
+            LoadThrottle loadThrottle = new LoadThrottle(() -> checks.incrementAndGet() < 5 ? 10 : 0, 1);
+            loadThrottle.setCheckInterval(Duration.ofMillis(10));
+            loadThrottle.setMinBytesPerSecond(1024 * 1024);
+
+            Zip throttledZip = new Zip(testFile, mainDirectory, List.of("."), new ArrayList<>());
+            throttledZip.setCompressionThreads(4);
+            throttledZip.setBlockSize(64 * 1024);
+            throttledZip.setLoadThrottle(loadThrottle);
+            throttledZip.zip(new File(mainDirectory, "dir"));
+            throttledZip.finish();
+
+            // Pausing and throttling must not change the archive
+            assertTrue(checks.get() >= 5);
+            assertEquals(-1L, Files.mismatch(unthrottledFile.toPath(), testFile.toPath()));
+        } finally {
+            assertTrue(bigFile.delete());
+            assertTrue(unthrottledFile.delete());
+        }
+    }
+
     @Test
     public void testGetIncludedFiles() {
 